@@ -0,0 +1,295 @@
+/**
+ * AuditLog.java
+ *
+ * Audit trail of customer and order changes: who, when, what, with before and
+ * after images of the record.
+ * Callers only place an entry on a bounded lock-free ring buffer; a background
+ * writer drains it and inserts entries in batches, one transaction per batch,
+ * on its own connection. Saves never wait for the audit insert.
+ * The audit_log table is append-only: triggers reject updates and deletes.
+ * Entries still in the buffer are written by close(); a crash can lose the
+ * entries recorded in the last moments before it.
+ */
+package aim.legacy.db;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class AuditLog {
+
+    public static final String CREATE = "CREATE";
+    public static final String UPDATE = "UPDATE";
+    public static final String DELETE = "DELETE";
+    public static final String MERGE = "MERGE";
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MAX_BATCH = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long RETRY_MILLIS = 1000;
+    private static final int SHUTDOWN_RETRIES = 5;
+
+    private static AuditLog instance;
+
+    // Ring buffer (bounded MPSC queue): each slot carries a sequence number telling
+    // producers when it is free and the writer when it is filled
+    private final Entry[] ring = new Entry[CAPACITY];
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean running = true;
+    private final AtomicLong fullWaits = new AtomicLong();
+    private volatile long written;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    // One recorded change
+    static class Entry {
+        final long timeMillis;
+        final String user;
+        final String action;
+        final String entity;
+        final long entityId;
+        final Map<String, Object> before;
+        final Map<String, Object> after;
+
+        Entry(String user, String action, String entity, long entityId,
+              Map<String, Object> before, Map<String, Object> after) {
+            this.timeMillis = System.currentTimeMillis();
+            this.user = user;
+            this.action = action;
+            this.entity = entity;
+            this.entityId = entityId;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    AuditLog() {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        writer = new Thread(this::run, "audit-writer");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    public static synchronized AuditLog get() {
+        if (instance == null) {
+            instance = new AuditLog();
+        }
+        return instance;
+    }
+
+    // Name recorded for changes made by this process
+    // -Dorderentry.user overrides the operating system login
+    public static String currentUser() {
+        return System.getProperty("orderentry.user", System.getProperty("user.name", "unknown"));
+    }
+
+    // Append-only table, created with the rest of the schema
+    static void ensureTable(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE IF NOT EXISTS audit_log (" +
+            "audit_id INTEGER PRIMARY KEY, " +
+            "logged_at TEXT NOT NULL, " +
+            "user_name TEXT, " +
+            "action TEXT NOT NULL, " +
+            "entity TEXT NOT NULL, " +
+            "entity_id INTEGER, " +
+            "before_image TEXT, " +
+            "after_image TEXT)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_audit_entity ON audit_log(entity, entity_id)");
+        stmt.execute("CREATE TRIGGER IF NOT EXISTS trg_audit_no_update BEFORE UPDATE ON audit_log " +
+            "BEGIN SELECT RAISE(ABORT, 'audit_log is append-only'); END");
+        stmt.execute("CREATE TRIGGER IF NOT EXISTS trg_audit_no_delete BEFORE DELETE ON audit_log " +
+            "BEGIN SELECT RAISE(ABORT, 'audit_log is append-only'); END");
+        stmt.close();
+    }
+
+    // Record a change by the current user; before is null for creates, after is null for deletes
+    public void record(String action, String entity, long entityId,
+                       Map<String, Object> before, Map<String, Object> after) {
+        record(currentUser(), action, entity, entityId, before, after);
+    }
+
+    // Never blocks unless the writer has fallen a full buffer behind, in which case
+    // the caller waits for space rather than losing an entry
+    public void record(String user, String action, String entity, long entityId,
+                       Map<String, Object> before, Map<String, Object> after) {
+        Entry entry = new Entry(user, action, entity, entityId, before, after);
+        while (true) {
+            long pos = tail.get();
+            int slot = (int) (pos & (CAPACITY - 1));
+            long seq = sequences.get(slot);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    ring[slot] = entry;
+                    // publishes the entry to the writer
+                    sequences.set(slot, pos + 1);
+                    if (writerParked) {
+                        LockSupport.unpark(writer);
+                    }
+                    return;
+                }
+            } else if (seq < pos) {
+                fullWaits.incrementAndGet();
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+            }
+        }
+    }
+
+    // Build a before/after image from column name and value pairs
+    public static Map<String, Object> image(Object... namesAndValues) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            map.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    // Times a caller found the buffer full; should stay at zero
+    public long getFullWaits() {
+        return fullWaits.get();
+    }
+
+    // Entries recorded but not yet picked up by the writer
+    public long getBacklog() {
+        return tail.get() - head;
+    }
+
+    // Flush and stop the shared log if it was ever used; for shutdown hooks
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    // Write everything recorded so far and stop the writer
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Entry poll() {
+        int slot = (int) (head & (CAPACITY - 1));
+        if (sequences.get(slot) != head + 1) {
+            return null;
+        }
+        Entry entry = ring[slot];
+        ring[slot] = null;
+        sequences.set(slot, head + CAPACITY);
+        head++;
+        return entry;
+    }
+
+    private void run() {
+        Connection conn = null;
+        int shutdownFailures = 0;
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            Entry entry;
+            while (batch.size() < MAX_BATCH && (entry = poll()) != null) {
+                batch.add(entry);
+            }
+            if (batch.isEmpty()) {
+                if (!running && getBacklog() == 0) {
+                    break;
+                }
+                writerParked = true;
+                if (getBacklog() == 0 && running) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                writerParked = false;
+                continue;
+            }
+
+            try {
+                if (conn == null) {
+                    conn = DB.openConnection();
+                }
+                insert(conn, batch);
+                written += batch.size();
+                batch.clear();
+            } catch (SQLException e) {
+                // Entries stay in the batch and are retried; a locked or full database
+                // must not cost audit records. Once closing, give up after a few attempts.
+                e.printStackTrace();
+                if (!running && ++shutdownFailures >= SHUTDOWN_RETRIES) {
+                    System.err.println((batch.size() + getBacklog()) + " audit entries could not be written");
+                    break;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS));
+            }
+        }
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void insert(Connection conn, List<Entry> batch) throws SQLException {
+        conn.setAutoCommit(false);
+        try {
+            PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO audit_log (logged_at, user_name, action, entity, entity_id, before_image, after_image) " +
+                "VALUES (strftime('%Y-%m-%d %H:%M:%f', ? / 1000.0, 'unixepoch'), ?, ?, ?, ?, ?, ?)");
+            for (Entry entry : batch) {
+                ps.setLong(1, entry.timeMillis);
+                ps.setString(2, entry.user);
+                ps.setString(3, entry.action);
+                ps.setString(4, entry.entity);
+                ps.setLong(5, entry.entityId);
+                ps.setString(6, toJson(entry.before));
+                ps.setString(7, toJson(entry.after));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            ps.close();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private String toJson(Map<String, Object> image) {
+        if (image == null) {
+            return null;
+        }
+        try {
+            return mapper.writeValueAsString(image);
+        } catch (JsonProcessingException e) {
+            return String.valueOf(image);
+        }
+    }
+}
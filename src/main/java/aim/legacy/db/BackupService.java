@@ -0,0 +1,289 @@
+/**
+ * BackupService.java
+ *
+ * Online backups of the live database using SQLite's backup API.
+ * The copy runs on its own connection, so saves on the shared connection keep
+ * going while it runs. With a rollback journal the copy proceeds in small page
+ * steps with a pause between them, letting writers in; in WAL mode a single
+ * step reads a snapshot without blocking writers at all.
+ * Each copy is written as a .partial file, checked with PRAGMA integrity_check
+ * and only then renamed into place; the newest N backups are kept.
+ * Scheduled runs skip the copy when nothing was committed since the last one.
+ * Run headless with: ./mvnw exec:java@backup -Dexec.args="--now"
+ */
+package aim.legacy.db;
+
+import org.sqlite.SQLiteConnection;
+
+import java.io.File;
+import java.sql.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class BackupService {
+
+    private static final int PAGES_PER_STEP = 64;
+    private static final int STEP_PAUSE_MS = 5;
+
+    // After this many restarts (another connection wrote mid-copy) stop pausing between steps
+    private static final int MAX_PAUSED_RESTARTS = 10;
+
+    // Retry policy while the source is locked: sleep between retries, give up after the limit
+    private static final int BUSY_SLEEP_MS = 100;
+    private static final int BUSY_RETRIES = 300;
+
+    private static BackupService instance;
+
+    private final File dir;
+    private final int keep;
+    private Connection source;
+    private long lastDataVersion = -1;
+    private ScheduledExecutorService scheduler;
+
+    // Outcome of one backup run
+    public static class Result {
+        public final File file;
+        public final boolean skipped;
+        public final int pages;
+        public final int restarts;
+        public final long millis;
+
+        Result(File file, boolean skipped, int pages, int restarts, long millis) {
+            this.file = file;
+            this.skipped = skipped;
+            this.pages = pages;
+            this.restarts = restarts;
+            this.millis = millis;
+        }
+
+        public String toString() {
+            if (skipped) {
+                return "No changes since the last backup";
+            }
+            return "Backed up " + pages + " pages to " + file + " in " + millis + " ms" +
+                (restarts > 0 ? " (" + restarts + " restarts)" : "") + ", integrity ok";
+        }
+    }
+
+    public BackupService(File dir, int keep) {
+        this.dir = dir;
+        this.keep = keep;
+    }
+
+    // Shared service for the application database
+    // Directory: -Dorderentry.backup.dir, default "backups" next to the database
+    // Retention: -Dorderentry.backup.keep, default 7
+    public static synchronized BackupService get() {
+        if (instance == null) {
+            instance = new BackupService(getBackupDir(), Integer.getInteger("orderentry.backup.keep", 7));
+        }
+        return instance;
+    }
+
+    public static File getBackupDir() {
+        String path = System.getProperty("orderentry.backup.dir");
+        if (path != null) {
+            return new File(path);
+        }
+        File parent = new File(DB.getDbFile()).getAbsoluteFile().getParentFile();
+        return new File(parent, "backups");
+    }
+
+    // Start periodic backups if -Dorderentry.backup.interval (minutes) is set
+    public static void startFromProperties() {
+        long minutes = Long.getLong("orderentry.backup.interval", 0);
+        if (minutes > 0) {
+            get().schedule(minutes);
+        }
+    }
+
+    public synchronized void schedule(long intervalMinutes) {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "backup-scheduler");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                Result result = backup(false);
+                if (!result.skipped) {
+                    System.out.println(result);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (source != null) {
+            try {
+                source.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            source = null;
+        }
+    }
+
+    // Copy the live database into a new timestamped backup file
+    // Without force, nothing is copied if no transaction committed since the previous backup
+    public synchronized Result backup(boolean force) throws SQLException {
+        long start = System.currentTimeMillis();
+        if (source == null) {
+            source = DB.openConnection();
+        }
+
+        long dataVersion = pragmaLong(source, "data_version");
+        if (!force && dataVersion == lastDataVersion) {
+            return new Result(null, true, 0, 0, 0);
+        }
+
+        dir.mkdirs();
+        String name = baseName() + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + ".db";
+        File target = new File(dir, name);
+        File partial = new File(dir, name + ".partial");
+        partial.delete();
+
+        boolean wal = "wal".equalsIgnoreCase(pragmaText(source, "journal_mode"));
+        final int[] pages = {0};
+        final int[] restarts = {0};
+        final int[] lastRemaining = {Integer.MAX_VALUE};
+        int rc = source.unwrap(SQLiteConnection.class).getDatabase().backup("main", partial.getPath(),
+            (remaining, pageCount) -> {
+                pages[0] = pageCount;
+                if (remaining > lastRemaining[0]) {
+                    restarts[0]++;
+                }
+                lastRemaining[0] = remaining;
+                if (remaining > 0 && restarts[0] < MAX_PAUSED_RESTARTS) {
+                    try {
+                        Thread.sleep(STEP_PAUSE_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            },
+            BUSY_SLEEP_MS, BUSY_RETRIES, wal ? -1 : PAGES_PER_STEP);
+        if (rc != 0) {
+            partial.delete();
+            throw new SQLException("Backup failed with SQLite code " + rc);
+        }
+
+        String integrity = verify(partial);
+        if (!"ok".equals(integrity)) {
+            partial.delete();
+            throw new SQLException("Backup copy failed integrity check: " + integrity);
+        }
+        if (!partial.renameTo(target)) {
+            partial.delete();
+            throw new SQLException("Could not rename " + partial + " to " + target);
+        }
+
+        lastDataVersion = dataVersion;
+        prune();
+        return new Result(target, false, pages[0], restarts[0], System.currentTimeMillis() - start);
+    }
+
+    // Run PRAGMA integrity_check on a database file; returns "ok" or the first problems found
+    public static String verify(File file) throws SQLException {
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        try {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("PRAGMA integrity_check(20)");
+            StringBuilder sb = new StringBuilder();
+            while (rs.next()) {
+                sb.append(sb.length() == 0 ? "" : "; ").append(rs.getString(1));
+            }
+            rs.close();
+            stmt.close();
+            return sb.toString();
+        } finally {
+            conn.close();
+        }
+    }
+
+    // Backups in the directory, newest first
+    public List<File> listBackups() {
+        final String prefix = baseName() + "-";
+        File[] files = dir.listFiles((d, n) -> n.startsWith(prefix) && n.endsWith(".db"));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        List<File> list = new ArrayList<>(Arrays.asList(files));
+        // Timestamped names sort chronologically
+        Collections.sort(list, (a, b) -> b.getName().compareTo(a.getName()));
+        return list;
+    }
+
+    private void prune() {
+        List<File> backups = listBackups();
+        for (int i = keep; i < backups.size(); i++) {
+            if (!backups.get(i).delete()) {
+                System.err.println("Could not delete old backup " + backups.get(i));
+            }
+        }
+    }
+
+    private static String baseName() {
+        String name = new File(DB.getDbFile()).getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static long pragmaLong(Connection conn, String pragma) throws SQLException {
+        return Long.parseLong(pragmaText(conn, pragma));
+    }
+
+    private static String pragmaText(Connection conn, String pragma) throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("PRAGMA " + pragma);
+        String value = rs.next() ? rs.getString(1) : null;
+        rs.close();
+        stmt.close();
+        return value;
+    }
+
+    // Command line entry point for cron-style backups
+    // Usage: BackupService --now | --verify <file> | --list
+    public static void main(String[] args) {
+        try {
+            if (args.length == 1 && args[0].equals("--now")) {
+                System.out.println(get().backup(true));
+            } else if (args.length == 2 && args[0].equals("--verify")) {
+                String result = verify(new File(args[1]));
+                System.out.println(args[1] + ": " + result);
+                if (!"ok".equals(result)) {
+                    System.exit(1);
+                }
+            } else if (args.length == 1 && args[0].equals("--list")) {
+                for (File file : get().listBackups()) {
+                    System.out.println(file.getName() + "  " + (file.length() / 1024) + " KB");
+                }
+            } else {
+                System.err.println("Usage: BackupService --now | --verify <file> | --list");
+                System.exit(2);
+            }
+            get().shutdown();
+            DB.closeConn();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
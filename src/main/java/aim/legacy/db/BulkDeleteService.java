@@ -0,0 +1,162 @@
+/**
+ * BulkDeleteService.java
+ *
+ * Set-based deletion of orders, customers and products.
+ * Removes any number of records in a single transaction using WHERE id IN (...)
+ * chunks; dependent order lines and orders are removed by the ON DELETE CASCADE
+ * foreign keys declared in DB.createSchema(). Customer statistics are adjusted
+ * and the stock reserved by deleted orders is released in the same
+ * transaction. Order lines keep their own product name and price,
+ * so deleting a product leaves order history intact.
+ */
+package aim.legacy.db;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class BulkDeleteService {
+
+    // Bound parameters per statement; well under SQLite's host parameter limit
+    private static final int CHUNK_SIZE = 500;
+
+    // Delete the given orders and (by cascade) their lines
+    // Returns the number of orders deleted
+    public static int deleteOrders(Connection conn, long[] orderIds) throws SQLException {
+        int deleted = deleteByIds(conn, "orders", "order_id", orderIds, true, null);
+        OrderCache cache = OrderCache.get();
+        for (long id : orderIds) {
+            cache.invalidate(id);
+        }
+        return deleted;
+    }
+
+    // Delete the given customers and (by cascade) their orders and order lines
+    // Returns the number of customers deleted
+    // The cascade gives no list of removed orders, so cached orders are all dropped
+    public static int deleteCustomers(Connection conn, long[] custIds) throws SQLException {
+        int deleted = deleteByIds(conn, "customer", "cust_id", custIds, false,
+            "SELECT order_id FROM orders WHERE cust_id IN ");
+        if (deleted > 0) {
+            OrderCache.get().clear();
+        }
+        return deleted;
+    }
+
+    // Delete the given products and (by cascade) their contract and price list prices
+    // Returns the number of products deleted
+    public static int deleteProducts(Connection conn, long[] prodIds) throws SQLException {
+        int deleted = deleteByIds(conn, "product", "prod_id", prodIds, false, "");
+        if (deleted > 0) {
+            PricingCatalog.invalidate();
+            Inventory.productsDeleted(prodIds);
+        }
+        return deleted;
+    }
+
+    // Number of orders that a customer delete would cascade to
+    // Used to warn the user before confirming
+    public static int countOrdersForCustomers(Connection conn, long[] custIds) throws SQLException {
+        int count = 0;
+        for (int from = 0; from < custIds.length; from += CHUNK_SIZE) {
+            int to = Math.min(custIds.length, from + CHUNK_SIZE);
+            PreparedStatement ps = conn.prepareStatement(
+                "SELECT COUNT(*) FROM orders WHERE cust_id IN (" + placeholders(to - from) + ")");
+            bind(ps, custIds, from, to);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                count += rs.getInt(1);
+            }
+            rs.close();
+            ps.close();
+        }
+        return count;
+    }
+
+    // With orderStats, the deleted orders are subtracted from their customers' statistics
+    // (a customer's statistics row goes away with the customer by cascade)
+    // orderQuery selects the order ids removed with a chunk of ids, for releasing their stock:
+    // null when the ids are order ids, "" when no orders are removed
+    private static int deleteByIds(Connection conn, String table, String idColumn, long[] ids,
+                                   boolean orderStats, String orderQuery) throws SQLException {
+        if (ids.length == 0) {
+            return 0;
+        }
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            int deleted = 0;
+            Set<Long> customers = new LinkedHashSet<>();
+            Map<Long, Long> released = new HashMap<>();
+            PreparedStatement full = null;
+            for (int from = 0; from < ids.length; from += CHUNK_SIZE) {
+                int to = Math.min(ids.length, from + CHUNK_SIZE);
+                PreparedStatement ps;
+                if (to - from == CHUNK_SIZE) {
+                    // Full chunks share one prepared statement
+                    if (full == null) {
+                        full = conn.prepareStatement(
+                            "DELETE FROM " + table + " WHERE " + idColumn + " IN (" + placeholders(CHUNK_SIZE) + ")");
+                    }
+                    ps = full;
+                } else {
+                    ps = conn.prepareStatement(
+                        "DELETE FROM " + table + " WHERE " + idColumn + " IN (" + placeholders(to - from) + ")");
+                }
+                if (orderStats) {
+                    customers.addAll(CustomerStats.ordersRemoving(conn, placeholders(to - from), ids, from, to));
+                }
+                if (orderQuery == null || !orderQuery.isEmpty()) {
+                    String orders = orderQuery == null ? placeholders(to - from)
+                        : orderQuery + "(" + placeholders(to - from) + ")";
+                    Object[] params = new Object[to - from];
+                    for (int i = from; i < to; i++) {
+                        params[i - from] = ids[i];
+                    }
+                    for (Map.Entry<Long, Long> entry : Inventory.orderQuantities(conn, orders, params).entrySet()) {
+                        released.merge(entry.getKey(), entry.getValue(), Long::sum);
+                    }
+                }
+                bind(ps, ids, from, to);
+                deleted += ps.executeUpdate();
+                if (ps != full) {
+                    ps.close();
+                }
+            }
+            if (full != null) {
+                full.close();
+            }
+            for (long custId : customers) {
+                CustomerStats.refreshLastOrder(conn, custId);
+            }
+            Inventory.release(conn, released);
+            conn.commit();
+            if (!released.isEmpty()) {
+                Inventory.get().released(released);
+            }
+            return deleted;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.toString();
+    }
+
+    private static void bind(PreparedStatement ps, long[] ids, int from, int to) throws SQLException {
+        for (int i = from; i < to; i++) {
+            ps.setLong(i - from + 1, ids[i]);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/**
+ * ColumnarExport.java
+ *
+ * Exports orders and order lines into a compact columnar file for analytics,
+ * so ad-hoc aggregations do not run against the transactional database.
+ * Rows are stored in segments of up to SEGMENT_ROWS rows; within a segment
+ * each column is a fixed-width little-endian array. Line rows carry their
+ * order's customer and day, so line scans need no join. The product column
+ * holds codes into a dictionary of product ids and names.
+ * Orders are read in short transactions of CHUNK_ORDERS orders, so the
+ * application can keep saving while a large database is exported.
+ * Read the file with ColumnarReader.
+ * Run with: ./mvnw exec:java@export -Dexec.args="--out orders.ocf"
+ *
+ * Layout: header (64 bytes), line segments, order segments, dictionary, segment index
+ *   line segment:  order_id, cust_id, price_cents (long[n]), day, product, quantity (int[n])
+ *   order segment: order_id, cust_id, subtotal, discount, tax, total cents (long[n]), day (int[n])
+ *   day = days since 1970-01-01 (UTC); segments start on 8-byte boundaries
+ */
+package aim.legacy.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ColumnarExport {
+
+    static final int MAGIC = 0x4F454346;   // "OECF"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int SEGMENT_ROWS = 1 << 20;
+    static final int LINE_ROW_BYTES = 3 * 8 + 3 * 4;
+    static final int ORDER_ROW_BYTES = 6 * 8 + 4;
+    static final int INDEX_ENTRY_BYTES = 16;
+
+    private static final int CHUNK_ORDERS = 5000;
+
+    private final Connection conn;
+    private final boolean archives;
+
+    // Product id -> dictionary code, and the dictionary itself in code order
+    private final Map<Long, Integer> productCodes = new HashMap<>();
+    private final List<Long> dictIds = new ArrayList<>();
+    private final List<String> dictNames = new ArrayList<>();
+
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private final List<long[]> lineIndex = new ArrayList<>();
+    private final List<long[]> orderIndex = new ArrayList<>();
+    private long lineCount;
+    private long orderCount;
+
+    // Current line segment
+    private final long[] lineOrderId = new long[SEGMENT_ROWS];
+    private final long[] lineCustId = new long[SEGMENT_ROWS];
+    private final long[] linePrice = new long[SEGMENT_ROWS];
+    private final int[] lineDay = new int[SEGMENT_ROWS];
+    private final int[] lineProduct = new int[SEGMENT_ROWS];
+    private final int[] lineQuantity = new int[SEGMENT_ROWS];
+    private int lineRows;
+
+    // Current order segment; order rows are written after all line segments,
+    // so they are spooled to a temporary file meanwhile
+    private final long[][] orderLongs = new long[6][SEGMENT_ROWS];
+    private final int[] orderDay = new int[SEGMENT_ROWS];
+    private int orderRows;
+    private FileChannel orderSpool;
+    private File orderSpoolFile;
+
+    public ColumnarExport(Connection conn, boolean archives) {
+        this.conn = conn;
+        this.archives = archives;
+    }
+
+    // Write the file; returns the number of lines exported
+    public long export(File out) throws SQLException, IOException {
+        List<String> schemas = new ArrayList<>();
+        schemas.add(OrderArchive.MAIN);
+        if (archives) {
+            for (int year : OrderArchive.listYears(conn)) {
+                schemas.add(OrderArchive.attach(conn, year));
+            }
+        }
+        loadProducts();
+
+        File partial = new File(out.getPath() + ".partial");
+        orderSpoolFile = new File(out.getPath() + ".orders.tmp");
+        buffer = ByteBuffer.allocate(SEGMENT_ROWS * Math.max(LINE_ROW_BYTES, ORDER_ROW_BYTES) + 8)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            channel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            orderSpool = FileChannel.open(orderSpoolFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            channel.position(HEADER_BYTES);
+
+            for (String schema : schemas) {
+                exportSchema(schema);
+            }
+            flushLines();
+            flushOrders();
+            copyOrderSegments();
+            long dictionaryOffset = channel.position();
+            writeDictionary();
+            long indexOffset = channel.position();
+            writeIndex();
+            writeHeader(dictionaryOffset, indexOffset);
+            channel.force(true);
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+            if (orderSpool != null) {
+                orderSpool.close();
+            }
+            orderSpoolFile.delete();
+        }
+        Files.move(partial.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return lineCount;
+    }
+
+    private void loadProducts() throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT prod_id, prod_name FROM product ORDER BY prod_id");
+        while (rs.next()) {
+            productCode(rs.getLong(1), rs.getString(2));
+        }
+        rs.close();
+        stmt.close();
+    }
+
+    // Products deleted since an order was taken keep the name stored on the line
+    private int productCode(long prodId, String name) {
+        Integer code = productCodes.get(prodId);
+        if (code == null) {
+            code = dictIds.size();
+            productCodes.put(prodId, code);
+            dictIds.add(prodId);
+            dictNames.add(name != null ? name : "");
+        }
+        return code;
+    }
+
+    // Orders and their lines, one short read transaction per chunk of orders
+    private void exportSchema(String schema) throws SQLException, IOException {
+        PreparedStatement orders = conn.prepareStatement(
+            "SELECT order_id, cust_id, order_ts, subtotal, discount, tax, total FROM " + schema + ".orders " +
+            "WHERE order_id > ? ORDER BY order_id LIMIT " + CHUNK_ORDERS);
+        PreparedStatement lines = conn.prepareStatement(
+            "SELECT l.order_id, o.cust_id, o.order_ts, l.prod_id, l.prod_name, l.quantity, l.unit_price " +
+            "FROM " + schema + ".order_line l JOIN " + schema + ".orders o ON o.order_id = l.order_id " +
+            "WHERE l.order_id > ? AND l.order_id <= ? ORDER BY l.order_id, l.line_id");
+        long last = 0;
+        boolean autoCommit = conn.getAutoCommit();
+        try {
+            while (true) {
+                conn.setAutoCommit(false);
+                orders.setLong(1, last);
+                ResultSet rs = orders.executeQuery();
+                long first = last;
+                while (rs.next()) {
+                    last = rs.getLong(1);
+                    addOrder(last, rs.getLong(2), day(rs.getLong(3)), cents(rs.getDouble(4)), cents(rs.getDouble(5)),
+                        cents(rs.getDouble(6)), cents(rs.getDouble(7)));
+                }
+                rs.close();
+                if (last == first) {
+                    conn.commit();
+                    break;
+                }
+
+                lines.setLong(1, first);
+                lines.setLong(2, last);
+                rs = lines.executeQuery();
+                while (rs.next()) {
+                    addLine(rs.getLong(1), rs.getLong(2), day(rs.getLong(3)),
+                        productCode(rs.getLong(4), rs.getString(5)), rs.getInt(6), cents(rs.getDouble(7)));
+                }
+                rs.close();
+                conn.commit();
+            }
+        } finally {
+            conn.setAutoCommit(autoCommit);
+            orders.close();
+            lines.close();
+        }
+    }
+
+    private static int day(long epochSeconds) {
+        return (int) Math.floorDiv(epochSeconds, 86400L);
+    }
+
+    private static long cents(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    private void addLine(long orderId, long custId, int day, int product, int quantity, long price) throws IOException {
+        int i = lineRows++;
+        lineOrderId[i] = orderId;
+        lineCustId[i] = custId;
+        linePrice[i] = price;
+        lineDay[i] = day;
+        lineProduct[i] = product;
+        lineQuantity[i] = quantity;
+        if (lineRows == SEGMENT_ROWS) {
+            flushLines();
+        }
+    }
+
+    private void addOrder(long orderId, long custId, int day, long subtotal, long discount, long tax, long total)
+            throws IOException {
+        int i = orderRows++;
+        orderLongs[0][i] = orderId;
+        orderLongs[1][i] = custId;
+        orderLongs[2][i] = subtotal;
+        orderLongs[3][i] = discount;
+        orderLongs[4][i] = tax;
+        orderLongs[5][i] = total;
+        orderDay[i] = day;
+        if (orderRows == SEGMENT_ROWS) {
+            flushOrders();
+        }
+    }
+
+    private void flushLines() throws IOException {
+        if (lineRows == 0) {
+            return;
+        }
+        int n = lineRows;
+        buffer.clear();
+        putLongs(lineOrderId, n);
+        putLongs(lineCustId, n);
+        putLongs(linePrice, n);
+        putInts(lineDay, n);
+        putInts(lineProduct, n);
+        putInts(lineQuantity, n);
+        pad();
+        lineIndex.add(new long[] {channel.position(), n});
+        write(channel);
+        lineCount += n;
+        lineRows = 0;
+    }
+
+    private void flushOrders() throws IOException {
+        if (orderRows == 0) {
+            return;
+        }
+        int n = orderRows;
+        buffer.clear();
+        for (long[] column : orderLongs) {
+            putLongs(column, n);
+        }
+        putInts(orderDay, n);
+        pad();
+        // Offset within the spool for now; rebased in copyOrderSegments()
+        orderIndex.add(new long[] {orderSpool.position(), n});
+        write(orderSpool);
+        orderCount += n;
+        orderRows = 0;
+    }
+
+    private void copyOrderSegments() throws IOException {
+        long base = channel.position();
+        long size = orderSpool.position();
+        long copied = 0;
+        while (copied < size) {
+            copied += orderSpool.transferTo(copied, size - copied, channel);
+        }
+        channel.position(base + size);
+        for (long[] entry : orderIndex) {
+            entry[0] += base;
+        }
+    }
+
+    private void putLongs(long[] values, int n) {
+        for (int i = 0; i < n; i++) {
+            buffer.putLong(values[i]);
+        }
+    }
+
+    private void putInts(int[] values, int n) {
+        for (int i = 0; i < n; i++) {
+            buffer.putInt(values[i]);
+        }
+    }
+
+    private void pad() {
+        while (buffer.position() % 8 != 0) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    private void write(FileChannel target) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    // Entry: prod_id (long), name length (short), UTF-8 name
+    private void writeDictionary() throws IOException {
+        buffer.clear();
+        for (int i = 0; i < dictIds.size(); i++) {
+            byte[] name = dictNames.get(i).getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(name.length, Short.MAX_VALUE);
+            if (buffer.remaining() < 10 + length) {
+                write(channel);
+                buffer.clear();
+            }
+            buffer.putLong(dictIds.get(i));
+            buffer.putShort((short) length);
+            buffer.put(name, 0, length);
+        }
+        pad();
+        write(channel);
+    }
+
+    // Line segments first, then order segments: offset and row count for each
+    private void writeIndex() throws IOException {
+        buffer.clear();
+        for (List<long[]> index : Arrays.asList(lineIndex, orderIndex)) {
+            for (long[] entry : index) {
+                buffer.putLong(entry[0]);
+                buffer.putLong(entry[1]);
+            }
+        }
+        write(channel);
+    }
+
+    private void writeHeader(long dictionaryOffset, long indexOffset) throws IOException {
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(SEGMENT_ROWS);
+        buffer.putInt(lineIndex.size());
+        buffer.putInt(orderIndex.size());
+        buffer.putInt(dictIds.size());
+        buffer.putLong(lineCount);
+        buffer.putLong(orderCount);
+        buffer.putLong(dictionaryOffset);
+        buffer.putLong(indexOffset);
+        buffer.putLong(System.currentTimeMillis());
+        while (buffer.position() < HEADER_BYTES) {
+            buffer.put((byte) 0);
+        }
+        buffer.flip();
+        channel.write(buffer, 0);
+    }
+
+    // Command line entry point
+    // Options: --out file (default orders.ocf), --no-archives to export current orders only
+    public static void main(String[] args) {
+        String out = "orders.ocf";
+        boolean archives = true;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--out") && i + 1 < args.length) {
+                out = args[++i];
+            } else if (args[i].equals("--no-archives")) {
+                archives = false;
+            } else {
+                System.err.println("Usage: ColumnarExport [--out orders.ocf] [--no-archives]");
+                System.exit(2);
+            }
+        }
+
+        try {
+            long start = System.currentTimeMillis();
+            ColumnarExport export = new ColumnarExport(DB.getConn(), archives);
+            long lines = export.export(new File(out));
+            System.out.println("Exported " + export.orderCount + " orders and " + lines + " lines (" +
+                export.dictIds.size() + " products) to " + new File(out).getAbsolutePath() +
+                " in " + (System.currentTimeMillis() - start) + " ms");
+            DB.closeConn();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/**
+ * ColumnarReader.java
+ *
+ * Reader for the columnar order files written by ColumnarExport.
+ * Each segment is memory-mapped read-only and aggregated on its own thread,
+ * touching only the columns the aggregation needs; the per-segment results
+ * are merged at the end. Nothing here opens the SQLite database.
+ * Run with: ./mvnw exec:java@analyze -Dexec.args="orders.ocf --by product --from 2024-01-01"
+ */
+package aim.legacy.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+public class ColumnarReader {
+
+    // What line revenue is grouped by
+    public enum GroupBy { PRODUCT, CUSTOMER, MONTH }
+
+    private final long lineCount;
+    private final long orderCount;
+    private final long createdMillis;
+    private final MappedByteBuffer[] lineSegments;
+    private final int[] lineRows;
+    private final MappedByteBuffer[] orderSegments;
+    private final int[] orderRows;
+    private final long[] productIds;
+    private final String[] productNames;
+
+    public ColumnarReader(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, ColumnarExport.HEADER_BYTES);
+            if (header.getInt() != ColumnarExport.MAGIC) {
+                throw new IOException(file + " is not a columnar order file");
+            }
+            int version = header.getInt();
+            if (version != ColumnarExport.VERSION) {
+                throw new IOException(file + " has unsupported version " + version);
+            }
+            header.getInt();
+            int lineSegmentCount = header.getInt();
+            int orderSegmentCount = header.getInt();
+            int dictionarySize = header.getInt();
+            lineCount = header.getLong();
+            orderCount = header.getLong();
+            long dictionaryOffset = header.getLong();
+            long indexOffset = header.getLong();
+            createdMillis = header.getLong();
+
+            // Mappings stay valid after the channel is closed
+            ByteBuffer index = read(channel, indexOffset,
+                (lineSegmentCount + orderSegmentCount) * ColumnarExport.INDEX_ENTRY_BYTES);
+            lineSegments = new MappedByteBuffer[lineSegmentCount];
+            lineRows = new int[lineSegmentCount];
+            for (int i = 0; i < lineSegmentCount; i++) {
+                long offset = index.getLong();
+                lineRows[i] = (int) index.getLong();
+                lineSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                    (long) lineRows[i] * ColumnarExport.LINE_ROW_BYTES);
+            }
+            orderSegments = new MappedByteBuffer[orderSegmentCount];
+            orderRows = new int[orderSegmentCount];
+            for (int i = 0; i < orderSegmentCount; i++) {
+                long offset = index.getLong();
+                orderRows[i] = (int) index.getLong();
+                orderSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                    (long) orderRows[i] * ColumnarExport.ORDER_ROW_BYTES);
+            }
+
+            ByteBuffer dictionary = read(channel, dictionaryOffset, indexOffset - dictionaryOffset);
+            productIds = new long[dictionarySize];
+            productNames = new String[dictionarySize];
+            for (int i = 0; i < dictionarySize; i++) {
+                productIds[i] = dictionary.getLong();
+                byte[] name = new byte[dictionary.getShort()];
+                dictionary.get(name);
+                productNames[i] = new String(name, StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    public long getOrderCount() {
+        return orderCount;
+    }
+
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    // Column of a segment: the columns are laid out one after the other,
+    // longs first, each n values wide
+    private static LongBuffer longColumn(MappedByteBuffer segment, int n, int column) {
+        ByteBuffer slice = segment.duplicate();
+        slice.position(column * 8 * n);
+        slice.limit(slice.position() + 8 * n);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+
+    private static IntBuffer intColumn(MappedByteBuffer segment, int n, int longColumns, int column) {
+        ByteBuffer slice = segment.duplicate();
+        slice.position(longColumns * 8 * n + column * 4 * n);
+        slice.limit(slice.position() + 4 * n);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    // Sums per group key: line count, quantity and revenue (quantity * unit price) in cents
+    public static class Groups {
+        private long[] keys;
+        private long[] lines;
+        private long[] quantity;
+        private long[] revenue;
+        private boolean[] used;
+        private int size;
+
+        Groups() {
+            allocate(256);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            lines = new long[capacity];
+            quantity = new long[capacity];
+            revenue = new long[capacity];
+            used = new boolean[capacity];
+        }
+
+        // Open addressing on the key; grows at half full
+        void add(long key, long lineCount, long qty, long cents) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = (int) (mix(key) & mask);
+            while (used[slot] && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (!used[slot]) {
+                used[slot] = true;
+                keys[slot] = key;
+                size++;
+            }
+            lines[slot] += lineCount;
+            quantity[slot] += qty;
+            revenue[slot] += cents;
+        }
+
+        private void grow() {
+            long[] k = keys, l = lines, q = quantity, r = revenue;
+            boolean[] u = used;
+            allocate(keys.length * 2);
+            size = 0;
+            for (int i = 0; i < k.length; i++) {
+                if (u[i]) {
+                    add(k[i], l[i], q[i], r[i]);
+                }
+            }
+        }
+
+        private static long mix(long key) {
+            key *= 0x9E3779B97F4A7C15L;
+            return key ^ (key >>> 32);
+        }
+
+        Groups merge(Groups other) {
+            for (int i = 0; i < other.keys.length; i++) {
+                if (other.used[i]) {
+                    add(other.keys[i], other.lines[i], other.quantity[i], other.revenue[i]);
+                }
+            }
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // Keys ordered by revenue, highest first
+        public long[] topKeys(int limit) {
+            List<Integer> slots = new ArrayList<>();
+            for (int i = 0; i < keys.length; i++) {
+                if (used[i]) {
+                    slots.add(i);
+                }
+            }
+            slots.sort((a, b) -> Long.compare(revenue[b], revenue[a]));
+            long[] top = new long[Math.min(limit, slots.size())];
+            for (int i = 0; i < top.length; i++) {
+                top[i] = keys[slots.get(i)];
+            }
+            return top;
+        }
+
+        public long[] get(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) (mix(key) & mask);
+            while (used[slot]) {
+                if (keys[slot] == key) {
+                    return new long[] {lines[slot], quantity[slot], revenue[slot]};
+                }
+                slot = (slot + 1) & mask;
+            }
+            return new long[3];
+        }
+    }
+
+    // Line revenue grouped by product, customer or month, for lines dated
+    // fromDay (inclusive) to toDay (exclusive), both in days since 1970-01-01
+    public Groups groupLines(GroupBy by, int fromDay, int toDay) {
+        return IntStream.range(0, lineSegments.length).parallel()
+            .mapToObj(i -> groupSegment(i, by, fromDay, toDay))
+            .reduce(Groups::merge)
+            .orElseGet(Groups::new);
+    }
+
+    private Groups groupSegment(int segment, GroupBy by, int fromDay, int toDay) {
+        MappedByteBuffer buffer = lineSegments[segment];
+        int n = lineRows[segment];
+        LongBuffer custIds = by == GroupBy.CUSTOMER ? longColumn(buffer, n, 1) : null;
+        LongBuffer prices = longColumn(buffer, n, 2);
+        IntBuffer days = intColumn(buffer, n, 3, 0);
+        IntBuffer products = by == GroupBy.PRODUCT ? intColumn(buffer, n, 3, 1) : null;
+        IntBuffer quantities = intColumn(buffer, n, 3, 2);
+
+        Groups groups = new Groups();
+        // Products are dense codes, so they are summed in arrays and added to the map once
+        long[][] byProduct = by == GroupBy.PRODUCT ? new long[3][productIds.length] : null;
+        int cachedMonthDay = Integer.MIN_VALUE;
+        long cachedMonth = 0;
+        for (int i = 0; i < n; i++) {
+            int day = days.get(i);
+            if (day < fromDay || day >= toDay) {
+                continue;
+            }
+            int qty = quantities.get(i);
+            long cents = qty * prices.get(i);
+            if (byProduct != null) {
+                int code = products.get(i);
+                byProduct[0][code]++;
+                byProduct[1][code] += qty;
+                byProduct[2][code] += cents;
+            } else if (by == GroupBy.CUSTOMER) {
+                groups.add(custIds.get(i), 1, qty, cents);
+            } else {
+                // Lines of an order share a day, so consecutive rows mostly hit the cache
+                if (day != cachedMonthDay) {
+                    LocalDate date = LocalDate.ofEpochDay(day);
+                    cachedMonth = date.getYear() * 100L + date.getMonthValue();
+                    cachedMonthDay = day;
+                }
+                groups.add(cachedMonth, 1, qty, cents);
+            }
+        }
+        if (byProduct != null) {
+            for (int code = 0; code < productIds.length; code++) {
+                if (byProduct[0][code] > 0) {
+                    groups.add(code, byProduct[0][code], byProduct[1][code], byProduct[2][code]);
+                }
+            }
+        }
+        return groups;
+    }
+
+    // Order count and summed subtotal, discount, tax and total cents for orders
+    // dated fromDay (inclusive) to toDay (exclusive)
+    public long[] orderTotals(int fromDay, int toDay) {
+        return IntStream.range(0, orderSegments.length).parallel()
+            .mapToObj(i -> orderSegmentTotals(i, fromDay, toDay))
+            .reduce(new long[5], (a, b) -> {
+                long[] sum = new long[5];
+                for (int i = 0; i < 5; i++) {
+                    sum[i] = a[i] + b[i];
+                }
+                return sum;
+            });
+    }
+
+    private long[] orderSegmentTotals(int segment, int fromDay, int toDay) {
+        MappedByteBuffer buffer = orderSegments[segment];
+        int n = orderRows[segment];
+        LongBuffer[] amounts = new LongBuffer[4];
+        for (int c = 0; c < 4; c++) {
+            amounts[c] = longColumn(buffer, n, 2 + c);
+        }
+        IntBuffer days = intColumn(buffer, n, 6, 0);
+        long[] totals = new long[5];
+        for (int i = 0; i < n; i++) {
+            int day = days.get(i);
+            if (day < fromDay || day >= toDay) {
+                continue;
+            }
+            totals[0]++;
+            for (int c = 0; c < 4; c++) {
+                totals[c + 1] += amounts[c].get(i);
+            }
+        }
+        return totals;
+    }
+
+    // Display label for a group key
+    public String label(GroupBy by, long key) {
+        switch (by) {
+            case PRODUCT:
+                return productIds[(int) key] + " " + productNames[(int) key];
+            case MONTH:
+                return YearMonth.of((int) (key / 100), (int) (key % 100)).toString();
+            default:
+                return String.valueOf(key);
+        }
+    }
+
+    private static String money(long cents) {
+        return "$" + BigDecimal.valueOf(cents, 2).toPlainString();
+    }
+
+    // Command line entry point
+    // ColumnarReader file [--by product|customer|month] [--from yyyy-MM-dd] [--to yyyy-MM-dd] [--top n]
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            usage();
+        }
+        GroupBy by = GroupBy.PRODUCT;
+        int fromDay = Integer.MIN_VALUE;
+        int toDay = Integer.MAX_VALUE;
+        int top = 20;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--by") && i + 1 < args.length) {
+                    by = GroupBy.valueOf(args[++i].toUpperCase());
+                } else if (args[i].equals("--from") && i + 1 < args.length) {
+                    fromDay = (int) LocalDate.parse(args[++i]).toEpochDay();
+                } else if (args[i].equals("--to") && i + 1 < args.length) {
+                    toDay = (int) LocalDate.parse(args[++i]).toEpochDay() + 1;
+                } else if (args[i].equals("--top") && i + 1 < args.length) {
+                    top = Integer.parseInt(args[++i]);
+                } else {
+                    usage();
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            usage();
+        }
+
+        try {
+            long start = System.nanoTime();
+            ColumnarReader reader = new ColumnarReader(new File(args[0]));
+            long[] orders = reader.orderTotals(fromDay, toDay);
+            Groups groups = reader.groupLines(by, fromDay, toDay);
+            long millis = (System.nanoTime() - start) / 1000000;
+
+            System.out.println(String.format("Orders: %d   Subtotal: %s   Discount: %s   Tax: %s   Total: %s",
+                orders[0], money(orders[1]), money(orders[2]), money(orders[3]), money(orders[4])));
+            System.out.println(String.format("%-40s %12s %12s %16s", by.name().toLowerCase(), "lines", "quantity", "revenue"));
+            for (long key : groups.topKeys(top)) {
+                long[] sums = groups.get(key);
+                System.out.println(String.format("%-40s %12d %12d %16s", reader.label(by, key), sums[0], sums[1], money(sums[2])));
+            }
+            System.out.println("Scanned " + reader.getLineCount() + " lines and " + reader.getOrderCount() +
+                " orders in " + millis + " ms (" + groups.size() + " groups)");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ColumnarReader file.ocf [--by " +
+            Arrays.toString(GroupBy.values()).toLowerCase().replaceAll("[\\[\\] ]", "").replace(",", "|") +
+            "] [--from yyyy-MM-dd] [--to yyyy-MM-dd] [--top n]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * CustomerStats.java
+ *
+ * Lifetime order statistics per customer: order count, total spend and last
+ * order date, kept in the customer_stats table.
+ * Every writer of orders adjusts the row inside its own transaction, so the
+ * numbers are always consistent with the orders and never need a scan of the
+ * orders table to display. Archiving moves orders without touching the stats,
+ * so archived orders keep counting towards the lifetime totals.
+ * Spend is stored in cents to avoid drift from repeated floating point sums.
+ */
+package aim.legacy.db;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CustomerStats {
+
+    // Cents of an order total, rounded the same way everywhere
+    private static final String CENTS = "CAST(ROUND(total * 100) AS INTEGER)";
+
+    // Later of the stored and incoming last order dates, either of which may be null
+    private static final String LATEST =
+        "NULLIF(MAX(COALESCE(last_order_date, ''), COALESCE(excluded.last_order_date, '')), '')";
+
+    public final long custId;
+    public final long orderCount;
+    public final long lifetimeCents;
+    public final String lastOrderDate;
+
+    CustomerStats(long custId, long orderCount, long lifetimeCents, String lastOrderDate) {
+        this.custId = custId;
+        this.orderCount = orderCount;
+        this.lifetimeCents = lifetimeCents;
+        this.lastOrderDate = lastOrderDate;
+    }
+
+    // A customer's row is removed with the customer
+    static void ensureTable(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE IF NOT EXISTS customer_stats (" +
+            "cust_id INTEGER PRIMARY KEY REFERENCES customer(cust_id) ON DELETE CASCADE, " +
+            "order_count INTEGER NOT NULL, " +
+            "lifetime_cents INTEGER NOT NULL, " +
+            "last_order_date TEXT)");
+        stmt.close();
+    }
+
+    // Statistics for one customer; a customer without orders has all zeros
+    public static CustomerStats load(Connection conn, long custId) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT order_count, lifetime_cents, last_order_date FROM customer_stats WHERE cust_id = ?");
+        ps.setLong(1, custId);
+        ResultSet rs = ps.executeQuery();
+        CustomerStats stats = rs.next()
+            ? new CustomerStats(custId, rs.getLong(1), rs.getLong(2), rs.getString(3))
+            : new CustomerStats(custId, 0, 0, null);
+        rs.close();
+        ps.close();
+        return stats;
+    }
+
+    // Count an order that was just inserted, or re-count one after an update
+    // Must run in the transaction that wrote the order
+    public static void orderAdded(Connection conn, long orderId) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(
+            "INSERT INTO customer_stats (cust_id, order_count, lifetime_cents, last_order_date) " +
+            "SELECT cust_id, 1, " + CENTS + ", order_date FROM orders WHERE order_id = ? " +
+            "ON CONFLICT(cust_id) DO UPDATE SET " +
+            "order_count = order_count + 1, " +
+            "lifetime_cents = lifetime_cents + excluded.lifetime_cents, " +
+            "last_order_date = " + LATEST);
+        ps.setLong(1, orderId);
+        ps.executeUpdate();
+        ps.close();
+    }
+
+    // Uncount an order that is about to be updated or deleted
+    // Must run in the same transaction, before the order row changes
+    // Returns the order's customer, or 0 if the order does not exist
+    public static long orderRemoving(Connection conn, long orderId) throws SQLException {
+        long custId = 0;
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT cust_id, " + CENTS + " FROM orders WHERE order_id = ?");
+        ps.setLong(1, orderId);
+        ResultSet rs = ps.executeQuery();
+        long cents = 0;
+        if (rs.next()) {
+            custId = rs.getLong(1);
+            cents = rs.getLong(2);
+        }
+        rs.close();
+        ps.close();
+        if (custId != 0) {
+            subtract(conn, custId, 1, cents);
+        }
+        return custId;
+    }
+
+    // Set-based form of orderRemoving for a chunk of orders being deleted together
+    // Returns the customers affected; pass them to refreshLastOrder after the delete
+    static List<Long> ordersRemoving(Connection conn, String idList, long[] ids, int from, int to) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT cust_id, COUNT(*), SUM(" + CENTS + ") FROM orders WHERE order_id IN (" + idList + ") GROUP BY cust_id");
+        for (int i = from; i < to; i++) {
+            ps.setLong(i - from + 1, ids[i]);
+        }
+        ResultSet rs = ps.executeQuery();
+        List<Long> custIds = new ArrayList<>();
+        List<long[]> deltas = new ArrayList<>();
+        while (rs.next()) {
+            custIds.add(rs.getLong(1));
+            deltas.add(new long[] {rs.getLong(2), rs.getLong(3)});
+        }
+        rs.close();
+        ps.close();
+
+        for (int i = 0; i < custIds.size(); i++) {
+            subtract(conn, custIds.get(i), deltas.get(i)[0], deltas.get(i)[1]);
+        }
+        return custIds;
+    }
+
+    private static void subtract(Connection conn, long custId, long count, long cents) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(
+            "UPDATE customer_stats SET order_count = order_count - ?, lifetime_cents = lifetime_cents - ? " +
+            "WHERE cust_id = ?");
+        ps.setLong(1, count);
+        ps.setLong(2, cents);
+        ps.setLong(3, custId);
+        ps.executeUpdate();
+        ps.close();
+    }
+
+    // Add a duplicate customer's statistics to the customer it is merged into
+    // Must run in the transaction that moves the orders, before the duplicate is deleted
+    static void customerMerged(Connection conn, long keepId, long duplicateId) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(
+            "INSERT INTO customer_stats (cust_id, order_count, lifetime_cents, last_order_date) " +
+            "SELECT ?, order_count, lifetime_cents, last_order_date FROM customer_stats WHERE cust_id = ? " +
+            "ON CONFLICT(cust_id) DO UPDATE SET " +
+            "order_count = order_count + excluded.order_count, " +
+            "lifetime_cents = lifetime_cents + excluded.lifetime_cents, " +
+            "last_order_date = " + LATEST);
+        ps.setLong(1, keepId);
+        ps.setLong(2, duplicateId);
+        ps.executeUpdate();
+        ps.close();
+    }
+    
+    // Recompute the last order date after orders were deleted
+    // Uses the (cust_id, order_date) index; archive files are only consulted when the
+    // customer has none left in the live table. They are opened on their own connection
+    // because ATTACH is not allowed inside the caller's transaction.
+    public static void refreshLastOrder(Connection conn, long custId) throws SQLException {
+        String last = lastOrderDate(conn, custId);
+        if (last == null && load(conn, custId).orderCount > 0) {
+            for (int year : OrderArchive.listYears(conn)) {
+                Connection archiveConn = DriverManager.getConnection(
+                    "jdbc:sqlite:" + OrderArchive.getArchiveFile(year).getPath());
+                try {
+                    last = lastOrderDate(archiveConn, custId);
+                } finally {
+                    archiveConn.close();
+                }
+                if (last != null) {
+                    break;
+                }
+            }
+        }
+        PreparedStatement ps = conn.prepareStatement(
+            "UPDATE customer_stats SET last_order_date = ? WHERE cust_id = ?");
+        ps.setString(1, last);
+        ps.setLong(2, custId);
+        ps.executeUpdate();
+        ps.close();
+    }
+
+    private static String lastOrderDate(Connection conn, long custId) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT MAX(order_date) FROM orders WHERE cust_id = ?");
+        ps.setLong(1, custId);
+        ResultSet rs = ps.executeQuery();
+        String last = rs.next() ? rs.getString(1) : null;
+        rs.close();
+        ps.close();
+        return last;
+    }
+
+    // Recompute every customer's statistics from the live orders and all archives
+    // Used when the table is first created on an existing database. Archives are
+    // attached one at a time, so this runs outside a transaction; it starts from an
+    // empty table and can simply be run again if interrupted.
+    public static void rebuild(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("DELETE FROM customer_stats");
+        accumulate(stmt, OrderArchive.MAIN);
+        for (int year : OrderArchive.listYears(conn)) {
+            accumulate(stmt, OrderArchive.attach(conn, year));
+        }
+        stmt.close();
+    }
+
+    // Archives may still hold orders of customers deleted since; those are skipped
+    private static void accumulate(Statement stmt, String schema) throws SQLException {
+        stmt.execute(
+            "INSERT INTO customer_stats (cust_id, order_count, lifetime_cents, last_order_date) " +
+            "SELECT cust_id, COUNT(*), SUM(" + CENTS + "), MAX(order_date) FROM " + schema + ".orders " +
+            "WHERE cust_id IN (SELECT cust_id FROM main.customer) GROUP BY cust_id " +
+            "ON CONFLICT(cust_id) DO UPDATE SET " +
+            "order_count = order_count + excluded.order_count, " +
+            "lifetime_cents = lifetime_cents + excluded.lifetime_cents, " +
+            "last_order_date = " + LATEST);
+    }
+}
@@ -11,16 +11,27 @@ import java.sql.*;
 public class DB {
     
     private static Connection conn;
-    private static final String DB_FILE = "orderentry.db";
+    // Database file can be overridden with -Dorderentry.db=<path> (e.g. a generated dataset)
+    private static final String DB_FILE = System.getProperty("orderentry.db", "orderentry.db");
+    
+    // Current schema version; see migrate()
+    private static final int SCHEMA_VERSION = 5;
     
     // Returns database connection, creates new if needed
     // Note: Connection is thread-safe due to synchronization
-    public static Connection getConn() {
+    public static synchronized Connection getConn() {
         if (conn == null) {
             try {
                 Class.forName("org.sqlite.JDBC");
-                conn = DriverManager.getConnection("jdbc:sqlite:" + DB_FILE);
+                conn = Diagnostics.instrument(DriverManager.getConnection("jdbc:sqlite:" + DB_FILE));
+                StorageProfile.current().apply(conn);
                 initDB();
+                
+                Statement stmt = conn.createStatement();
+                stmt.execute("PRAGMA foreign_keys = ON");
+                // Background writers (audit log, inventory flusher) hold the write lock briefly
+                stmt.execute("PRAGMA busy_timeout = 5000");
+                stmt.close();
             } catch (Exception e) {
                 e.printStackTrace();
                 System.exit(1);
@@ -29,50 +40,253 @@ public class DB {
         return conn;
     }
     
+    // Additional connection to the same database, e.g. for reader threads of the server
+    // The schema is created by getConn() first; callers close the connection themselves
+    public static Connection openConnection() throws SQLException {
+        getConn();
+        Connection extra = Diagnostics.instrument(DriverManager.getConnection("jdbc:sqlite:" + DB_FILE));
+        StorageProfile.current().apply(extra);
+        Statement stmt = extra.createStatement();
+        stmt.execute("PRAGMA foreign_keys = ON");
+        stmt.execute("PRAGMA busy_timeout = 5000");
+        stmt.close();
+        return extra;
+    }
+    
+    // Path of the database file in use
+    // Other stores (archives, backups) are placed relative to it
+    public static String getDbFile() {
+        return DB_FILE;
+    }
+    
     // Initialize database schema and seed with initial data if empty
     // Creates all required tables with proper foreign keys
     private static void initDB() {
         try {
+            createSchema(conn);
+            migrate();
+            // Archived orders of merges a crash interrupted
+            DuplicateCustomers.finishArchived(conn);
+            
             Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM customer");
+            if (rs.next() && rs.getInt(1) == 0) {
+                seedData();
+            }
             
-            stmt.execute("CREATE TABLE IF NOT EXISTS customer (" +
+            stmt.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    // Create all tables if they do not exist yet
+    // Shared with DataGenerator so generated databases match the application schema
+    static void createSchema(Connection conn) throws SQLException {
+        createSchema(conn, true);
+    }
+    
+    // Archive files are created without foreign keys since they hold no customers
+    static void createSchema(Connection conn, boolean foreignKeys) throws SQLException {
+        Statement stmt = conn.createStatement();
+        
+        stmt.execute("CREATE TABLE IF NOT EXISTS customer (" +
                 "cust_id INTEGER PRIMARY KEY, " +
                 "cust_name TEXT NOT NULL, " +
                 "email TEXT, " +
                 "phone TEXT, " +
                 "address TEXT)");
-            
-            stmt.execute("CREATE TABLE IF NOT EXISTS product (" +
+        
+        stmt.execute("CREATE TABLE IF NOT EXISTS product (" +
                 "prod_id INTEGER PRIMARY KEY, " +
                 "prod_name TEXT NOT NULL, " +
                 "unit_price REAL NOT NULL)");
-            
-            stmt.execute("CREATE TABLE IF NOT EXISTS orders (" +
+        
+        stmt.execute(ordersDdl("orders", foreignKeys));
+        stmt.execute(orderLineDdl("order_line", foreignKeys));
+        createIndexes(stmt);
+        if (foreignKeys) {
+            CustomerStats.ensureTable(conn);
+            AuditLog.ensureTable(conn);
+            Inventory.ensureTables(conn);
+            IdempotencyKeys.ensureTable(conn);
+            DuplicateCustomers.ensureTable(conn);
+            OrderArchive.ensureCatalog(conn);
+        }
+        
+        stmt.close();
+    }
+    
+    // Columns of the version 1 orders table, for copies that must not depend on column order
+    private static final String ORDER_COLUMNS =
+        "order_id, cust_id, cust_name, order_date, subtotal, discount, tax, total";
+    
+    private static final String ORDER_TS_EXPR = "CAST(strftime('%s', order_date) AS INTEGER)";
+    
+    // With foreign keys, deleting a customer removes its orders (here) and
+    // deleting an order removes its lines (orderLineDdl)
+    private static String ordersDdl(String table, boolean foreignKeys) {
+        return "CREATE TABLE IF NOT EXISTS " + table + " (" +
                 "order_id INTEGER PRIMARY KEY, " +
-                "cust_id INTEGER NOT NULL, " +
+                "cust_id INTEGER NOT NULL" +
+                (foreignKeys ? " REFERENCES customer(cust_id) ON DELETE CASCADE" : "") + ", " +
                 "cust_name TEXT, " +
                 "order_date TEXT, " +
                 "subtotal REAL, " +
                 "discount REAL, " +
                 "tax REAL, " +
-                "total REAL)");
-            
-            stmt.execute("CREATE TABLE IF NOT EXISTS order_line (" +
+                "total REAL, " +
+                "order_ts INTEGER)";
+    }
+    
+    private static String orderLineDdl(String table, boolean foreignKeys) {
+        return "CREATE TABLE IF NOT EXISTS " + table + " (" +
                 "line_id INTEGER PRIMARY KEY, " +
-                "order_id INTEGER NOT NULL, " +
+                "order_id INTEGER NOT NULL" +
+                (foreignKeys ? " REFERENCES orders(order_id) ON DELETE CASCADE" : "") + ", " +
                 "prod_id INTEGER, " +
                 "prod_name TEXT, " +
                 "quantity INTEGER, " +
-                "unit_price REAL)");
+                "unit_price REAL)";
+    }
+    
+    // Child-side indexes so cascades and per-order line lookups do not scan whole tables
+    // The orders index also covers a customer's order history, newest first.
+    // idx_order_line_prod is the product -> orders lookup: each product's order ids in
+    // order, read without touching the lines (built once on first start after upgrading)
+    private static void createIndexes(Statement stmt) throws SQLException {
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_orders_cust_date ON orders(cust_id, order_date, total)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_order_line_order ON order_line(order_id)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_order_line_prod ON order_line(prod_id, order_id)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_product_name ON product(prod_name COLLATE NOCASE)");
+    }
+    
+    // Bring databases created by older versions up to SCHEMA_VERSION
+    // The version is tracked in PRAGMA user_version
+    private static void migrate() throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("PRAGMA user_version");
+        int version = rs.next() ? rs.getInt(1) : 0;
+        rs.close();
+        
+        if (version < 1) {
+            migrateForeignKeys();
+        }
+        if (version < 2) {
+            ensureOrderTimestamps(conn);
+        }
+        if (version < 3) {
+            // idx_orders_cust_date starts with cust_id and replaces the old index
+            stmt.execute("DROP INDEX IF EXISTS idx_orders_cust");
+            CustomerStats.rebuild(conn);
+        }
+        if (version < 4) {
+            OrderArchive.addMaxLineIds(conn);
+        }
+        if (version < 5) {
+            Inventory.recountReserved(conn);
+        }
+        
+        if (version < SCHEMA_VERSION) {
+            stmt.execute("PRAGMA user_version = " + SCHEMA_VERSION);
+        }
+        stmt.close();
+    }
+    
+    // Version 1: rebuild orders and order_line with ON DELETE CASCADE foreign keys
+    // SQLite cannot add a constraint to an existing table, so the tables are copied.
+    // Orders left behind by earlier customer deletes are removed first, as the
+    // cascade would have done.
+    private static void migrateForeignKeys() throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("PRAGMA foreign_key_list(order_line)");
+        boolean hasForeignKeys = rs.next();
+        rs.close();
+        if (hasForeignKeys) {
+            stmt.close();
+            return;
+        }
+        
+        stmt.execute("PRAGMA foreign_keys = OFF");
+        conn.setAutoCommit(false);
+        try {
+            int orphanOrders = stmt.executeUpdate(
+                "DELETE FROM orders WHERE cust_id NOT IN (SELECT cust_id FROM customer)");
+            int orphanLines = stmt.executeUpdate(
+                "DELETE FROM order_line WHERE order_id NOT IN (SELECT order_id FROM orders)");
             
-            ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM customer");
-            if (rs.next() && rs.getInt(1) == 0) {
-                seedData();
-            }
+            stmt.execute(ordersDdl("orders_new", true));
+            stmt.execute("INSERT INTO orders_new (" + ORDER_COLUMNS + ") SELECT " + ORDER_COLUMNS + " FROM orders");
+            stmt.execute("DROP TABLE orders");
+            stmt.execute("ALTER TABLE orders_new RENAME TO orders");
             
+            stmt.execute(orderLineDdl("order_line_new", true));
+            stmt.execute("INSERT INTO order_line_new SELECT * FROM order_line");
+            stmt.execute("DROP TABLE order_line");
+            stmt.execute("ALTER TABLE order_line_new RENAME TO order_line");
+            
+            createIndexes(stmt);
+            conn.commit();
+            
+            if (orphanOrders > 0 || orphanLines > 0) {
+                System.out.println("Schema migration removed " + orphanOrders + " orphaned orders and " +
+                    orphanLines + " orphaned order lines");
+            }
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+            stmt.execute("PRAGMA foreign_keys = ON");
             stmt.close();
+        }
+    }
+    
+    // Version 2: order_ts holds order_date as epoch seconds (UTC) so date-range and
+    // amount filters can use an index instead of comparing text on every row.
+    // Also used to upgrade archive files, which carry their own orders table.
+    // Writers set order_ts next to order_date; the triggers cover any that do not.
+    static void ensureOrderTimestamps(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        boolean hasColumn = false;
+        ResultSet rs = stmt.executeQuery("PRAGMA table_info(orders)");
+        while (rs.next()) {
+            if ("order_ts".equals(rs.getString("name"))) {
+                hasColumn = true;
+            }
+        }
+        rs.close();
+        
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            if (!hasColumn) {
+                stmt.execute("ALTER TABLE orders ADD COLUMN order_ts INTEGER");
+            }
+            // Backfill before indexing so the index is built once, not row by row
+            int filled = stmt.executeUpdate(
+                "UPDATE orders SET order_ts = " + ORDER_TS_EXPR + " WHERE order_ts IS NULL");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_orders_ts_total ON orders(order_ts, total)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_orders_total ON orders(total)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_customer_name ON customer(cust_name COLLATE NOCASE)");
+            stmt.execute("CREATE TRIGGER IF NOT EXISTS trg_orders_ts_insert AFTER INSERT ON orders " +
+                "WHEN NEW.order_ts IS NULL BEGIN " +
+                "UPDATE orders SET order_ts = CAST(strftime('%s', NEW.order_date) AS INTEGER) " +
+                "WHERE order_id = NEW.order_id; END");
+            stmt.execute("CREATE TRIGGER IF NOT EXISTS trg_orders_ts_update AFTER UPDATE OF order_date ON orders " +
+                "BEGIN " +
+                "UPDATE orders SET order_ts = CAST(strftime('%s', NEW.order_date) AS INTEGER) " +
+                "WHERE order_id = NEW.order_id; END");
+            conn.commit();
+            if (filled > 1000) {
+                System.out.println("Schema migration added order timestamps to " + filled + " orders");
+            }
         } catch (SQLException e) {
-            e.printStackTrace();
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+            stmt.close();
         }
     }
     
@@ -101,17 +315,34 @@ public class DB {
         
         // Sample orders with pre-calculated totals
         // Order 1: Total should be around $2100 with 5% discount applied
-        stmt.execute("INSERT INTO orders VALUES (1, 1, 'John Doe', '2024-01-15 10:30:00', 1929.97, 96.50, 274.99, 2108.46)");
+        stmt.execute("INSERT INTO orders (" + ORDER_COLUMNS + ") VALUES (1, 1, 'John Doe', '2024-01-15 10:30:00', 1929.97, 96.50, 274.99, 2108.46)");
         stmt.execute("INSERT INTO order_line VALUES (1, 1, 1, 'Laptop', 1, 1299.99)");
         stmt.execute("INSERT INTO order_line VALUES (2, 1, 3, 'Tablet', 1, 599.99)");
         stmt.execute("INSERT INTO order_line VALUES (3, 1, 6, 'Mouse', 1, 29.99)");
         
         // Order 2: Smaller order with standard tax calculation
-        stmt.execute("INSERT INTO orders VALUES (2, 2, 'Jane Smith', '2024-01-16 14:15:00', 549.98, 27.50, 78.38, 600.86)");
+        stmt.execute("INSERT INTO orders (" + ORDER_COLUMNS + ") VALUES (2, 2, 'Jane Smith', '2024-01-16 14:15:00', 549.98, 27.50, 78.38, 600.86)");
         stmt.execute("INSERT INTO order_line VALUES (4, 2, 4, 'Monitor', 1, 349.99)");
         stmt.execute("INSERT INTO order_line VALUES (5, 2, 7, 'Headphones', 1, 199.99)");
         
         stmt.close();
+        CustomerStats.rebuild(conn);
+    }
+    
+    // Cheap fingerprint of the customer and order data, read from primary key indexes only
+    // Changes when rows are added (highest ids), archived (archived order count) or edited
+    // through the application (highest audit id); screens compare it to skip reloading
+    // Read-only: order_archive is created with the schema when the database is opened
+    public static String changeToken(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT (SELECT MAX(audit_id) FROM audit_log), " +
+            "(SELECT MAX(cust_id) FROM customer), (SELECT MAX(order_id) FROM orders), " +
+            "(SELECT SUM(order_count) FROM order_archive)");
+        rs.next();
+        String token = rs.getLong(1) + "/" + rs.getLong(2) + "/" + rs.getLong(3) + "/" + rs.getLong(4);
+        rs.close();
+        stmt.close();
+        return token;
     }
     
     // Close database connection when application shuts down
@@ -0,0 +1,394 @@
+/**
+ * DataGenerator.java
+ *
+ * Headless generator for large, reproducible test databases.
+ * Creates customers, products, orders and order lines from a fixed seed so that
+ * benchmarks and load tests can always start from exactly the same dataset.
+ * Run with: ./mvnw exec:java@generate -Dexec.args="--out big.db --orders 1000000"
+ */
+package aim.legacy.db;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class DataGenerator {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final String[] FIRST_NAMES = {
+        "John", "Jane", "Bob", "Alice", "Charlie", "Maria", "David", "Sarah", "Michael", "Emma",
+        "James", "Olivia", "Robert", "Sophia", "William", "Isabella", "Daniel", "Mia", "Thomas", "Chloe",
+        "Luc", "Julie", "Marc", "Nathalie", "Pierre", "Camille", "Louis", "Gabrielle", "Simon", "Lea"
+    };
+
+    private static final String[] LAST_NAMES = {
+        "Doe", "Smith", "Johnson", "Williams", "Brown", "Jones", "Miller", "Davis", "Wilson", "Moore",
+        "Taylor", "Anderson", "Thomas", "Jackson", "White", "Harris", "Martin", "Thompson", "Garcia", "Clark",
+        "Tremblay", "Gagnon", "Roy", "Cote", "Bouchard", "Gauthier", "Morin", "Lavoie", "Fortin", "Gagne"
+    };
+
+    private static final String[] STREETS = {
+        "Main St", "Oak Ave", "Pine Rd", "Elm St", "Maple Dr", "Cedar Ln", "Birch Blvd", "Park Ave",
+        "Lake Rd", "Hill St", "River Rd", "King St", "Queen St", "Church St", "Mill Rd", "Station Rd"
+    };
+
+    private static final String[] EMAIL_DOMAINS = {
+        "email.com", "mail.com", "example.org", "corp.net", "business.ca"
+    };
+
+    // Product families with their price range in whole dollars
+    private static final String[] PRODUCT_FAMILIES = {
+        "Laptop", "Smartphone", "Tablet", "Monitor", "Keyboard", "Mouse", "Headphones", "Webcam",
+        "USB Hub", "Desk Lamp", "Printer", "Router", "Speaker", "Dock", "Charger", "Cable"
+    };
+    private static final int[] FAMILY_MIN_PRICE = {
+        699, 299, 199, 129, 29, 9, 39, 39, 19, 19, 99, 59, 29, 99, 15, 5
+    };
+    private static final int[] FAMILY_MAX_PRICE = {
+        2999, 1499, 1199, 999, 249, 129, 499, 199, 89, 129, 699, 399, 499, 349, 99, 49
+    };
+
+    private static final String[] PRODUCT_GRADES = {
+        "Basic", "Standard", "Plus", "Pro", "Max", "Ultra"
+    };
+
+    private final long seed;
+    private final int customers;
+    private final int products;
+    private final int orders;
+    private final double linesMean;
+    private final int linesMax;
+    private final double bulkRate;
+    private final int bulkLines;
+    private final int years;
+    private final LocalDateTime endDate;
+    private final int batchSize;
+
+    private final Random random;
+
+    // Generated catalog kept in memory so order lines can reference it
+    private String[] productNames;
+    private long[] productPriceCents;
+    private String[] customerNames;
+
+    // Cumulative popularity weights for Zipf-like product and customer selection
+    private double[] productWeights;
+    private double[] customerWeights;
+
+    public DataGenerator(long seed, int customers, int products, int orders,
+                         double linesMean, int linesMax, double bulkRate, int bulkLines,
+                         int years, LocalDateTime endDate, int batchSize) {
+        this.seed = seed;
+        this.customers = customers;
+        this.products = products;
+        this.orders = orders;
+        this.linesMean = linesMean;
+        this.linesMax = linesMax;
+        this.bulkRate = bulkRate;
+        this.bulkLines = bulkLines;
+        this.years = years;
+        this.endDate = endDate;
+        this.batchSize = batchSize;
+        this.random = new Random(seed);
+    }
+
+    // Generate the full dataset into the given database file
+    // The file must not exist yet so results are always reproducible
+    public void generate(String dbFile) throws SQLException {
+        File file = new File(dbFile);
+        if (file.exists()) {
+            throw new IllegalStateException("Database file already exists: " + dbFile + " (use --force to overwrite)");
+        }
+
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile);
+        try {
+            Statement stmt = conn.createStatement();
+            // Nothing to protect while building a throwaway file, so skip journaling entirely
+            stmt.execute("PRAGMA journal_mode = OFF");
+            stmt.execute("PRAGMA synchronous = OFF");
+            stmt.execute("PRAGMA cache_size = -65536");
+            DB.createSchema(conn);
+            conn.setAutoCommit(false);
+
+            long start = System.currentTimeMillis();
+            generateCustomers(conn);
+            generateProducts(conn);
+            long lines = generateOrders(conn);
+            conn.commit();
+
+            conn.setAutoCommit(true);
+            DB.ensureOrderTimestamps(conn);
+            stmt.execute("PRAGMA journal_mode = DELETE");
+            stmt.close();
+
+            long elapsed = System.currentTimeMillis() - start;
+            System.out.println("Generated " + customers + " customers, " + products + " products, " +
+                orders + " orders, " + lines + " lines in " + (elapsed / 1000.0) + "s (seed " + seed + ")");
+        } finally {
+            conn.close();
+        }
+    }
+
+    private void generateCustomers(Connection conn) throws SQLException {
+        customerNames = new String[customers];
+        PreparedStatement ps = conn.prepareStatement(
+            "INSERT INTO customer (cust_id, cust_name, email, phone, address) VALUES (?, ?, ?, ?, ?)");
+
+        for (int i = 0; i < customers; i++) {
+            long id = i + 1;
+            String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            String name = first + " " + last;
+            customerNames[i] = name;
+
+            ps.setLong(1, id);
+            ps.setString(2, name);
+            ps.setString(3, first.toLowerCase() + "." + last.toLowerCase() + id + "@" +
+                EMAIL_DOMAINS[random.nextInt(EMAIL_DOMAINS.length)]);
+            ps.setString(4, String.format("555-%04d", random.nextInt(10000)));
+            ps.setString(5, (1 + random.nextInt(9999)) + " " + STREETS[random.nextInt(STREETS.length)]);
+            ps.addBatch();
+
+            if ((i + 1) % batchSize == 0) {
+                ps.executeBatch();
+                conn.commit();
+            }
+        }
+        ps.executeBatch();
+        conn.commit();
+        ps.close();
+
+        customerWeights = cumulativeZipf(customers, 0.6);
+    }
+
+    private void generateProducts(Connection conn) throws SQLException {
+        productNames = new String[products];
+        productPriceCents = new long[products];
+        PreparedStatement ps = conn.prepareStatement(
+            "INSERT INTO product (prod_id, prod_name, unit_price) VALUES (?, ?, ?)");
+
+        for (int i = 0; i < products; i++) {
+            int family = random.nextInt(PRODUCT_FAMILIES.length);
+            String grade = PRODUCT_GRADES[random.nextInt(PRODUCT_GRADES.length)];
+            String name = PRODUCT_FAMILIES[family] + " " + grade + " " + (100 + i);
+            int dollars = FAMILY_MIN_PRICE[family] + random.nextInt(FAMILY_MAX_PRICE[family] - FAMILY_MIN_PRICE[family] + 1);
+            long cents = dollars * 100L - 1;
+            productNames[i] = name;
+            productPriceCents[i] = cents;
+
+            ps.setLong(1, i + 1);
+            ps.setString(2, name);
+            ps.setDouble(3, cents / 100.0);
+            ps.addBatch();
+
+            if ((i + 1) % batchSize == 0) {
+                ps.executeBatch();
+                conn.commit();
+            }
+        }
+        ps.executeBatch();
+        conn.commit();
+        ps.close();
+
+        productWeights = cumulativeZipf(products, 1.0);
+    }
+
+    // Orders are spread evenly over the date window so order ids grow with time,
+    // matching how the application allocates ids in production
+    private long generateOrders(Connection conn) throws SQLException {
+        PreparedStatement orderPs = conn.prepareStatement(
+            "INSERT INTO orders (order_id, cust_id, cust_name, order_date, subtotal, discount, tax, total, order_ts) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement linePs = conn.prepareStatement(
+            "INSERT INTO order_line (line_id, order_id, prod_id, prod_name, quantity, unit_price) " +
+            "VALUES (?, ?, ?, ?, ?, ?)");
+
+        long endEpoch = endDate.toEpochSecond(ZoneOffset.UTC);
+        long startEpoch = endDate.minusYears(years).toEpochSecond(ZoneOffset.UTC);
+        double secondsPerOrder = orders > 0 ? (endEpoch - startEpoch) / (double) orders : 0;
+
+        long lineId = 0;
+        long pendingRows = 0;
+        int progressStep = Math.max(1, orders / 20);
+
+        for (int i = 0; i < orders; i++) {
+            long orderId = i + 1;
+            int custIndex = pick(customerWeights);
+            long epoch = Math.min(startEpoch + (long) (i * secondsPerOrder) + random.nextInt(60), endEpoch);
+            String orderDate = LocalDateTime.ofEpochSecond(epoch, 0, ZoneOffset.UTC).format(DATE_FORMAT);
+
+            int lineCount = nextLineCount();
+            long subtotal = 0;
+            for (int l = 0; l < lineCount; l++) {
+                int prodIndex = pick(productWeights);
+                int qty = 1 + nextGeometric(0.6, 99);
+                long price = productPriceCents[prodIndex];
+                subtotal += price * qty;
+
+                linePs.setLong(1, ++lineId);
+                linePs.setLong(2, orderId);
+                linePs.setLong(3, prodIndex + 1);
+                linePs.setString(4, productNames[prodIndex]);
+                linePs.setInt(5, qty);
+                linePs.setDouble(6, price / 100.0);
+                linePs.addBatch();
+                pendingRows++;
+            }
+
+            long discount = discountCents(subtotal);
+            long tax = taxCents(subtotal - discount);
+            long total = subtotal - discount + tax;
+
+            orderPs.setLong(1, orderId);
+            orderPs.setLong(2, custIndex + 1);
+            orderPs.setString(3, customerNames[custIndex]);
+            orderPs.setString(4, orderDate);
+            orderPs.setDouble(5, subtotal / 100.0);
+            orderPs.setDouble(6, discount / 100.0);
+            orderPs.setDouble(7, tax / 100.0);
+            orderPs.setDouble(8, total / 100.0);
+            orderPs.setLong(9, epoch);
+            orderPs.addBatch();
+            pendingRows++;
+
+            if (pendingRows >= batchSize) {
+                orderPs.executeBatch();
+                linePs.executeBatch();
+                conn.commit();
+                pendingRows = 0;
+            }
+
+            if ((i + 1) % progressStep == 0) {
+                System.out.println("  " + (i + 1) + " / " + orders + " orders, " + lineId + " lines");
+            }
+        }
+        orderPs.executeBatch();
+        linePs.executeBatch();
+        conn.commit();
+        orderPs.close();
+        linePs.close();
+        return lineId;
+    }
+
+    // Discount and tax use the built-in OrderRules, not a rules file, so the
+    // same seed always produces the same totals
+    private static long discountCents(long subtotal) {
+        return OrderRules.builtIn().discount(BigDecimal.valueOf(subtotal, 2)).movePointRight(2).longValueExact();
+    }
+
+    private static long taxCents(long taxable) {
+        return OrderRules.builtIn().tax(BigDecimal.valueOf(taxable, 2)).movePointRight(2).longValueExact();
+    }
+
+    // Most orders are small; a small fraction are large B2B orders
+    private int nextLineCount() {
+        if (bulkRate > 0 && random.nextDouble() < bulkRate) {
+            return bulkLines / 2 + random.nextInt(bulkLines / 2 + 1);
+        }
+        double p = 1.0 / Math.max(1.0, linesMean);
+        return 1 + nextGeometric(1.0 - p, linesMax - 1);
+    }
+
+    // Number of failures before the first success, capped at max
+    private int nextGeometric(double continueProbability, int max) {
+        int n = 0;
+        while (n < max && random.nextDouble() < continueProbability) {
+            n++;
+        }
+        return n;
+    }
+
+    private int pick(double[] cumulative) {
+        double r = random.nextDouble() * cumulative[cumulative.length - 1];
+        int lo = 0;
+        int hi = cumulative.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] < r) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static double[] cumulativeZipf(int n, double exponent) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        return cumulative;
+    }
+
+    // Command line entry point
+    // Arguments are --name value pairs; see usage() for the full list
+    public static void main(String[] args) {
+        Map<String, String> opts = new LinkedHashMap<>();
+        opts.put("out", "generated.db");
+        opts.put("seed", "42");
+        opts.put("customers", "10000");
+        opts.put("products", "1000");
+        opts.put("orders", "100000");
+        opts.put("lines-mean", "4");
+        opts.put("lines-max", "50");
+        opts.put("bulk-rate", "0.001");
+        opts.put("bulk-lines", "2000");
+        opts.put("years", "5");
+        opts.put("end-date", "2024-12-31");
+        opts.put("batch", "20000");
+
+        boolean force = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--force")) {
+                force = true;
+            } else if (arg.startsWith("--") && opts.containsKey(arg.substring(2)) && i + 1 < args.length) {
+                opts.put(arg.substring(2), args[++i]);
+            } else {
+                usage(opts);
+                System.exit(2);
+            }
+        }
+
+        try {
+            String out = opts.get("out");
+            if (force) {
+                new File(out).delete();
+            }
+
+            DataGenerator generator = new DataGenerator(
+                Long.parseLong(opts.get("seed")),
+                Integer.parseInt(opts.get("customers")),
+                Integer.parseInt(opts.get("products")),
+                Integer.parseInt(opts.get("orders")),
+                Double.parseDouble(opts.get("lines-mean")),
+                Integer.parseInt(opts.get("lines-max")),
+                Double.parseDouble(opts.get("bulk-rate")),
+                Integer.parseInt(opts.get("bulk-lines")),
+                Integer.parseInt(opts.get("years")),
+                LocalDateTime.parse(opts.get("end-date") + "T23:59:59"),
+                Integer.parseInt(opts.get("batch")));
+            generator.generate(out);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void usage(Map<String, String> defaults) {
+        System.err.println("Usage: DataGenerator [--force] [--<option> <value> ...]");
+        for (Map.Entry<String, String> entry : defaults.entrySet()) {
+            System.err.println("  --" + entry.getKey() + " (default " + entry.getValue() + ")");
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Diagnostics.java
+ *
+ * Java Flight Recorder events for after-the-fact diagnosis of slow screens.
+ * ActionEvent is emitted around clerk actions (save, open order, add line,
+ * search, screen refresh); SqlEvent around every statement executed on the
+ * connections handed out by DB, with the SQL text and row count.
+ * Statements are timed by a thin proxy around the JDBC objects; when no
+ * recording is running the proxy only checks that the event is disabled.
+ * Start a continuous recording with -Dorderentry.jfr=<file>; the last hours
+ * are kept on disk and written to the file on exit or with jcmd JFR.dump.
+ */
+package aim.legacy.db;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.time.Duration;
+
+public class Diagnostics {
+
+    // Name of the continuous recording, for jcmd <pid> JFR.dump name=orderentry
+    public static final String RECORDING_NAME = "orderentry";
+
+    private static final int MAX_SQL_LENGTH = 4000;
+
+    private static Recording recording;
+
+    // A clerk action; created when the action starts and committed when it is done
+    @Name("aim.legacy.UserAction")
+    @Label("User Action")
+    @Category("Order Entry")
+    @StackTrace(false)
+    public static class ActionEvent extends Event {
+        @Label("Action")
+        public String action;
+
+        @Label("Order Id")
+        public long orderId;
+
+        @Label("Line Count")
+        public int lineCount;
+
+        @Label("Row Count")
+        @Description("Rows loaded into the screen")
+        public long rowCount;
+
+        public ActionEvent(String action) {
+            this.action = action;
+            begin();
+        }
+    }
+
+    // One statement execution; for queries the duration includes reading the rows
+    // Recorded above a threshold only, so the recording stays small on busy screens
+    @Name("aim.legacy.Sql")
+    @Label("SQL Statement")
+    @Category({"Order Entry", "Database"})
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class SqlEvent extends Event {
+        @Label("SQL")
+        String sql;
+
+        @Label("Row Count")
+        @Description("Rows read by a query, or rows changed by an update or batch")
+        long rowCount;
+
+        @Label("Batch Size")
+        int batchSize;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    // Start the continuous recording when -Dorderentry.jfr=<file> is set
+    // -Dorderentry.jfr.maxage=<hours> (default 6) limits what is kept on disk,
+    // -Dorderentry.jfr.sql=<ms> (default 1) is the slowest SQL statement not recorded
+    public static synchronized void startFromProperties() {
+        String file = System.getProperty("orderentry.jfr");
+        if (file == null || recording != null) {
+            return;
+        }
+        try {
+            if (!FlightRecorder.isAvailable()) {
+                System.err.println("Flight recorder is not available in this runtime");
+                return;
+            }
+            recording = new Recording(Configuration.getConfiguration("default"));
+            recording.setName(RECORDING_NAME);
+            recording.setToDisk(true);
+            recording.setMaxAge(Duration.ofHours(Long.getLong("orderentry.jfr.maxage", 6)));
+            recording.setDumpOnExit(true);
+            recording.setDestination(Paths.get(file));
+            recording.enable(ActionEvent.class);
+            recording.enable(SqlEvent.class).withThreshold(Duration.ofMillis(Long.getLong("orderentry.jfr.sql", 1)));
+            recording.start();
+            System.out.println("Flight recording started; written to " + Paths.get(file).toAbsolutePath() + " on exit");
+        } catch (Exception e) {
+            e.printStackTrace();
+            recording = null;
+        }
+    }
+
+    // Connection whose statements emit SqlEvent; used by DB for every connection it opens
+    static Connection instrument(Connection conn) {
+        return (Connection) Proxy.newProxyInstance(Diagnostics.class.getClassLoader(),
+            new Class<?>[] {Connection.class}, new ConnectionHandler(conn));
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static String truncate(String sql) {
+        return sql != null && sql.length() > MAX_SQL_LENGTH ? sql.substring(0, MAX_SQL_LENGTH) + "..." : sql;
+    }
+
+    private static class ConnectionHandler implements InvocationHandler {
+        private final Connection target;
+
+        ConnectionHandler(Connection target) {
+            this.target = target;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = call(target, method, args);
+            if (result instanceof Statement) {
+                String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                Class<?> type = result instanceof CallableStatement ? CallableStatement.class
+                    : result instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+                return Proxy.newProxyInstance(Diagnostics.class.getClassLoader(), new Class<?>[] {type},
+                    new StatementHandler((Statement) result, (Connection) proxy, sql));
+            }
+            return result;
+        }
+    }
+
+    private static class StatementHandler implements InvocationHandler {
+        private final Statement target;
+        private final Connection connection;
+        private final String preparedSql;
+        private int batchSize;
+        private String batchSql;
+        private ResultSetHandler openResults;
+
+        StatementHandler(Statement target, Connection connection, String preparedSql) {
+            this.target = target;
+            this.connection = connection;
+            this.preparedSql = preparedSql;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getConnection")) {
+                return connection;
+            }
+            if (openResults != null && (name.equals("close") || name.startsWith("execute"))) {
+                // Callers often close only the statement; the rows read so far still count
+                openResults.finish();
+                openResults = null;
+            }
+            if (name.equals("addBatch")) {
+                batchSize++;
+                if (args != null && args.length == 1 && batchSql == null) {
+                    batchSql = (String) args[0];
+                }
+                return call(target, method, args);
+            }
+            if (!name.startsWith("execute")) {
+                return call(target, method, args);
+            }
+
+            SqlEvent event = new SqlEvent();
+            if (!event.isEnabled()) {
+                batchSize = 0;
+                batchSql = null;
+                return call(target, method, args);
+            }
+            boolean batch = name.equals("executeBatch") || name.equals("executeLargeBatch");
+            event.sql = truncate(args != null && args.length > 0 && args[0] instanceof String ? (String) args[0]
+                : batch && batchSql != null ? batchSql : preparedSql);
+            event.batchSize = batch ? batchSize : 0;
+            if (batch) {
+                batchSize = 0;
+                batchSql = null;
+            }
+            event.begin();
+            Object result;
+            try {
+                result = call(target, method, args);
+            } catch (Throwable e) {
+                event.failed = true;
+                event.commit();
+                throw e;
+            }
+
+            if (result instanceof ResultSet) {
+                // Finished when the caller closes the result set, after reading the rows
+                openResults = new ResultSetHandler((ResultSet) result, (Statement) proxy, event);
+                return Proxy.newProxyInstance(Diagnostics.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                    openResults);
+            }
+            if (result instanceof Integer || result instanceof Long) {
+                event.rowCount = ((Number) result).longValue();
+            } else if (result instanceof int[]) {
+                for (int count : (int[]) result) {
+                    event.rowCount += Math.max(count, 0);
+                }
+            } else if (result instanceof Boolean && !(Boolean) result) {
+                event.rowCount = Math.max(target.getUpdateCount(), 0);
+            }
+            event.commit();
+            return result;
+        }
+    }
+
+    private static class ResultSetHandler implements InvocationHandler {
+        private final ResultSet target;
+        private final Statement statement;
+        private SqlEvent event;
+
+        ResultSetHandler(ResultSet target, Statement statement, SqlEvent event) {
+            this.target = target;
+            this.statement = statement;
+            this.event = event;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getStatement")) {
+                return statement;
+            }
+            Object result = call(target, method, args);
+            if (event != null) {
+                if (name.equals("next") && (Boolean) result) {
+                    event.rowCount++;
+                } else if (name.equals("close")) {
+                    finish();
+                }
+            }
+            return result;
+        }
+
+        void finish() {
+            if (event != null) {
+                event.commit();
+                event = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,559 @@
+/**
+ * DuplicateCustomers.java
+ *
+ * Finds customers that were entered more than once and merges them.
+ * Instead of comparing every pair, each customer is put in a few blocks,
+ * chosen so that any pair able to reach MIN_SCORE shares at least one:
+ * normalized email; phone and address together; and phone or address
+ * together with each MinHash band of the name's letter trigrams, so that
+ * similar names usually share a band. Only customers sharing a block are
+ * scored, in parallel; blocks larger than MAX_BLOCK (a shared switchboard
+ * number, a placeholder address) carry no signal and are skipped. Keys are
+ * 64-bit hashes in a primitive open-addressing index, so millions of
+ * customers fit in memory.
+ * A merge moves the duplicate's orders, statistics and contract prices to
+ * the customer kept, deletes the duplicate and records it in the audit log;
+ * archived orders follow once the merge has committed.
+ */
+package aim.legacy.db;
+
+import java.sql.*;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class DuplicateCustomers {
+
+    // Pairs scoring at least this much are reported
+    public static final double MIN_SCORE = 0.7;
+
+    private static final double NAME_WEIGHT = 0.5;
+    private static final double EMAIL_WEIGHT = 0.4;
+    private static final double PHONE_WEIGHT = 0.3;
+    private static final double ADDRESS_WEIGHT = 0.3;
+
+    private static final int MAX_BLOCK = 200;
+    private static final int MIN_PHONE_DIGITS = 7;
+
+    // Name signature: BANDS bands of ROWS_PER_BAND MinHash values each
+    private static final int BANDS = 4;
+    private static final int ROWS_PER_BAND = 2;
+    private static final int KEYS_PER_CUSTOMER = 2 + 2 * BANDS;
+
+    // Tags keep keys of different kinds apart in the shared index
+    private static final long EMAIL_KEY = 1;
+    private static final long PHONE_ADDRESS_KEY = 2;
+    private static final long PHONE_NAME_KEY = 3;
+    private static final long ADDRESS_NAME_KEY = 4;
+
+    // A likely duplicate: the duplicate is merged into the customer kept (the older one)
+    public static class Match {
+        public final long keepId;
+        public final String keepName;
+        public final long duplicateId;
+        public final String duplicateName;
+        public final double score;
+        public final String matchedOn;
+
+        Match(long keepId, String keepName, long duplicateId, String duplicateName, double score, String matchedOn) {
+            this.keepId = keepId;
+            this.keepName = keepName;
+            this.duplicateId = duplicateId;
+            this.duplicateName = duplicateName;
+            this.score = score;
+            this.matchedOn = matchedOn;
+        }
+    }
+
+    // Customers as normalized columns, in cust_id order
+    private long[] ids;
+    private String[] names;
+    private int[][] trigrams;
+    private long[] emails;
+    private long[] phones;
+    private long[] addresses;
+    private int count;
+
+    // Find likely duplicates among all customers, best matches first
+    // Reads every customer once; run it off the EDT on its own connection
+    public static List<Match> find(Connection conn) throws SQLException {
+        DuplicateCustomers finder = new DuplicateCustomers();
+        finder.load(conn);
+        return finder.match();
+    }
+
+    private void load(Connection conn) throws SQLException {
+        ids = new long[1024];
+        names = new String[1024];
+        String[] emailText = new String[1024];
+        String[] phoneText = new String[1024];
+        String[] addressText = new String[1024];
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT cust_id, cust_name, email, phone, address FROM customer ORDER BY cust_id");
+        while (rs.next()) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                names = Arrays.copyOf(names, count * 2);
+                emailText = Arrays.copyOf(emailText, count * 2);
+                phoneText = Arrays.copyOf(phoneText, count * 2);
+                addressText = Arrays.copyOf(addressText, count * 2);
+            }
+            ids[count] = rs.getLong(1);
+            names[count] = rs.getString(2);
+            emailText[count] = rs.getString(3);
+            phoneText[count] = rs.getString(4);
+            addressText[count] = rs.getString(5);
+            count++;
+        }
+        rs.close();
+        stmt.close();
+
+        trigrams = new int[count][];
+        emails = new long[count];
+        phones = new long[count];
+        addresses = new long[count];
+        String[] e = emailText, p = phoneText, a = addressText;
+        IntStream.range(0, count).parallel().forEach(i -> {
+            trigrams[i] = trigrams(normalize(names[i]));
+            emails[i] = hash(normalizeEmail(e[i]));
+            phones[i] = hash(phoneDigits(p[i]));
+            addresses[i] = hash(normalize(a[i]));
+        });
+    }
+
+    private List<Match> match() {
+        // Blocking keys of customer i are keys[i * KEYS_PER_CUSTOMER ...], 0 when absent
+        // Without a shared email a pair needs the same phone and address, or one of them
+        // and a name similar enough to share a band (see the weights)
+        long[] keys = new long[count * KEYS_PER_CUSTOMER];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            int base = i * KEYS_PER_CUSTOMER;
+            keys[base] = emails[i] != 0 ? mix(EMAIL_KEY * 31 + emails[i]) : 0;
+            keys[base + 1] = phones[i] != 0 && addresses[i] != 0
+                ? mix(mix(PHONE_ADDRESS_KEY * 31 + phones[i]) * 31 + addresses[i]) : 0;
+            long[] signature = minHash(trigrams[i]);
+            for (int b = 0; b < BANDS && signature != null; b++) {
+                long band = b;
+                for (int r = 0; r < ROWS_PER_BAND; r++) {
+                    band = mix(band * 31 + signature[b * ROWS_PER_BAND + r]);
+                }
+                keys[base + 2 + b] = phones[i] != 0 ? mix(mix(PHONE_NAME_KEY * 31 + phones[i]) * 31 + band) : 0;
+                keys[base + 2 + BANDS + b] = addresses[i] != 0
+                    ? mix(mix(ADDRESS_NAME_KEY * 31 + addresses[i]) * 31 + band) : 0;
+            }
+        });
+        BlockIndex blocks = new BlockIndex(keys, KEYS_PER_CUSTOMER);
+
+        List<Match> matches = IntStream.range(0, count).parallel()
+            .mapToObj(i -> matchesOf(i, keys, blocks))
+            .flatMap(List::stream)
+            .collect(Collectors.toList());
+        matches.sort((x, y) -> x.score != y.score ? Double.compare(y.score, x.score) : Long.compare(x.keepId, y.keepId));
+        return matches;
+    }
+
+    // Score customer i against the later customers sharing one of its blocks
+    private List<Match> matchesOf(int i, long[] keys, BlockIndex blocks) {
+        int[] candidates = new int[16];
+        int found = 0;
+        for (int k = i * KEYS_PER_CUSTOMER; k < (i + 1) * KEYS_PER_CUSTOMER; k++) {
+            if (keys[k] == 0) {
+                continue;
+            }
+            int slot = blocks.find(keys[k]);
+            if (blocks.size[slot] < 2 || blocks.size[slot] > MAX_BLOCK) {
+                continue;
+            }
+            for (int e = blocks.head[slot]; e >= 0; e = blocks.next[e]) {
+                int j = blocks.row[e];
+                if (j > i) {
+                    if (found == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, found * 2);
+                    }
+                    candidates[found++] = j;
+                }
+            }
+        }
+        if (found == 0) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(candidates, 0, found);
+        List<Match> matches = new ArrayList<>();
+        for (int c = 0; c < found; c++) {
+            int j = candidates[c];
+            if (c > 0 && candidates[c - 1] == j) {
+                continue;
+            }
+            Match match = score(i, j);
+            if (match != null) {
+                matches.add(match);
+            }
+        }
+        return matches;
+    }
+
+    private Match score(int i, int j) {
+        double nameSimilarity = jaccard(trigrams[i], trigrams[j]);
+        boolean email = emails[i] != 0 && emails[i] == emails[j];
+        boolean phone = phones[i] != 0 && phones[i] == phones[j];
+        boolean address = addresses[i] != 0 && addresses[i] == addresses[j];
+        double score = NAME_WEIGHT * nameSimilarity + (email ? EMAIL_WEIGHT : 0) +
+            (phone ? PHONE_WEIGHT : 0) + (address ? ADDRESS_WEIGHT : 0);
+        if (score < MIN_SCORE) {
+            return null;
+        }
+        List<String> matchedOn = new ArrayList<>();
+        matchedOn.add(nameSimilarity == 1 ? "name" : "similar name");
+        if (email) matchedOn.add("email");
+        if (phone) matchedOn.add("phone");
+        if (address) matchedOn.add("address");
+        return new Match(ids[i], names[i], ids[j], names[j], Math.min(score, 1.0), String.join(", ", matchedOn));
+    }
+
+    // Lower case letters and digits separated by single spaces, accents removed; null if empty
+    static String normalize(String text) {
+        if (text == null) {
+            return null;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 127) {
+                text = Normalizer.normalize(text, Normalizer.Form.NFD);
+                break;
+            }
+        }
+        StringBuilder words = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                words.append(Character.toLowerCase(c));
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK
+                && words.length() > 0 && words.charAt(words.length() - 1) != ' ') {
+                words.append(' ');
+            }
+        }
+        int length = words.length();
+        if (length > 0 && words.charAt(length - 1) == ' ') {
+            length--;
+        }
+        return length == 0 ? null : words.substring(0, length);
+    }
+
+    // Email compared without case, surrounding blanks or a +tag on the mailbox
+    static String normalizeEmail(String email) {
+        if (email == null || email.indexOf('@') < 0) {
+            return null;
+        }
+        String address = email.trim().toLowerCase();
+        int at = address.indexOf('@');
+        int plus = address.indexOf('+');
+        return plus >= 0 && plus < at ? address.substring(0, plus) + address.substring(at) : address;
+    }
+
+    // The last ten digits, so a country code or formatting does not matter
+    static String phoneDigits(String phone) {
+        if (phone == null) {
+            return null;
+        }
+        StringBuilder digits = new StringBuilder(phone.length());
+        for (int i = 0; i < phone.length(); i++) {
+            char c = phone.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        if (digits.length() < MIN_PHONE_DIGITS) {
+            return null;
+        }
+        return digits.length() > 10 ? digits.substring(digits.length() - 10) : digits.toString();
+    }
+
+    // Sorted distinct hashes of the letter trigrams of the words, sorted so word order does not matter
+    static int[] trigrams(String normalized) {
+        if (normalized == null) {
+            return new int[0];
+        }
+        String[] words = normalized.split(" ");
+        Arrays.sort(words);
+        String text = " " + String.join(" ", words) + " ";
+        int[] grams = new int[Math.max(text.length() - 2, 0)];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = (text.charAt(i) * 31 + text.charAt(i + 1)) * 31 + text.charAt(i + 2);
+        }
+        Arrays.sort(grams);
+        int distinct = 0;
+        for (int i = 0; i < grams.length; i++) {
+            if (distinct == 0 || grams[distinct - 1] != grams[i]) {
+                grams[distinct++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, distinct);
+    }
+
+    // Shared trigrams over all trigrams of both names
+    static double jaccard(int[] a, int[] b) {
+        if (a.length == 0 || b.length == 0) {
+            return 0;
+        }
+        int shared = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] == b[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (double) shared / (a.length + b.length - shared);
+    }
+
+    // Minimum of each hash function over the trigrams; two names agree on a value
+    // with probability equal to their trigram similarity
+    private static long[] minHash(int[] grams) {
+        if (grams.length == 0) {
+            return null;
+        }
+        long[] signature = new long[BANDS * ROWS_PER_BAND];
+        for (int h = 0; h < signature.length; h++) {
+            long seed = mix(h + 1);
+            long min = Long.MAX_VALUE;
+            for (int gram : grams) {
+                min = Math.min(min, mix(gram ^ seed));
+            }
+            signature[h] = min;
+        }
+        return signature;
+    }
+
+    // 64-bit FNV-1a of the text, 0 for null; collisions are negligible at this width
+    private static long hash(String text) {
+        if (text == null) {
+            return 0;
+        }
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            h ^= text.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    private static long mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        key ^= key >>> 32;
+        return key == 0 ? 1 : key;
+    }
+
+    // Open-addressing map from a blocking key to the customers having it
+    // Each slot holds the head of a linked list through next[], and the list size
+    static final class BlockIndex {
+        private final long[] slotKeys;
+        final int[] head;
+        final int[] size;
+        final int[] next;
+        final int[] row;
+        private final int mask;
+
+        BlockIndex(long[] keys, int keysPerRow) {
+            int capacity = Integer.highestOneBit(Math.max(keys.length, 1) * 2) * 2;
+            slotKeys = new long[capacity];
+            head = new int[capacity];
+            size = new int[capacity];
+            Arrays.fill(head, -1);
+            mask = capacity - 1;
+            next = new int[keys.length];
+            row = new int[keys.length];
+            for (int e = 0; e < keys.length; e++) {
+                if (keys[e] == 0) {
+                    continue;
+                }
+                int slot = find(keys[e]);
+                slotKeys[slot] = keys[e];
+                next[e] = head[slot];
+                row[e] = e / keysPerRow;
+                head[slot] = e;
+                size[slot]++;
+            }
+        }
+
+        // Slot holding the key, or the empty slot where it belongs
+        int find(long key) {
+            int slot = (int) mix(key) & mask;
+            while (slotKeys[slot] != 0 && slotKeys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    // Merges whose archived orders still point at the duplicate, in the order they were made
+    // A row is written with the merge and removed once every archive file is repointed
+    static void ensureTable(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE IF NOT EXISTS customer_merge (" +
+            "merge_id INTEGER PRIMARY KEY, " +
+            "keep_id INTEGER NOT NULL, " +
+            "keep_name TEXT, " +
+            "duplicate_id INTEGER NOT NULL)");
+        stmt.close();
+    }
+
+    // Merge one customer into another in a single transaction
+    // Orders (with their stored customer name), lifetime statistics and contract prices
+    // the kept customer does not already have move over; the duplicate is then deleted.
+    // Archived orders are repointed after the commit, each archive file on its own
+    // connection since ATTACH is not allowed in a transaction. The merge is recorded in
+    // customer_merge until that is done, so archives left behind by a failure or a crash
+    // are repointed by the next merge or the next start. Returns the number of current orders moved.
+    public static int merge(Connection conn, long keepId, long duplicateId) throws SQLException {
+        if (keepId == duplicateId) {
+            throw new SQLException("A customer cannot be merged into itself");
+        }
+        String keepName = customerName(conn, keepId);
+        if (keepName == null || customerName(conn, duplicateId) == null) {
+            throw new SQLException("Customer " + (keepName == null ? keepId : duplicateId) + " no longer exists");
+        }
+        PricingCatalog.ensureTables(conn);
+        ensureTable(conn);
+        finishArchived(conn);
+
+        int moved;
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            PreparedStatement ps = conn.prepareStatement(
+                "SELECT cust_name, email, phone, address FROM customer WHERE cust_id = ?");
+            ps.setLong(1, duplicateId);
+            ResultSet rs = ps.executeQuery();
+            if (!rs.next()) {
+                rs.close();
+                ps.close();
+                throw new SQLException("Customer " + duplicateId + " no longer exists");
+            }
+            Map<String, Object> before = AuditLog.image("cust_name", rs.getString(1), "email", rs.getString(2),
+                "phone", rs.getString(3), "address", rs.getString(4));
+            rs.close();
+            ps.close();
+
+            moved = repoint(conn, keepId, keepName, duplicateId);
+            CustomerStats.customerMerged(conn, keepId, duplicateId);
+
+            // Where both have a contract price for the same product and date, the kept one wins;
+            // the duplicate's remaining rows go with it by ON DELETE CASCADE
+            ps = conn.prepareStatement("UPDATE OR IGNORE contract_price SET cust_id = ? WHERE cust_id = ?");
+            ps.setLong(1, keepId);
+            ps.setLong(2, duplicateId);
+            int contracts = ps.executeUpdate();
+            ps.close();
+
+            ps = conn.prepareStatement("DELETE FROM customer WHERE cust_id = ?");
+            ps.setLong(1, duplicateId);
+            ps.executeUpdate();
+            ps.close();
+
+            ps = conn.prepareStatement("INSERT INTO customer_merge (keep_id, keep_name, duplicate_id) VALUES (?, ?, ?)");
+            ps.setLong(1, keepId);
+            ps.setString(2, keepName);
+            ps.setLong(3, duplicateId);
+            ps.executeUpdate();
+            ps.close();
+
+            conn.commit();
+            if (moved > 0) {
+                // cached copies still carry the duplicate's id and name
+                OrderCache.get().clear();
+            }
+            if (contracts > 0) {
+                PricingCatalog.invalidate();
+            }
+            AuditLog.get().record(AuditLog.MERGE, "customer", duplicateId, before,
+                AuditLog.image("merged_into", keepId, "orders_moved", moved));
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+
+        try {
+            finishArchived(conn);
+        } catch (SQLException e) {
+            // The merge itself is committed; the archives are repointed on the next merge or start
+            e.printStackTrace();
+        }
+        return moved;
+    }
+
+    // Repoint archived orders for every recorded merge, then drop the records
+    // Repointing is idempotent, so a run cut short is simply repeated
+    public static void finishArchived(Connection conn) throws SQLException {
+        ensureTable(conn);
+        List<Object[]> merges = new ArrayList<>();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT merge_id, keep_id, keep_name, duplicate_id FROM customer_merge ORDER BY merge_id");
+        while (rs.next()) {
+            merges.add(new Object[] {rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getLong(4)});
+        }
+        rs.close();
+        stmt.close();
+        if (merges.isEmpty()) {
+            return;
+        }
+
+        int moved = 0;
+        for (int year : OrderArchive.listYears(conn)) {
+            // Opening a missing file would create an empty one
+            if (!OrderArchive.getArchiveFile(year).exists()) {
+                continue;
+            }
+            Connection archiveConn = DriverManager.getConnection(
+                "jdbc:sqlite:" + OrderArchive.getArchiveFile(year).getPath());
+            try {
+                for (Object[] merge : merges) {
+                    moved += repoint(archiveConn, (Long) merge[1], (String) merge[2], (Long) merge[3]);
+                }
+            } finally {
+                archiveConn.close();
+            }
+        }
+
+        PreparedStatement ps = conn.prepareStatement("DELETE FROM customer_merge WHERE merge_id = ?");
+        for (Object[] merge : merges) {
+            ps.setLong(1, (Long) merge[0]);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        ps.close();
+        if (moved > 0) {
+            // cached archived orders still carry the duplicate's id and name
+            OrderCache.get().clear();
+        }
+    }
+
+    private static int repoint(Connection conn, long keepId, String keepName, long duplicateId) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("UPDATE orders SET cust_id = ?, cust_name = ? WHERE cust_id = ?");
+        ps.setLong(1, keepId);
+        ps.setString(2, keepName);
+        ps.setLong(3, duplicateId);
+        int moved = ps.executeUpdate();
+        ps.close();
+        return moved;
+    }
+
+    private static String customerName(Connection conn, long custId) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT cust_name FROM customer WHERE cust_id = ?");
+        ps.setLong(1, custId);
+        ResultSet rs = ps.executeQuery();
+        String name = rs.next() ? rs.getString(1) : null;
+        rs.close();
+        ps.close();
+        return name;
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * IdempotencyKeys.java
+ *
+ * Idempotency keys of submitted orders. Each submission (an editor dialog, an
+ * intake request) carries a key; the first order saved with it claims the key
+ * in the order_key table, whose primary key makes the claim unique, and a
+ * later submission with the same key gets the original order id back instead
+ * of creating a second order.
+ *
+ * An in-memory Bloom filter of the keys answers "never seen" without touching
+ * the database, so the pre-check on the common non-duplicate path costs no
+ * read; only keys the filter may have seen are looked up. The filter is a
+ * shortcut, never the authority: the claim inside the order transaction is
+ * what stops a duplicate, including one racing the original or one submitted
+ * through another process.
+ * Keys are kept for KEEP_DAYS; older keys are removed when the filter is loaded.
+ */
+package aim.legacy.db;
+
+import java.sql.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IdempotencyKeys {
+
+    public static final int MAX_KEY_LENGTH = 200;
+
+    private static final long KEEP_DAYS = 30;
+
+    // 10 bits and 7 probes per key give about 1% false positives at capacity
+    private static final int BITS_PER_KEY = 10;
+    private static final int PROBES = 7;
+    private static final int MIN_CAPACITY = 1 << 16;
+
+    private static IdempotencyKeys instance;
+
+    private final Filter filter;
+
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    private IdempotencyKeys(Connection conn) throws SQLException {
+        filter = load(conn);
+    }
+
+    // Shared keys for the application database, loaded on first use
+    public static synchronized IdempotencyKeys get() {
+        if (instance == null) {
+            try {
+                instance = new IdempotencyKeys(DB.getConn());
+            } catch (SQLException e) {
+                throw new IllegalStateException("Idempotency keys could not be loaded", e);
+            }
+        }
+        return instance;
+    }
+
+    static void ensureTable(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE IF NOT EXISTS order_key (" +
+            "idem_key TEXT PRIMARY KEY, " +
+            "order_id INTEGER NOT NULL, " +
+            "created_ts INTEGER NOT NULL) WITHOUT ROWID");
+        stmt.close();
+    }
+
+    // Throws IllegalArgumentException for a key that cannot be stored; null means no key
+    public static void checkKey(String key) {
+        if (key != null && (key.isEmpty() || key.length() > MAX_KEY_LENGTH)) {
+            throw new IllegalArgumentException("Idempotency key must be 1 to " + MAX_KEY_LENGTH + " characters");
+        }
+    }
+
+    // False only for keys never claimed in this database (as far as this process knows)
+    public boolean mightContain(String key) {
+        return filter.mightContain(hash(key));
+    }
+
+    // Order id the key was claimed for, or 0; keys the filter has not seen cost no read
+    public long find(Connection conn, String key) throws SQLException {
+        if (!mightContain(key)) {
+            return 0;
+        }
+        long orderId = lookup(conn, key);
+        if (orderId == 0) {
+            falsePositives.incrementAndGet();
+        } else {
+            duplicates.incrementAndGet();
+        }
+        return orderId;
+    }
+
+    // Claim the key for a new order inside the caller's transaction, before the order is written
+    // Returns 0 if the key was free, otherwise the order id it already belongs to; a rollback
+    // frees the key again (the filter keeps it, which only costs a lookup)
+    // Needs no filter: one already loaded is updated, one loaded later reads the key from the table
+    public static long claim(Connection conn, String key, long orderId) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(
+            "INSERT OR IGNORE INTO order_key (idem_key, order_id, created_ts) VALUES (?, ?, strftime('%s', 'now'))");
+        ps.setString(1, key);
+        ps.setLong(2, orderId);
+        int inserted = ps.executeUpdate();
+        ps.close();
+        IdempotencyKeys keys = loaded();
+        if (inserted == 1) {
+            if (keys != null) {
+                keys.filter.add(hash(key));
+            }
+            return 0;
+        }
+        if (keys != null) {
+            keys.duplicates.incrementAndGet();
+        }
+        return lookup(conn, key);
+    }
+
+    private static synchronized IdempotencyKeys loaded() {
+        return instance;
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.get();
+    }
+
+    private static long lookup(Connection conn, String key) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT order_id FROM order_key WHERE idem_key = ?");
+        ps.setString(1, key);
+        ResultSet rs = ps.executeQuery();
+        long orderId = rs.next() ? rs.getLong(1) : 0;
+        rs.close();
+        ps.close();
+        return orderId;
+    }
+
+    // Drop expired keys, then build the filter from the rest with room to double
+    // Past its capacity the filter only gets less selective; it is sized again on the next start
+    private static Filter load(Connection conn) throws SQLException {
+        ensureTable(conn);
+        PreparedStatement ps = conn.prepareStatement("DELETE FROM order_key WHERE created_ts < ?");
+        ps.setLong(1, System.currentTimeMillis() / 1000 - TimeUnit.DAYS.toSeconds(KEEP_DAYS));
+        ps.executeUpdate();
+        ps.close();
+
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM order_key");
+        long count = rs.next() ? rs.getLong(1) : 0;
+        rs.close();
+        Filter filter = new Filter(Math.max(count * 2, MIN_CAPACITY));
+        rs = stmt.executeQuery("SELECT idem_key FROM order_key");
+        while (rs.next()) {
+            filter.add(hash(rs.getString(1)));
+        }
+        rs.close();
+        stmt.close();
+        return filter;
+    }
+
+    // 64-bit FNV-1a of the key, spread so both halves are usable as probe hashes
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h *= 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    // Bloom filter over key hashes; probe i is h1 + i * h2 (double hashing)
+    // Lookups take no lock: one racing an add may miss the new key, which the claim in the
+    // order transaction still catches
+    static final class Filter {
+        private final long[] bits;
+        private final long mask;
+
+        Filter(long capacity) {
+            long size = Long.highestOneBit(Math.max(capacity * BITS_PER_KEY, 64) - 1) << 1;
+            bits = new long[(int) Math.min(size >>> 6, 1 << 24)];
+            mask = ((long) bits.length << 6) - 1;
+        }
+
+        synchronized void add(long hash) {
+            long h1 = hash;
+            long h2 = (hash >>> 32) | 1;
+            for (int i = 0; i < PROBES; i++) {
+                long bit = (h1 + i * h2) & mask;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(long hash) {
+            long h1 = hash;
+            long h2 = (hash >>> 32) | 1;
+            for (int i = 0; i < PROBES; i++) {
+                long bit = (h1 + i * h2) & mask;
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/**
+ * Inventory.java
+ *
+ * Stock levels and reservations.
+ * A product is tracked once it has a row in the stock table (on hand count set
+ * from the products screen); untracked products can always be ordered.
+ * Quantities on orders in the main database are reserved: available is on hand
+ * minus reserved. Archiving an order ships it, so its quantities leave both.
+ *
+ * The stock table is the authority. An order save reserves what it adds inside
+ * its own write transaction, with an update that only succeeds while enough is
+ * available, and gives back what it removes with a decrement. Reservations
+ * commit or roll back with the order, every process saving orders sees the
+ * same counts, and nothing has to be recomputed after a crash.
+ *
+ * Each process keeps a copy of the levels for the products screen and for a
+ * pre-check that refuses a short order before it is queued. The copy is
+ * refreshed from the table in the background and never decides a reservation.
+ */
+package aim.legacy.db;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class Inventory {
+
+    // Returned by the level lookups for products without a stock row
+    public static final long UNTRACKED = Long.MIN_VALUE;
+
+    // How stale the copy can be after another process changes stock
+    private static final long REFRESH_MILLIS = 1000;
+
+    private static Inventory instance;
+
+    private final Map<Long, Levels> levels = new ConcurrentHashMap<>();
+    private final Connection refreshConn;
+    private final Thread refresher;
+    private volatile boolean running = true;
+
+    // Levels of one tracked product as last read or written by this process
+    private static final class Levels {
+        final long onHand;
+        final long reserved;
+
+        Levels(long onHand, long reserved) {
+            this.onHand = onHand;
+            this.reserved = reserved;
+        }
+    }
+
+    // Thrown when a reservation asks for more than is available
+    public static class OutOfStockException extends SQLException {
+        public final long prodId;
+        public final long requested;
+        public final long available;
+
+        OutOfStockException(long prodId, long requested, long available) {
+            super("Not enough stock for product " + prodId + ": " + requested + " requested, " +
+                Math.max(available, 0) + " available");
+            this.prodId = prodId;
+            this.requested = requested;
+            this.available = available;
+        }
+    }
+
+    // Quantity changes written by one order save
+    // The stock rows change with the order transaction; committed() brings this process's
+    // copy up to date once it is durable. After a rollback there is nothing to give back.
+    public final class Reservation {
+        private final Map<Long, Long> changes;
+
+        private Reservation(Map<Long, Long> changes) {
+            this.changes = changes;
+        }
+
+        public void committed() {
+            for (Map.Entry<Long, Long> change : changes.entrySet()) {
+                cache(change.getKey(), 0, change.getValue());
+            }
+        }
+    }
+
+    private Inventory() throws SQLException {
+        refreshConn = DB.openConnection();
+        refresh();
+        refresher = new Thread(this::run, "inventory-refresher");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    // Shared inventory for the application database, loaded on first use
+    // Loading reads through a connection of its own, so it is safe inside another write transaction
+    public static synchronized Inventory get() {
+        if (instance == null) {
+            try {
+                instance = new Inventory();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Inventory could not be loaded", e);
+            }
+        }
+        return instance;
+    }
+
+    // Stop the refresher if the inventory was ever used; for shutdown hooks
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    // Drop the levels of deleted products; their stock rows went with them by cascade
+    static synchronized void productsDeleted(long[] prodIds) {
+        if (instance != null) {
+            for (long prodId : prodIds) {
+                instance.levels.remove(prodId);
+            }
+        }
+    }
+
+    static void ensureTables(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE IF NOT EXISTS stock (" +
+            "prod_id INTEGER PRIMARY KEY REFERENCES product(prod_id) ON DELETE CASCADE, " +
+            "on_hand INTEGER NOT NULL, " +
+            "reserved INTEGER NOT NULL DEFAULT 0)");
+        stmt.close();
+    }
+
+    // Schema version 5: reserved counts were written by per-process counters and may be behind,
+    // so they are recomputed once from the order lines; the clean flag those writes used goes
+    static void recountReserved(Connection conn) throws SQLException {
+        ensureTables(conn);
+        Map<Long, Long> actual = new HashMap<>();
+        Statement stmt = conn.createStatement();
+        // One pass over the order lines for all tracked products
+        ResultSet rs = stmt.executeQuery("SELECT prod_id, SUM(quantity) FROM main.order_line " +
+            "WHERE prod_id IN (SELECT prod_id FROM stock) GROUP BY prod_id");
+        while (rs.next()) {
+            actual.put(rs.getLong(1), rs.getLong(2));
+        }
+        rs.close();
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            stmt.executeUpdate("UPDATE stock SET reserved = 0");
+            PreparedStatement ps = conn.prepareStatement("UPDATE stock SET reserved = ? WHERE prod_id = ?");
+            for (Map.Entry<Long, Long> entry : actual.entrySet()) {
+                ps.setLong(1, entry.getValue());
+                ps.setLong(2, entry.getKey());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            ps.close();
+            stmt.execute("DROP TABLE IF EXISTS stock_state");
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+            stmt.close();
+        }
+    }
+
+    // Replace the copy with the stock table as it is now
+    private void refresh() throws SQLException {
+        Set<Long> seen = new HashSet<>();
+        Statement stmt = refreshConn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT prod_id, on_hand, reserved FROM stock");
+        while (rs.next()) {
+            seen.add(rs.getLong(1));
+            levels.put(rs.getLong(1), new Levels(rs.getLong(2), rs.getLong(3)));
+        }
+        rs.close();
+        stmt.close();
+        levels.keySet().retainAll(seen);
+    }
+
+    public boolean isTracked(long prodId) {
+        return levels.containsKey(prodId);
+    }
+
+    public long onHand(long prodId) {
+        Levels level = levels.get(prodId);
+        return level == null ? UNTRACKED : level.onHand;
+    }
+
+    public long reserved(long prodId) {
+        Levels level = levels.get(prodId);
+        return level == null ? UNTRACKED : level.reserved;
+    }
+
+    public long available(long prodId) {
+        Levels level = levels.get(prodId);
+        return level == null ? UNTRACKED : level.onHand - level.reserved;
+    }
+
+    // Refuse an order early if the copy already shows a tracked product short
+    // Passing is no promise: reserve() inside the order transaction decides
+    public void check(long[] prodIds, int[] quantities) throws OutOfStockException {
+        Map<Long, Long> totals = new HashMap<>();
+        for (int i = 0; i < prodIds.length; i++) {
+            totals.merge(prodIds[i], (long) quantities[i], Long::sum);
+        }
+        for (Map.Entry<Long, Long> total : totals.entrySet()) {
+            long available = available(total.getKey());
+            if (available != UNTRACKED && available < total.getValue()) {
+                throw new OutOfStockException(total.getKey(), total.getValue(), available);
+            }
+        }
+    }
+
+    // Reserve the quantities of a new order; call inside the order's write transaction
+    public Reservation reserve(Connection conn, long[] prodIds, int[] quantities) throws SQLException {
+        Map<Long, Long> changes = new HashMap<>();
+        for (int i = 0; i < prodIds.length; i++) {
+            changes.merge(prodIds[i], (long) quantities[i], Long::sum);
+        }
+        return reserve(conn, changes);
+    }
+
+    // Apply per-product quantity changes of an order save inside its write transaction;
+    // negative changes are releases. Untracked products are left alone.
+    // Throws OutOfStockException if a tracked product is short; the caller rolls back,
+    // which undoes the changes already made.
+    // A reservation that matched no row is either short or untracked; those products
+    // are told apart afterwards with a single query, so untracked ones cost nothing extra.
+    public Reservation reserve(Connection conn, Map<Long, Long> changes) throws SQLException {
+        Map<Long, Long> written = new HashMap<>();
+        StringBuilder missed = new StringBuilder();
+        PreparedStatement take = conn.prepareStatement(
+            "UPDATE main.stock SET reserved = reserved + ? WHERE prod_id = ? AND on_hand - reserved >= ?");
+        PreparedStatement give = conn.prepareStatement(
+            "UPDATE main.stock SET reserved = reserved - ? WHERE prod_id = ?");
+        try {
+            for (Map.Entry<Long, Long> change : changes.entrySet()) {
+                long prodId = change.getKey();
+                long quantity = change.getValue();
+                if (quantity > 0) {
+                    take.setLong(1, quantity);
+                    take.setLong(2, prodId);
+                    take.setLong(3, quantity);
+                    if (take.executeUpdate() == 0) {
+                        missed.append(missed.length() == 0 ? "" : ", ").append(prodId);
+                        continue;
+                    }
+                } else if (quantity < 0) {
+                    give.setLong(1, -quantity);
+                    give.setLong(2, prodId);
+                    if (give.executeUpdate() == 0) {
+                        continue;
+                    }
+                } else {
+                    continue;
+                }
+                written.put(prodId, quantity);
+            }
+        } finally {
+            take.close();
+            give.close();
+        }
+        if (missed.length() > 0) {
+            checkShort(conn, missed.toString(), changes);
+        }
+        return new Reservation(written);
+    }
+
+    // Of the products whose reservation matched no row, any with a stock row is short
+    private static void checkShort(Connection conn, String prodIds, Map<Long, Long> changes) throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery(
+            "SELECT prod_id, on_hand - reserved FROM main.stock WHERE prod_id IN (" + prodIds + ")");
+        try {
+            if (rs.next()) {
+                long prodId = rs.getLong(1);
+                throw new OutOfStockException(prodId, changes.get(prodId), rs.getLong(2));
+            }
+        } finally {
+            rs.close();
+            stmt.close();
+        }
+    }
+
+    // Give back the quantities of deleted orders inside the delete transaction
+    // quantities come from orderQuantities(); call released() after the commit
+    static void release(Connection conn, Map<Long, Long> quantities) throws SQLException {
+        if (quantities.isEmpty()) {
+            return;
+        }
+        PreparedStatement ps = conn.prepareStatement("UPDATE main.stock SET reserved = reserved - ? WHERE prod_id = ?");
+        for (Map.Entry<Long, Long> entry : quantities.entrySet()) {
+            ps.setLong(1, entry.getValue());
+            ps.setLong(2, entry.getKey());
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        ps.close();
+    }
+
+    // The delete that released these quantities committed
+    void released(Map<Long, Long> quantities) {
+        for (Map.Entry<Long, Long> entry : quantities.entrySet()) {
+            cache(entry.getKey(), 0, -entry.getValue());
+        }
+    }
+
+    // Quantities of archived orders left the warehouse; call after the archive committed
+    // on_hand and reserved were already lowered in the archive transaction (see shipStock)
+    void shipped(Map<Long, Long> quantities) {
+        for (Map.Entry<Long, Long> entry : quantities.entrySet()) {
+            cache(entry.getKey(), -entry.getValue(), -entry.getValue());
+        }
+    }
+
+    private void cache(long prodId, long onHandChange, long reservedChange) {
+        levels.computeIfPresent(prodId,
+            (id, level) -> new Levels(level.onHand + onHandChange, level.reserved + reservedChange));
+    }
+
+    // Set the on hand count of a product from a stock count, or stop tracking it with null
+    // A newly tracked product starts with the quantity already on its orders reserved
+    // Runs in a write transaction of its own, so no order save slips in between
+    public void setOnHand(Connection conn, long prodId, Long count) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("BEGIN IMMEDIATE");
+        try {
+            if (count == null) {
+                PreparedStatement ps = conn.prepareStatement("DELETE FROM stock WHERE prod_id = ?");
+                ps.setLong(1, prodId);
+                ps.executeUpdate();
+                ps.close();
+                stmt.execute("COMMIT");
+                levels.remove(prodId);
+                return;
+            }
+
+            PreparedStatement ps = conn.prepareStatement("UPDATE stock SET on_hand = ? WHERE prod_id = ?");
+            ps.setLong(1, count);
+            ps.setLong(2, prodId);
+            boolean tracked = ps.executeUpdate() == 1;
+            ps.close();
+
+            ps = conn.prepareStatement(tracked
+                ? "SELECT reserved FROM stock WHERE prod_id = ?"
+                : "SELECT COALESCE(SUM(quantity), 0) FROM main.order_line WHERE prod_id = ?");
+            ps.setLong(1, prodId);
+            ResultSet rs = ps.executeQuery();
+            long reserved = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            ps.close();
+
+            if (!tracked) {
+                ps = conn.prepareStatement("INSERT INTO stock (prod_id, on_hand, reserved) VALUES (?, ?, ?)");
+                ps.setLong(1, prodId);
+                ps.setLong(2, count);
+                ps.setLong(3, reserved);
+                ps.executeUpdate();
+                ps.close();
+            }
+            stmt.execute("COMMIT");
+            levels.put(prodId, new Levels(count, reserved));
+        } catch (SQLException e) {
+            stmt.execute("ROLLBACK");
+            throw e;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    // Per-product quantities on the given orders, tracked products only
+    // orderIdQuery selects order ids from main and is bound with params
+    // Read inside the transaction that deletes or moves the orders
+    static Map<Long, Long> orderQuantities(Connection conn, String orderIdQuery, Object... params) throws SQLException {
+        Map<Long, Long> quantities = new HashMap<>();
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT l.prod_id, SUM(l.quantity) FROM main.order_line l JOIN main.stock s ON s.prod_id = l.prod_id " +
+            "WHERE l.order_id IN (" + orderIdQuery + ") GROUP BY l.prod_id");
+        for (int i = 0; i < params.length; i++) {
+            ps.setObject(i + 1, params[i]);
+        }
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+            quantities.put(rs.getLong(1), rs.getLong(2));
+        }
+        rs.close();
+        ps.close();
+        return quantities;
+    }
+
+    // Ship quantities inside the archive transaction: they leave on hand and reserved
+    static void shipStock(Connection conn, Map<Long, Long> quantities) throws SQLException {
+        if (quantities.isEmpty()) {
+            return;
+        }
+        PreparedStatement ps = conn.prepareStatement(
+            "UPDATE main.stock SET on_hand = on_hand - ?, reserved = reserved - ? WHERE prod_id = ?");
+        for (Map.Entry<Long, Long> entry : quantities.entrySet()) {
+            ps.setLong(1, entry.getValue());
+            ps.setLong(2, entry.getValue());
+            ps.setLong(3, entry.getKey());
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        ps.close();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(REFRESH_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                refresh();
+            } catch (SQLException e) {
+                // The copy stays as it was; only the screens and the pre-check see it
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Stop the refresher; the stock table is always up to date, so there is nothing to write
+    public void close() {
+        running = false;
+        refresher.interrupt();
+        try {
+            refresher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            refreshConn.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
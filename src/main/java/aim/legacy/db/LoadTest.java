@@ -0,0 +1,472 @@
+/**
+ * LoadTest.java
+ *
+ * Headless load generator for capacity planning.
+ * N worker threads, each with its own connection like separate clerk sessions,
+ * run a weighted mix of the order workflows against the persistence code:
+ * search customers, open an order, add lines (product list with prices),
+ * save a new order, and list recent orders. Saves go through OrderIntake, the
+ * writer the HTTP intake uses. After a warm-up the run lasts a
+ * fixed time; latency is recorded per workflow and written as JSON.
+ * Saves write real orders, so point -Dorderentry.db at a generated or copied database.
+ * Run with: ./mvnw compile exec:java@loadtest -Dexec.args="--threads 8 --duration 60"
+ */
+package aim.legacy.db;
+
+import aim.legacy.server.LatencyHistogram;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class LoadTest {
+
+    // Workflows in the order used by the mix and the results
+    static final String[] WORKFLOWS = {"search", "open", "addLines", "save", "list"};
+    private static final String DEFAULT_MIX = "search=25,open=30,addLines=15,save=10,list=20";
+
+    private static final int MAX_LINES_PER_SAVE = 8;
+    private static final long LIST_WINDOW_SECONDS = TimeUnit.DAYS.toSeconds(30);
+
+    private final int threads;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+    private final int thinkMillis;
+    private final int[] weights;
+    private final long seed;
+
+    // Data ranges sampled by the workers, read once before the run
+    private long minOrderId;
+    private long maxOrderId;
+    private long[] custIds;
+    private String[] custNames;
+    private long[] prodIds;
+    private long latestOrderTs;
+
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+
+    // Per worker and workflow, merged at the end so recording never contends
+    private LatencyHistogram[][] histograms;
+    private long[][] errors;
+
+    // Saves from every worker, written in group commits on the shared connection
+    private OrderIntake intake;
+
+    public LoadTest(int threads, int warmupSeconds, int durationSeconds, int thinkMillis, String mix, long seed) {
+        this.threads = threads;
+        this.warmupSeconds = warmupSeconds;
+        this.durationSeconds = durationSeconds;
+        this.thinkMillis = thinkMillis;
+        this.weights = parseMix(mix);
+        this.seed = seed;
+    }
+
+    // "search=25,open=30,..." -> weights in WORKFLOWS order; unnamed workflows get 0
+    static int[] parseMix(String mix) {
+        int[] weights = new int[WORKFLOWS.length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split("=");
+            int index = indexOf(kv[0].trim());
+            if (kv.length != 2 || index < 0) {
+                throw new IllegalArgumentException("Invalid mix entry: " + part);
+            }
+            weights[index] = Integer.parseInt(kv[1].trim());
+        }
+        int total = 0;
+        for (int w : weights) {
+            total += w;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("Mix must have a positive weight");
+        }
+        return weights;
+    }
+
+    private static int indexOf(String workflow) {
+        for (int i = 0; i < WORKFLOWS.length; i++) {
+            if (WORKFLOWS[i].equals(workflow)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Run warm-up and measurement, then return the results as a JSON-ready map
+    public Map<String, Object> run() throws Exception {
+        loadRanges(DB.getConn());
+        histograms = new LatencyHistogram[threads][WORKFLOWS.length];
+        errors = new long[threads][WORKFLOWS.length];
+        intake = new OrderIntake(threads);
+
+        List<Thread> workers = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int worker = t;
+            for (int w = 0; w < WORKFLOWS.length; w++) {
+                histograms[t][w] = new LatencyHistogram();
+            }
+            Thread thread = new Thread(() -> {
+                try {
+                    work(worker);
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                    e.printStackTrace();
+                }
+            }, "load-worker-" + t);
+            thread.setDaemon(true);
+            workers.add(thread);
+        }
+
+        String started = Instant.now().toString();
+        for (Thread thread : workers) {
+            thread.start();
+        }
+        System.out.println("Warming up for " + warmupSeconds + "s with " + threads + " threads...");
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        measuring = true;
+        long start = System.nanoTime();
+        System.out.println("Measuring for " + durationSeconds + "s...");
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        measuring = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        stopped = true;
+        for (Thread thread : workers) {
+            thread.join();
+        }
+        intake.close();
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException(failures.size() + " load workers failed", failures.get(0));
+        }
+        return results(started, elapsed);
+    }
+
+    private void loadRanges(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT MIN(order_id), MAX(order_id), MAX(order_ts) FROM orders");
+        rs.next();
+        minOrderId = rs.getLong(1);
+        maxOrderId = rs.getLong(2);
+        latestOrderTs = rs.getLong(3);
+        rs.close();
+
+        List<Long> ids = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        rs = stmt.executeQuery("SELECT cust_id, cust_name FROM customer");
+        while (rs.next()) {
+            ids.add(rs.getLong(1));
+            names.add(rs.getString(2));
+        }
+        rs.close();
+        custIds = toArray(ids);
+        custNames = names.toArray(new String[0]);
+
+        ids.clear();
+        rs = stmt.executeQuery("SELECT prod_id FROM product");
+        while (rs.next()) {
+            ids.add(rs.getLong(1));
+        }
+        rs.close();
+        stmt.close();
+        prodIds = toArray(ids);
+
+        if (custIds.length == 0 || prodIds.length == 0) {
+            throw new IllegalStateException("The database needs customers and products; generate one first");
+        }
+    }
+
+    private static long[] toArray(List<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private void work(int worker) throws Exception {
+        Random random = new Random(seed + worker);
+        int total = 0;
+        for (int w : weights) {
+            total += w;
+        }
+        Connection conn = DB.openConnection();
+        try {
+            while (!stopped) {
+                int pick = random.nextInt(total);
+                int workflow = 0;
+                while (pick >= weights[workflow]) {
+                    pick -= weights[workflow++];
+                }
+
+                long begin = System.nanoTime();
+                boolean ok = true;
+                try {
+                    runWorkflow(conn, workflow, random);
+                } catch (SQLException e) {
+                    ok = false;
+                    rollbackQuietly(conn);
+                }
+                long nanos = System.nanoTime() - begin;
+                if (measuring) {
+                    if (ok) {
+                        histograms[worker][workflow].recordNanos(nanos);
+                    } else {
+                        errors[worker][workflow]++;
+                    }
+                }
+                if (thinkMillis > 0) {
+                    Thread.sleep(thinkMillis);
+                }
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    private void runWorkflow(Connection conn, int workflow, Random random) throws SQLException {
+        switch (WORKFLOWS[workflow]) {
+            case "search":
+                searchCustomers(conn, random);
+                break;
+            case "open":
+                openOrder(conn, random);
+                break;
+            case "addLines":
+                addLines(conn, random);
+                break;
+            case "save":
+                saveOrder(random);
+                break;
+            default:
+                listOrders(conn);
+                break;
+        }
+    }
+
+    // The customer screen's search: substring match on the name
+    private void searchCustomers(Connection conn, Random random) throws SQLException {
+        String name = custNames[random.nextInt(custNames.length)].toLowerCase();
+        int from = name.length() > 3 ? random.nextInt(name.length() - 3) : 0;
+        String term = name.substring(from, Math.min(name.length(), from + 3));
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT cust_id, cust_name, email, phone, address FROM customer WHERE LOWER(cust_name) LIKE ? ORDER BY cust_id");
+        ps.setString(1, "%" + term + "%");
+        drain(ps.executeQuery());
+        ps.close();
+    }
+
+    // The editor opening an order through the shared order cache; archived orders
+    // are only attached on the shared connection, so this worker reads current ones
+    private void openOrder(Connection conn, Random random) throws SQLException {
+        long orderId = minOrderId + (long) (random.nextDouble() * (maxOrderId - minOrderId + 1));
+        OrderCache.get().loadCurrent(conn, orderId);
+    }
+
+    // The editor's Add Line: product list priced for the customer, for a few lines
+    private void addLines(Connection conn, Random random) throws SQLException {
+        long custId = custIds[random.nextInt(custIds.length)];
+        PricingCatalog catalog = PricingCatalog.get();
+        LocalDate today = LocalDate.now();
+        int lines = 1 + random.nextInt(3);
+        for (int i = 0; i < lines; i++) {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT prod_id, prod_name, unit_price FROM product ORDER BY prod_name");
+            while (rs.next()) {
+                catalog.price(custId, rs.getLong(1), today);
+            }
+            rs.close();
+            stmt.close();
+        }
+    }
+
+    // A new order priced like the editor's and written by the intake writer: stock
+    // reservation, header, lines, customer statistics and audit entry in one transaction
+    private void saveOrder(Random random) throws SQLException {
+        int count = 1 + random.nextInt(MAX_LINES_PER_SAVE);
+        long[] lineProducts = new long[count];
+        int[] quantities = new int[count];
+        for (int i = 0; i < count; i++) {
+            lineProducts[i] = prodIds[random.nextInt(prodIds.length)];
+            quantities[i] = 1 + random.nextInt(5);
+        }
+        OrderIntake.NewOrder order = OrderIntake.price(custIds[random.nextInt(custIds.length)], lineProducts, quantities);
+        try {
+            intake.submit(order).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for the save", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof SQLException ? (SQLException) cause : new SQLException(cause);
+        }
+    }
+
+    // The orders screen filtered to the last 30 days of orders
+    private void listOrders(Connection conn) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT order_id, cust_name, order_date, subtotal, discount, tax, total FROM orders " +
+            "WHERE order_ts >= ? ORDER BY order_id");
+        ps.setLong(1, latestOrderTs - LIST_WINDOW_SECONDS);
+        drain(ps.executeQuery());
+        ps.close();
+    }
+
+    private static void drain(ResultSet rs) throws SQLException {
+        int columns = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            for (int c = 1; c <= columns; c++) {
+                rs.getString(c);
+            }
+        }
+        rs.close();
+    }
+
+    private static void rollbackQuietly(Connection conn) {
+        try {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+            } else {
+                Statement stmt = conn.createStatement();
+                stmt.execute("ROLLBACK");
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            // no transaction was open
+        }
+    }
+
+    private Map<String, Object> results(String started, double elapsedSeconds) {
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("startedAt", started);
+        root.put("database", new File(DB.getDbFile()).getAbsolutePath());
+        root.put("storageProfile", StorageProfile.current().name().toLowerCase());
+        root.put("threads", threads);
+        root.put("warmupSeconds", warmupSeconds);
+        root.put("durationSeconds", round(elapsedSeconds));
+        root.put("thinkMillis", thinkMillis);
+        root.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        Map<String, Object> mix = new LinkedHashMap<>();
+        for (int w = 0; w < WORKFLOWS.length; w++) {
+            mix.put(WORKFLOWS[w], weights[w]);
+        }
+        root.put("mix", mix);
+
+        LatencyHistogram all = new LatencyHistogram();
+        long allErrors = 0;
+        Map<String, Object> workflows = new LinkedHashMap<>();
+        for (int w = 0; w < WORKFLOWS.length; w++) {
+            LatencyHistogram merged = new LatencyHistogram();
+            long errorCount = 0;
+            for (int t = 0; t < threads; t++) {
+                merged.add(histograms[t][w]);
+                errorCount += errors[t][w];
+            }
+            all.add(merged);
+            allErrors += errorCount;
+            workflows.put(WORKFLOWS[w], summary(merged, errorCount, elapsedSeconds));
+        }
+        root.put("total", summary(all, allErrors, elapsedSeconds));
+        root.put("workflows", workflows);
+        return root;
+    }
+
+    private static Map<String, Object> summary(LatencyHistogram h, long errorCount, double elapsedSeconds) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("count", h.getCount());
+        map.put("errors", errorCount);
+        map.put("throughputPerSec", round(h.getCount() / elapsedSeconds));
+        map.put("meanMicros", round(h.getMeanMicros()));
+        map.put("p50Micros", h.percentileMicros(50));
+        map.put("p90Micros", h.percentileMicros(90));
+        map.put("p99Micros", h.percentileMicros(99));
+        map.put("p999Micros", h.percentileMicros(99.9));
+        map.put("maxMicros", h.getMaxMicros());
+        return map;
+    }
+
+    private static BigDecimal round(double value) {
+        return BigDecimal.valueOf(value).setScale(1, RoundingMode.HALF_UP);
+    }
+
+    // Command line entry point
+    // Options: --threads n, --warmup s, --duration s, --think ms, --mix spec, --seed n, --out file
+    public static void main(String[] args) {
+        int threads = 4;
+        int warmup = 10;
+        int duration = 60;
+        int think = 0;
+        String mix = DEFAULT_MIX;
+        long seed = 42;
+        String out = "loadtest-results.json";
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--warmup") && i + 1 < args.length) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--duration") && i + 1 < args.length) {
+                duration = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--think") && i + 1 < args.length) {
+                think = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--mix") && i + 1 < args.length) {
+                mix = args[++i];
+            } else if (args[i].equals("--seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--out") && i + 1 < args.length) {
+                out = args[++i];
+            } else {
+                System.err.println("Usage: LoadTest [--threads n] [--warmup s] [--duration s] [--think ms] " +
+                    "[--mix " + DEFAULT_MIX + "] [--seed n] [--out file.json]");
+                System.exit(2);
+            }
+        }
+
+        try {
+            Map<String, Object> results = new LoadTest(threads, warmup, duration, think, mix, seed).run();
+            Inventory.shutdown();
+            AuditLog.shutdown();
+
+            @SuppressWarnings("unchecked")
+            Map<String, Map<String, Object>> workflows = (Map<String, Map<String, Object>>) results.get("workflows");
+            System.out.println(String.format("%-10s %10s %8s %10s %10s %10s %10s %10s",
+                "workflow", "ops/s", "errors", "p50 us", "p99 us", "p999 us", "max us", "count"));
+            for (Map.Entry<String, Map<String, Object>> entry : workflows.entrySet()) {
+                printRow(entry.getKey(), entry.getValue());
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> total = (Map<String, Object>) results.get("total");
+            printRow("total", total);
+
+            new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(new File(out), results);
+            System.out.println("Results written to " + new File(out).getAbsolutePath());
+            DB.closeConn();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void printRow(String name, Map<String, Object> row) {
+        System.out.println(String.format("%-10s %10s %8s %10s %10s %10s %10s %10s",
+            name, row.get("throughputPerSec"), row.get("errors"), row.get("p50Micros"), row.get("p99Micros"),
+            row.get("p999Micros"), row.get("maxMicros"), row.get("count")));
+    }
+}
@@ -0,0 +1,433 @@
+/**
+ * OrderArchive.java
+ *
+ * Hot/cold storage for orders.
+ * Moves orders older than a cutoff into one SQLite file per year and attaches
+ * those files on demand, so the live orders/order_line tables only hold recent work.
+ * Archived orders stay readable through locate() and the attached schema alias.
+ * Run headless with: ./mvnw exec:java@archive -Dexec.args="--before 2024-01-01"
+ */
+package aim.legacy.db;
+
+import java.io.File;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class OrderArchive {
+
+    public static final String MAIN = "main";
+
+    // SQLite allows 10 attached databases by default; keep headroom for other tools
+    private static final int MAX_ATTACHED = 6;
+
+    // Archive years currently attached to the shared connection, oldest first
+    private static final Set<Integer> attached = new LinkedHashSet<>();
+
+    // Directory holding the per-year archive files
+    // Defaults to an "archive" folder next to the main database file
+    public static File getArchiveDir() {
+        String dir = System.getProperty("orderentry.archive.dir");
+        if (dir != null) {
+            return new File(dir);
+        }
+        File parent = new File(DB.getDbFile()).getAbsoluteFile().getParentFile();
+        return new File(parent, "archive");
+    }
+
+    public static File getArchiveFile(int year) {
+        return new File(getArchiveDir(), "orders-" + year + ".db");
+    }
+
+    // Schema alias used when an archive year is attached
+    public static String alias(int year) {
+        return "arch_" + year;
+    }
+
+    // Highest order and line ids ever handed out, archived ones included
+    // New ids are allocated above these, so the id of an archived order or line is never reused
+    public static final String LAST_ORDER_ID =
+        "SELECT MAX(COALESCE((SELECT MAX(order_id) FROM main.orders), 0), " +
+        "COALESCE((SELECT MAX(max_order_id) FROM main.order_archive), 0))";
+    public static final String LAST_LINE_ID =
+        "SELECT MAX(COALESCE((SELECT MAX(line_id) FROM main.order_line), 0), " +
+        "COALESCE((SELECT MAX(max_line_id) FROM main.order_archive), 0))";
+
+    // Catalog of archive files kept in the main database
+    // The id range lets locate() find an archived order without opening every file;
+    // max_line_id keeps archived line ids from being handed out again
+    static void ensureCatalog(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE IF NOT EXISTS order_archive (" +
+            "year INTEGER PRIMARY KEY, " +
+            "file_name TEXT NOT NULL, " +
+            "min_order_id INTEGER, " +
+            "max_order_id INTEGER, " +
+            "order_count INTEGER, " +
+            "max_line_id INTEGER)");
+        // Orders an archive run has deleted from main but not yet confirmed in the archive
+        stmt.execute("CREATE TABLE IF NOT EXISTS archive_moved (" +
+            "order_id INTEGER PRIMARY KEY, " +
+            "year INTEGER NOT NULL)");
+        stmt.close();
+    }
+
+    // Schema version 4: catalogs written before max_line_id get it from their archive files
+    static void addMaxLineIds(Connection conn) throws SQLException {
+        ensureCatalog(conn);
+        Statement stmt = conn.createStatement();
+        boolean hasColumn = false;
+        ResultSet rs = stmt.executeQuery("PRAGMA table_info(order_archive)");
+        while (rs.next()) {
+            if ("max_line_id".equals(rs.getString("name"))) {
+                hasColumn = true;
+            }
+        }
+        rs.close();
+        if (!hasColumn) {
+            stmt.execute("ALTER TABLE order_archive ADD COLUMN max_line_id INTEGER");
+        }
+
+        List<Integer> years = new ArrayList<>();
+        rs = stmt.executeQuery("SELECT year FROM order_archive WHERE max_line_id IS NULL");
+        while (rs.next()) {
+            years.add(rs.getInt(1));
+        }
+        rs.close();
+        stmt.close();
+
+        PreparedStatement ps = conn.prepareStatement("UPDATE order_archive SET max_line_id = ? WHERE year = ?");
+        for (int year : years) {
+            File file = getArchiveFile(year);
+            if (!file.exists()) {
+                continue;
+            }
+            Connection archiveConn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+            try {
+                Statement archiveStmt = archiveConn.createStatement();
+                rs = archiveStmt.executeQuery("SELECT MAX(line_id) FROM order_line");
+                ps.setObject(1, rs.next() ? rs.getObject(1) : null);
+                rs.close();
+                archiveStmt.close();
+            } finally {
+                archiveConn.close();
+            }
+            ps.setInt(2, year);
+            ps.executeUpdate();
+        }
+        ps.close();
+    }
+
+    // Move every order dated before the cutoff into its year's archive file
+    // Runs on a connection of its own, so the shared one stays free for the screens.
+    // A run interrupted by a crash is finished by the next one (see archiveRange).
+    public static synchronized int archiveBefore(LocalDate cutoff) throws SQLException {
+        try (Connection conn = DB.openConnection()) {
+            return archiveBefore(conn, cutoff);
+        }
+    }
+
+    private static int archiveBefore(Connection conn, LocalDate cutoff) throws SQLException {
+        ensureCatalog(conn);
+        String cutoffText = cutoff.toString();
+
+        List<Integer> years = new ArrayList<>();
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT DISTINCT CAST(substr(order_date, 1, 4) AS INTEGER) FROM orders WHERE order_date < ? ORDER BY 1");
+        ps.setString(1, cutoffText);
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+            years.add(rs.getInt(1));
+        }
+        rs.close();
+        ps.close();
+
+        int moved = 0;
+        for (int year : years) {
+            String from = year + "-01-01";
+            String to = LocalDate.of(year + 1, 1, 1).isBefore(cutoff) ? (year + 1) + "-01-01" : cutoffText;
+            moved += archiveRange(conn, year, from, to);
+        }
+        // Years with nothing left to copy may still hold the list of an interrupted run
+        for (int year : listYears(conn)) {
+            if (!years.contains(year) && getArchiveFile(year).exists()) {
+                moved += archiveRange(conn, year, null, null);
+            }
+        }
+        if (moved > 0) {
+            // cached copies still say the moved orders are current
+            OrderCache.get().clear();
+        }
+        return moved;
+    }
+
+    // The archive file is attached only for the run; the shared connection's attachments are not touched
+    // With a null range only an interrupted earlier run is finished
+    private static int archiveRange(Connection conn, int year, String from, String to) throws SQLException {
+        String schema = alias(year);
+        attachFile(conn, year);
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + schema + ".archive_pending (order_id INTEGER PRIMARY KEY)");
+            stmt.close();
+            int moved = finishMove(conn, year, schema);
+            if (from != null) {
+                copy(conn, schema, from, to);
+                moved += finishMove(conn, year, schema);
+            }
+            return moved;
+        } finally {
+            Statement stmt = conn.createStatement();
+            stmt.execute("DETACH DATABASE " + schema);
+            stmt.close();
+        }
+    }
+
+    // In WAL mode SQLite commits each attached file atomically but not the pair, so an
+    // order is moved in steps that each commit a single file:
+    //  1. copy() copies the orders and lines to the archive and lists their ids in
+    //     archive_pending. BEGIN IMMEDIATE also holds main's write lock, so nothing
+    //     changes while the copy runs.
+    //  2. finishMove() deletes from main the listed orders whose archived copy is
+    //     identical, ships their stock, updates the catalog and records the ids in
+    //     main.archive_moved.
+    //  3. It drops the archived copies of listed orders that were not moved (edited or
+    //     deleted between the commits; edited ones are archived by the next run) and
+    //     clears the list.
+    //  4. It clears main.archive_moved.
+    // After a crash the two lists show which steps are done, and the next run finishes
+    // them before copying anything. Orders are never deleted from main unless their
+    // copy is committed in the archive.
+    private static void copy(Connection conn, String schema, String from, String to) throws SQLException {
+        String range = "SELECT order_id FROM main.orders WHERE order_date >= ? AND order_date < ?";
+        Statement stmt = conn.createStatement();
+        stmt.execute("BEGIN IMMEDIATE");
+        try {
+            // Plain inserts: an order or line id already in the archive fails the run
+            // instead of overwriting the archived row
+            PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO " + schema + ".order_line SELECT * FROM main.order_line WHERE order_id IN (" + range + ")");
+            ps.setString(1, from);
+            ps.setString(2, to);
+            ps.executeUpdate();
+            ps.close();
+
+            ps = conn.prepareStatement(
+                "INSERT INTO " + schema + ".orders SELECT * FROM main.orders WHERE order_date >= ? AND order_date < ?");
+            ps.setString(1, from);
+            ps.setString(2, to);
+            ps.executeUpdate();
+            ps.close();
+
+            ps = conn.prepareStatement("INSERT INTO " + schema + ".archive_pending " + range);
+            ps.setString(1, from);
+            ps.setString(2, to);
+            ps.executeUpdate();
+            ps.close();
+
+            stmt.execute("COMMIT");
+        } catch (SQLException e) {
+            stmt.execute("ROLLBACK");
+            throw e;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    // Steps 2 to 4 for the orders listed in the archive; returns the number moved
+    private static int finishMove(Connection conn, int year, String schema) throws SQLException {
+        String moved = "SELECT order_id FROM main.archive_moved WHERE year = " + year;
+        Statement stmt = conn.createStatement();
+        try {
+            int count = 0;
+            if (exists(conn, schema + ".archive_pending") && !exists(conn, "main.archive_moved WHERE year = " + year)) {
+                Map<Long, Long> shipped;
+                stmt.execute("BEGIN IMMEDIATE");
+                try {
+                    count = stmt.executeUpdate("INSERT INTO main.archive_moved (order_id, year) SELECT p.order_id, " + year + " " +
+                        "FROM " + schema + ".archive_pending p " +
+                        "JOIN main.orders m ON m.order_id = p.order_id " +
+                        "JOIN " + schema + ".orders a ON a.order_id = p.order_id " +
+                        "WHERE a.cust_id IS m.cust_id AND a.cust_name IS m.cust_name AND a.order_date IS m.order_date " +
+                        "AND a.subtotal IS m.subtotal AND a.discount IS m.discount AND a.tax IS m.tax AND a.total IS m.total");
+
+                    // Archived orders have shipped: their stock leaves on hand and reserved
+                    shipped = Inventory.orderQuantities(conn, moved);
+                    Inventory.shipStock(conn, shipped);
+
+                    stmt.executeUpdate("DELETE FROM main.order_line WHERE order_id IN (" + moved + ")");
+                    stmt.executeUpdate("DELETE FROM main.orders WHERE order_id IN (" + moved + ")");
+
+                    // Copies about to be dropped in step 3 are left out
+                    PreparedStatement ps = conn.prepareStatement(
+                        "INSERT OR REPLACE INTO main.order_archive (year, file_name, min_order_id, max_order_id, order_count, max_line_id) " +
+                        "SELECT ?, ?, MIN(order_id), MAX(order_id), COUNT(*), (SELECT MAX(line_id) FROM " + schema + ".order_line) " +
+                        "FROM " + schema + ".orders WHERE order_id NOT IN (" +
+                        "SELECT order_id FROM " + schema + ".archive_pending EXCEPT " + moved + ")");
+                    ps.setInt(1, year);
+                    ps.setString(2, getArchiveFile(year).getName());
+                    ps.executeUpdate();
+                    ps.close();
+
+                    stmt.execute("COMMIT");
+                } catch (SQLException e) {
+                    stmt.execute("ROLLBACK");
+                    throw e;
+                }
+                Inventory.get().shipped(shipped);
+            }
+
+            if (exists(conn, schema + ".archive_pending")) {
+                String dropped = "SELECT order_id FROM " + schema + ".archive_pending EXCEPT " + moved;
+                stmt.execute("BEGIN IMMEDIATE");
+                try {
+                    stmt.executeUpdate("DELETE FROM " + schema + ".order_line WHERE order_id IN (" + dropped + ")");
+                    stmt.executeUpdate("DELETE FROM " + schema + ".orders WHERE order_id IN (" + dropped + ")");
+                    stmt.executeUpdate("DELETE FROM " + schema + ".archive_pending");
+                    stmt.execute("COMMIT");
+                } catch (SQLException e) {
+                    stmt.execute("ROLLBACK");
+                    throw e;
+                }
+            }
+
+            stmt.executeUpdate("DELETE FROM main.archive_moved WHERE year = " + year);
+            return count;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static boolean exists(Connection conn, String from) throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT EXISTS (SELECT 1 FROM " + from + ")");
+        boolean found = rs.next() && rs.getInt(1) == 1;
+        rs.close();
+        stmt.close();
+        return found;
+    }
+
+    // Years that have an archive file, newest first
+    public static List<Integer> listYears(Connection conn) throws SQLException {
+        ensureCatalog(conn);
+        List<Integer> years = new ArrayList<>();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT year FROM order_archive ORDER BY year DESC");
+        while (rs.next()) {
+            years.add(rs.getInt(1));
+        }
+        rs.close();
+        stmt.close();
+        return years;
+    }
+
+    // Attach the archive for a year (creating the file if needed) and return its schema alias
+    // Least recently attached archives are detached to stay under SQLite's attach limit
+    public static synchronized String attach(Connection conn, int year) throws SQLException {
+        String schema = alias(year);
+        if (attached.remove(year)) {
+            attached.add(year);
+            return schema;
+        }
+
+        while (attached.size() >= MAX_ATTACHED) {
+            int oldest = attached.iterator().next();
+            detach(conn, oldest);
+        }
+        attachFile(conn, year);
+        attached.add(year);
+        return schema;
+    }
+
+    // Attach a year's archive under its alias, creating the file if needed
+    // Files written by older versions are brought up to the current orders layout,
+    // since archiving copies whole rows from main.orders
+    private static void attachFile(Connection conn, int year) throws SQLException {
+        File file = getArchiveFile(year);
+        file.getParentFile().mkdirs();
+        Connection archiveConn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        try {
+            DB.createSchema(archiveConn, false);
+            DB.ensureOrderTimestamps(archiveConn);
+        } finally {
+            archiveConn.close();
+        }
+
+        PreparedStatement ps = conn.prepareStatement("ATTACH DATABASE ? AS " + alias(year));
+        ps.setString(1, file.getPath());
+        ps.execute();
+        ps.close();
+    }
+
+    public static synchronized void detach(Connection conn, int year) throws SQLException {
+        if (attached.remove(year)) {
+            Statement stmt = conn.createStatement();
+            stmt.execute("DETACH DATABASE " + alias(year));
+            stmt.close();
+        }
+    }
+
+    // Unified lookup: returns the schema holding the order ("main" or an attached archive)
+    // or null if the order does not exist anywhere
+    public static String locate(Connection conn, long orderId) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM main.orders WHERE order_id = ?");
+        ps.setLong(1, orderId);
+        ResultSet rs = ps.executeQuery();
+        boolean hot = rs.next();
+        rs.close();
+        ps.close();
+        if (hot) {
+            return MAIN;
+        }
+
+        ensureCatalog(conn);
+        List<Integer> candidates = new ArrayList<>();
+        ps = conn.prepareStatement("SELECT year FROM order_archive WHERE ? BETWEEN min_order_id AND max_order_id ORDER BY year DESC");
+        ps.setLong(1, orderId);
+        rs = ps.executeQuery();
+        while (rs.next()) {
+            candidates.add(rs.getInt(1));
+        }
+        rs.close();
+        ps.close();
+
+        for (int year : candidates) {
+            String schema = attach(conn, year);
+            ps = conn.prepareStatement("SELECT 1 FROM " + schema + ".orders WHERE order_id = ?");
+            ps.setLong(1, orderId);
+            rs = ps.executeQuery();
+            boolean found = rs.next();
+            rs.close();
+            ps.close();
+            if (found) {
+                return schema;
+            }
+        }
+        return null;
+    }
+
+    // Command line entry point for scheduled archiving
+    // Usage: OrderArchive --before yyyy-MM-dd
+    public static void main(String[] args) {
+        if (args.length != 2 || !args[0].equals("--before")) {
+            System.err.println("Usage: OrderArchive --before yyyy-MM-dd");
+            System.exit(2);
+        }
+        try {
+            LocalDate cutoff = LocalDate.parse(args[1]);
+            long start = System.currentTimeMillis();
+            int moved = archiveBefore(cutoff);
+            System.out.println("Archived " + moved + " orders dated before " + cutoff + " into " +
+                getArchiveDir() + " in " + (System.currentTimeMillis() - start) + " ms");
+            Inventory.shutdown();
+            DB.closeConn();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/**
+ * OrderCache.java
+ *
+ * Read-through cache of full order aggregates (header plus lines).
+ * Orders are serialized into fixed-size blocks inside large direct ByteBuffers,
+ * so millions of cached orders add no objects for the garbage collector to trace.
+ * All bookkeeping (block chains, LRU list, hash index) uses primitive arrays.
+ * Size is set with -Dorderentry.cache.mb (default 128, 0 disables the cache).
+ * A load that read the database before an invalidate() does not cache what it
+ * read: invalidations bump a stamp that the load checks before storing.
+ */
+package aim.legacy.db;
+
+import aim.legacy.domain.Order;
+import aim.legacy.domain.OrderLine;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+public class OrderCache {
+
+    private static final int BLOCK_SIZE = 256;
+    private static final int SLAB_BYTES = 64 * 1024 * 1024;
+    private static final int BLOCKS_PER_SLAB = SLAB_BYTES / BLOCK_SIZE;
+    private static final int NONE = -1;
+    // Invalidation stamps are kept per stripe of order ids; a collision only skips a put
+    private static final int STAMP_STRIPES = 4096;
+
+    private static OrderCache instance;
+
+    // Off-heap storage, allocated slab by slab as blocks are first used
+    private final ByteBuffer[] slabs;
+    private final int blockCount;
+
+    // Next block of an entry's chain, or of the free list
+    private final int[] nextBlock;
+    private int freeHead;
+    private int freeCount;
+
+    // Entry metadata indexed by the entry's first block
+    private final long[] entryKey;
+    private final int[] entryLength;
+    private final int[] lruPrev;
+    private final int[] lruNext;
+    private int lruHead = NONE;
+    private int lruTail = NONE;
+
+    // Open-addressing index: order id -> first block (key 0 = empty slot)
+    private final long[] indexKeys;
+    private final int[] indexBlocks;
+    private final int indexMask;
+
+    // Bumped by invalidate() for the order's stripe, and by clear() for all orders
+    private final long[] stamps = new long[STAMP_STRIPES];
+    private long clears;
+
+    // Reusable serialization buffer
+    private byte[] scratch = new byte[4096];
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private int entries;
+
+    // Shared cache for the application, sized from -Dorderentry.cache.mb
+    public static synchronized OrderCache get() {
+        if (instance == null) {
+            long megabytes = Long.getLong("orderentry.cache.mb", 128);
+            instance = new OrderCache(megabytes * 1024 * 1024);
+        }
+        return instance;
+    }
+
+    public OrderCache(long capacityBytes) {
+        blockCount = (int) Math.min(1 << 28, Math.max(0, capacityBytes / BLOCK_SIZE));
+        slabs = new ByteBuffer[(blockCount + BLOCKS_PER_SLAB - 1) / BLOCKS_PER_SLAB];
+        nextBlock = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            nextBlock[i] = i + 1 < blockCount ? i + 1 : NONE;
+        }
+        freeHead = blockCount > 0 ? 0 : NONE;
+        freeCount = blockCount;
+
+        entryKey = new long[blockCount];
+        entryLength = new int[blockCount];
+        lruPrev = new int[blockCount];
+        lruNext = new int[blockCount];
+
+        int tableSize = Integer.highestOneBit(Math.max(2, blockCount) * 2 - 1) << 1;
+        indexKeys = new long[tableSize];
+        indexBlocks = new int[tableSize];
+        indexMask = tableSize - 1;
+    }
+
+    // Read-through load: cached aggregate, otherwise read from the database
+    // (current or archived) and cache it. Returns null if the order does not exist.
+    public Order load(Connection conn, long orderId) throws SQLException {
+        Order order = getOrder(orderId);
+        if (order != null) {
+            return order;
+        }
+        long stamp = stamp(orderId);
+        String schema = OrderArchive.locate(conn, orderId);
+        if (schema == null) {
+            return null;
+        }
+        order = readOrder(conn, schema, orderId);
+        if (order != null) {
+            put(order, stamp);
+        }
+        return order;
+    }
+
+    // Read-through load limited to current orders, for connections other than the
+    // shared one (archive attachments are tracked for the shared connection only)
+    public Order loadCurrent(Connection conn, long orderId) throws SQLException {
+        Order order = getOrder(orderId);
+        if (order != null) {
+            return order;
+        }
+        long stamp = stamp(orderId);
+        order = readOrder(conn, OrderArchive.MAIN, orderId);
+        if (order != null) {
+            put(order, stamp);
+        }
+        return order;
+    }
+
+    private static Order readOrder(Connection conn, String schema, long orderId) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT cust_id, cust_name, order_date, subtotal, discount, tax, total FROM " + schema +
+            ".orders WHERE order_id = ?");
+        ps.setLong(1, orderId);
+        ResultSet rs = ps.executeQuery();
+        if (!rs.next()) {
+            rs.close();
+            ps.close();
+            return null;
+        }
+        Order order = new Order(orderId, rs.getLong(1), rs.getString(2));
+        order.setOrderDate(parseDate(rs.getString(3)));
+        order.setSubtotal(decimal(rs.getString(4)));
+        order.setDiscount(decimal(rs.getString(5)));
+        order.setTax(decimal(rs.getString(6)));
+        order.setTotal(decimal(rs.getString(7)));
+        order.setArchived(!OrderArchive.MAIN.equals(schema));
+        rs.close();
+        ps.close();
+
+        ps = conn.prepareStatement(
+            "SELECT line_id, prod_id, prod_name, quantity, unit_price FROM " + schema +
+            ".order_line WHERE order_id = ? ORDER BY line_id");
+        ps.setLong(1, orderId);
+        rs = ps.executeQuery();
+        while (rs.next()) {
+            order.addLine(new OrderLine(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getInt(4),
+                decimal(rs.getString(5))));
+        }
+        rs.close();
+        ps.close();
+        return order;
+    }
+
+    public synchronized Order getOrder(long orderId) {
+        int head = find(orderId);
+        if (head == NONE) {
+            misses++;
+            return null;
+        }
+        hits++;
+        unlink(head);
+        pushFront(head);
+        int length = entryLength[head];
+        ensureScratch(length);
+        readChain(head, scratch, length);
+        return deserialize(ByteBuffer.wrap(scratch, 0, length));
+    }
+
+    // Read before loading an order from the database, then passed to put(order, stamp)
+    private synchronized long stamp(long orderId) {
+        return stamps[stripe(orderId)] + clears;
+    }
+
+    // Store an aggregate read from the database unless the order was invalidated
+    // since the stamp was taken; the read may predate the change that invalidated it
+    private synchronized void put(Order order, long stamp) {
+        if (order.getId() != null && stamp(order.getId()) == stamp) {
+            put(order);
+        }
+    }
+
+    // Store an aggregate, evicting least recently used orders to make room
+    public synchronized void put(Order order) {
+        if (blockCount == 0 || order.getId() == null) {
+            return;
+        }
+        remove(order.getId());
+
+        int length;
+        try {
+            length = serialize(order);
+        } catch (IllegalArgumentException e) {
+            // not representable in the binary layout; simply not cached
+            return;
+        }
+        int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (blocks > blockCount) {
+            return;
+        }
+        while (freeCount < blocks && lruTail != NONE) {
+            removeEntry(lruTail);
+            evictions++;
+        }
+
+        int head = freeHead;
+        int last = head;
+        for (int i = 1; i < blocks; i++) {
+            last = nextBlock[last];
+        }
+        freeHead = nextBlock[last];
+        nextBlock[last] = NONE;
+        freeCount -= blocks;
+
+        writeChain(head, scratch, length);
+        entryKey[head] = order.getId();
+        entryLength[head] = length;
+        pushFront(head);
+        indexPut(order.getId(), head);
+        entries++;
+    }
+
+    // Drop one order; called after it is saved, deleted or archived
+    public synchronized void invalidate(long orderId) {
+        stamps[stripe(orderId)]++;
+        remove(orderId);
+    }
+
+    public synchronized void clear() {
+        clears++;
+        while (lruTail != NONE) {
+            removeEntry(lruTail);
+        }
+    }
+
+    private void remove(long orderId) {
+        int head = find(orderId);
+        if (head != NONE) {
+            removeEntry(head);
+        }
+    }
+
+    private static int stripe(long orderId) {
+        return slot(orderId, STAMP_STRIPES - 1);
+    }
+
+    public synchronized String stats() {
+        return entries + " orders cached, " + (blockCount - freeCount) * (long) BLOCK_SIZE / (1024 * 1024) +
+            "MB used, " + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+
+    private void removeEntry(int head) {
+        indexRemove(entryKey[head]);
+        unlink(head);
+        int blocks = (entryLength[head] + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int last = head;
+        for (int i = 1; i < blocks; i++) {
+            last = nextBlock[last];
+        }
+        nextBlock[last] = freeHead;
+        freeHead = head;
+        freeCount += blocks;
+        entries--;
+    }
+
+    private void pushFront(int head) {
+        lruPrev[head] = NONE;
+        lruNext[head] = lruHead;
+        if (lruHead != NONE) {
+            lruPrev[lruHead] = head;
+        }
+        lruHead = head;
+        if (lruTail == NONE) {
+            lruTail = head;
+        }
+    }
+
+    private void unlink(int head) {
+        int prev = lruPrev[head];
+        int next = lruNext[head];
+        if (prev != NONE) {
+            lruNext[prev] = next;
+        } else {
+            lruHead = next;
+        }
+        if (next != NONE) {
+            lruPrev[next] = prev;
+        } else {
+            lruTail = prev;
+        }
+    }
+
+    private ByteBuffer slabFor(int block) {
+        int slab = block / BLOCKS_PER_SLAB;
+        if (slabs[slab] == null) {
+            int blocksInSlab = Math.min(BLOCKS_PER_SLAB, blockCount - slab * BLOCKS_PER_SLAB);
+            slabs[slab] = ByteBuffer.allocateDirect(blocksInSlab * BLOCK_SIZE);
+        }
+        ByteBuffer buffer = slabs[slab];
+        buffer.clear();
+        buffer.position((block % BLOCKS_PER_SLAB) * BLOCK_SIZE);
+        return buffer;
+    }
+
+    private void writeChain(int head, byte[] data, int length) {
+        int block = head;
+        for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+            slabFor(block).put(data, offset, Math.min(BLOCK_SIZE, length - offset));
+            block = nextBlock[block];
+        }
+    }
+
+    private void readChain(int head, byte[] data, int length) {
+        int block = head;
+        for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+            slabFor(block).get(data, offset, Math.min(BLOCK_SIZE, length - offset));
+            block = nextBlock[block];
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int find(long key) {
+        if (blockCount == 0) {
+            return NONE;
+        }
+        int i = slot(key, indexMask);
+        while (indexKeys[i] != 0) {
+            if (indexKeys[i] == key) {
+                return indexBlocks[i];
+            }
+            i = (i + 1) & indexMask;
+        }
+        return NONE;
+    }
+
+    private void indexPut(long key, int block) {
+        int i = slot(key, indexMask);
+        while (indexKeys[i] != 0 && indexKeys[i] != key) {
+            i = (i + 1) & indexMask;
+        }
+        indexKeys[i] = key;
+        indexBlocks[i] = block;
+    }
+
+    // Linear probing removal with backward shift, so no tombstones accumulate
+    private void indexRemove(long key) {
+        int i = slot(key, indexMask);
+        while (indexKeys[i] != key) {
+            if (indexKeys[i] == 0) {
+                return;
+            }
+            i = (i + 1) & indexMask;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & indexMask;
+            if (indexKeys[j] == 0) {
+                break;
+            }
+            int k = slot(indexKeys[j], indexMask);
+            boolean inRange = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if (!inRange) {
+                indexKeys[i] = indexKeys[j];
+                indexBlocks[i] = indexBlocks[j];
+                i = j;
+            }
+        }
+        indexKeys[i] = 0;
+    }
+
+    // Layout: id, cust id, cust name, date (epoch s), 4 decimals, archived flag,
+    // line count, then per line: id, product id, product name, quantity, price.
+    // Strings are UTF-8 with an int length (-1 = null); decimals are scale + unscaled long.
+    private int serialize(Order order) {
+        int estimate = 128 + order.getLines().size() * 64;
+        ensureScratch(estimate);
+        while (true) {
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(scratch);
+                buf.putLong(order.getId());
+                buf.putLong(order.getCustomerId() != null ? order.getCustomerId() : 0);
+                putString(buf, order.getCustomerName());
+                buf.putLong(order.getOrderDate() != null ? order.getOrderDate().toEpochSecond(ZoneOffset.UTC) : Long.MIN_VALUE);
+                putDecimal(buf, order.getSubtotal());
+                putDecimal(buf, order.getDiscount());
+                putDecimal(buf, order.getTax());
+                putDecimal(buf, order.getTotal());
+                buf.put((byte) (order.isArchived() ? 1 : 0));
+                buf.putInt(order.getLines().size());
+                for (OrderLine line : order.getLines()) {
+                    buf.putLong(line.getId() != null ? line.getId() : 0);
+                    buf.putLong(line.getProductId() != null ? line.getProductId() : 0);
+                    putString(buf, line.getProductName());
+                    buf.putInt(line.getQuantity());
+                    putDecimal(buf, line.getUnitPrice());
+                }
+                return buf.position();
+            } catch (java.nio.BufferOverflowException e) {
+                scratch = new byte[scratch.length * 2];
+            }
+        }
+    }
+
+    private static Order deserialize(ByteBuffer buf) {
+        Order order = new Order(buf.getLong(), buf.getLong(), getString(buf));
+        long epoch = buf.getLong();
+        order.setOrderDate(epoch == Long.MIN_VALUE ? null : LocalDateTime.ofEpochSecond(epoch, 0, ZoneOffset.UTC));
+        order.setSubtotal(getDecimal(buf));
+        order.setDiscount(getDecimal(buf));
+        order.setTax(getDecimal(buf));
+        order.setTotal(getDecimal(buf));
+        order.setArchived(buf.get() == 1);
+        int lines = buf.getInt();
+        for (int i = 0; i < lines; i++) {
+            long id = buf.getLong();
+            long productId = buf.getLong();
+            String name = getString(buf);
+            int quantity = buf.getInt();
+            order.addLine(new OrderLine(id, productId, name, quantity, getDecimal(buf)));
+        }
+        return order;
+    }
+
+    private static void putString(ByteBuffer buf, String value) {
+        if (value == null) {
+            buf.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buf.putInt(bytes.length);
+        buf.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return value;
+    }
+
+    // Decimals must fit a long with a byte scale, which always holds for money
+    private static void putDecimal(ByteBuffer buf, BigDecimal value) {
+        if (value == null) {
+            buf.put(Byte.MIN_VALUE);
+            return;
+        }
+        if (value.unscaledValue().bitLength() > 63 || value.scale() > Byte.MAX_VALUE || value.scale() <= Byte.MIN_VALUE) {
+            throw new IllegalArgumentException("Decimal out of range: " + value);
+        }
+        buf.put((byte) value.scale());
+        buf.putLong(value.unscaledValue().longValue());
+    }
+
+    private static BigDecimal getDecimal(ByteBuffer buf) {
+        byte scale = buf.get();
+        if (scale == Byte.MIN_VALUE) {
+            return null;
+        }
+        return BigDecimal.valueOf(buf.getLong(), scale);
+    }
+
+    private void ensureScratch(int length) {
+        if (scratch.length < length) {
+            scratch = Arrays.copyOf(scratch, Math.max(length, scratch.length * 2));
+        }
+    }
+
+    private static BigDecimal decimal(String text) {
+        return text == null ? null : new BigDecimal(text);
+    }
+
+    private static LocalDateTime parseDate(String text) {
+        if (text == null || text.length() < 19) {
+            return null;
+        }
+        try {
+            return LocalDateTime.parse(text.substring(0, 10) + "T" + text.substring(11, 19));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/**
+ * OrderIntake.java
+ *
+ * Group-commit writer for orders and customers submitted outside the editor
+ * (the HTTP intake server). Orders are priced and validated on the caller's
+ * thread with the same catalog and rules the editor uses, then queued. A single
+ * writer thread drains the queue and applies up to MAX_BATCH items per
+ * transaction on the shared connection, so one commit covers many orders.
+ * A full queue rejects new work instead of letting it pile up.
+ * Stock for tracked products is checked against the inventory's copy when an
+ * order is queued and reserved in the transaction that writes it.
+ * An order submitted with an idempotency key claims it in the same transaction;
+ * if the key is already taken, nothing is written and the original order id is
+ * returned (see IdempotencyKeys).
+ */
+package aim.legacy.db;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class OrderIntake {
+
+    private static final int MAX_BATCH = 512;
+
+    private final BlockingQueue<Job> queue;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private long committedBatches;
+    private long committedItems;
+
+    // Statements are prepared once and reused by the writer thread
+    private PreparedStatement nextOrderId;
+    private PreparedStatement nextLineId;
+    private PreparedStatement nextCustId;
+    private PreparedStatement customerName;
+    private PreparedStatement productName;
+    private PreparedStatement insertOrder;
+    private PreparedStatement insertLine;
+    private PreparedStatement insertCustomer;
+
+    // Ids handed out in the current transaction
+    private long orderIdSeq;
+    private long lineIdSeq;
+    private long custIdSeq;
+
+    public OrderIntake(int queueCapacity) {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        writer = new Thread(this::run, "order-intake-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // A priced order ready to be written
+    public static class NewOrder {
+        public final long custId;
+        public final long[] prodIds;
+        public final int[] quantities;
+        public final BigDecimal[] prices;
+        public final BigDecimal subtotal;
+        public final BigDecimal discount;
+        public final BigDecimal tax;
+        public final BigDecimal total;
+
+        NewOrder(long custId, long[] prodIds, int[] quantities, BigDecimal[] prices,
+                 BigDecimal subtotal, BigDecimal discount, BigDecimal tax, BigDecimal total) {
+            this.custId = custId;
+            this.prodIds = prodIds;
+            this.quantities = quantities;
+            this.prices = prices;
+            this.subtotal = subtotal;
+            this.discount = discount;
+            this.tax = tax;
+            this.total = total;
+        }
+    }
+
+    // Outcome of a queued order: its id, or with duplicate set, the id of the order
+    // first written with the same idempotency key (nothing new was written)
+    public static class Submitted {
+        public final long id;
+        public final boolean duplicate;
+
+        Submitted(long id, boolean duplicate) {
+            this.id = id;
+            this.duplicate = duplicate;
+        }
+    }
+
+    // Price and validate an order the way the editor does
+    // Throws IllegalArgumentException describing the first problem found
+    public static NewOrder price(long custId, long[] prodIds, int[] quantities) {
+        if (custId <= 0) {
+            throw new IllegalArgumentException("customerId is required");
+        }
+        if (prodIds.length == 0) {
+            throw new IllegalArgumentException("Order must have at least one line item");
+        }
+        PricingCatalog catalog = PricingCatalog.get();
+        OrderRules rules = OrderRules.current();
+        LocalDate today = LocalDate.now();
+
+        BigDecimal[] prices = new BigDecimal[prodIds.length];
+        BigDecimal subtotal = BigDecimal.ZERO;
+        for (int i = 0; i < prodIds.length; i++) {
+            if (quantities[i] <= 0) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": Quantity must be positive");
+            }
+            prices[i] = catalog.price(custId, prodIds[i], today);
+            if (prices[i] == null) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": Unknown product " + prodIds[i]);
+            }
+            subtotal = subtotal.add(prices[i].multiply(BigDecimal.valueOf(quantities[i])));
+        }
+        subtotal = subtotal.setScale(2, RoundingMode.HALF_UP);
+        BigDecimal discount = rules.discount(subtotal);
+        if (subtotal.signum() > 0
+            && discount.divide(subtotal, 4, RoundingMode.HALF_UP).compareTo(rules.getMaxDiscountRate()) > 0) {
+            throw new IllegalArgumentException("Discount cannot exceed the maximum discount rate");
+        }
+        BigDecimal tax = rules.tax(subtotal.subtract(discount));
+        BigDecimal total = subtotal.subtract(discount).add(tax);
+        return new NewOrder(custId, prodIds, quantities, prices, subtotal, discount, tax, total);
+    }
+
+    // Queue an order; the future completes with its order id once committed
+    // Fails with Inventory.OutOfStockException when a tracked product is short
+    public CompletableFuture<Long> submit(NewOrder order) {
+        return submit(order, null).thenApply(submitted -> submitted.id);
+    }
+
+    // Queue an order with an idempotency key (may be null); if the key was already used,
+    // including by an order still being written when this one was queued, the future
+    // completes with the order id it was used for, marked duplicate, and nothing is written
+    public CompletableFuture<Submitted> submit(final NewOrder order, final String key) {
+        IdempotencyKeys.checkKey(key);
+        Job job = new Job("order", AuditLog.image("cust_id", order.custId, "subtotal", order.subtotal,
+            "discount", order.discount, "tax", order.tax, "total", order.total, "lines", order.prodIds.length)) {
+            long apply() throws SQLException {
+                duplicate = false;
+                reservation = null;
+                if (key != null) {
+                    long existing = IdempotencyKeys.claim(insertOrder.getConnection(), key, orderIdSeq);
+                    if (existing != 0) {
+                        duplicate = true;
+                        return existing;
+                    }
+                }
+                reservation = Inventory.get().reserve(insertOrder.getConnection(), order.prodIds, order.quantities);
+                return writeOrder(order);
+            }
+        };
+        try {
+            Inventory.get().check(order.prodIds, order.quantities);
+        } catch (Inventory.OutOfStockException e) {
+            job.result.completeExceptionally(e);
+            return job.result;
+        }
+        return enqueue(job).result;
+    }
+
+    // Queue a new customer; the future completes with its customer id once committed
+    public CompletableFuture<Long> submitCustomer(final String name, final String email,
+                                                  final String phone, final String address) {
+        Job job = enqueue(new Job("customer", AuditLog.image("cust_name", name, "email", email,
+            "phone", phone, "address", address)) {
+            long apply() throws SQLException {
+                long id = custIdSeq++;
+                insertCustomer.setLong(1, id);
+                insertCustomer.setString(2, name);
+                insertCustomer.setString(3, email);
+                insertCustomer.setString(4, phone);
+                insertCustomer.setString(5, address);
+                insertCustomer.executeUpdate();
+                return id;
+            }
+        });
+        return job.result.thenApply(submitted -> submitted.id);
+    }
+
+    private Job enqueue(Job job) {
+        if (!running || !queue.offer(job)) {
+            throw new RejectedExecutionException("Order intake queue is full");
+        }
+        return job;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized long getCommittedBatches() {
+        return committedBatches;
+    }
+
+    public synchronized long getCommittedItems() {
+        return committedItems;
+    }
+
+    // Stop accepting work and wait for queued work to be written
+    public void close() {
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Audit entries for intake changes are recorded under this user
+    private static final String AUDIT_USER = "intake";
+
+    private abstract static class Job {
+        final CompletableFuture<Submitted> result = new CompletableFuture<>();
+        final String entity;
+        final Map<String, Object> image;
+        // Set by apply(); written in the same transaction as the order
+        Inventory.Reservation reservation;
+        // Set by apply() when the job's idempotency key belonged to an earlier order
+        boolean duplicate;
+
+        Job(String entity, Map<String, Object> image) {
+            this.entity = entity;
+            this.image = image;
+        }
+
+        abstract long apply() throws SQLException;
+
+        void succeed(long id) {
+            if (reservation != null) {
+                reservation.committed();
+            }
+            result.complete(new Submitted(id, duplicate));
+        }
+
+        void fail(Throwable e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void run() {
+        Connection conn = DB.getConn();
+        try {
+            prepare(conn);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            running = false;
+        }
+
+        List<Job> batch = new ArrayList<>(MAX_BATCH);
+        while (running || !queue.isEmpty()) {
+            try {
+                Job first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+            } catch (InterruptedException e) {
+                break;
+            }
+            writeBatch(conn, batch);
+            batch.clear();
+        }
+
+        // Anything still queued after a failed start or interrupt is refused
+        Job job;
+        while ((job = queue.poll()) != null) {
+            job.fail(new RejectedExecutionException("Order intake stopped"));
+        }
+    }
+
+    // Apply the batch in one transaction; if it fails, retry item by item so
+    // only the offending items fail
+    private void writeBatch(Connection conn, List<Job> batch) {
+        long[] ids = new long[batch.size()];
+        try {
+            transaction(conn, batch, ids);
+            AuditLog audit = AuditLog.get();
+            for (int i = 0; i < batch.size(); i++) {
+                Job job = batch.get(i);
+                if (!job.duplicate) {
+                    audit.record(AUDIT_USER, AuditLog.CREATE, job.entity, ids[i], null, job.image);
+                }
+                job.succeed(ids[i]);
+            }
+            recordCommit(batch.size());
+            return;
+        } catch (SQLException | RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).fail(e);
+                return;
+            }
+        }
+
+        for (Job job : batch) {
+            List<Job> single = new ArrayList<>(1);
+            single.add(job);
+            writeBatch(conn, single);
+        }
+    }
+
+    // The write lock is taken up front: a deferred transaction that reads MAX(id) first
+    // fails instead of waiting when another writer commits in between
+    private void transaction(Connection conn, List<Job> batch, long[] ids) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("BEGIN IMMEDIATE");
+        try {
+            orderIdSeq = max(nextOrderId) + 1;
+            lineIdSeq = max(nextLineId) + 1;
+            custIdSeq = max(nextCustId) + 1;
+            for (int i = 0; i < batch.size(); i++) {
+                ids[i] = batch.get(i).apply();
+            }
+            insertLine.executeBatch();
+            stmt.execute("COMMIT");
+        } catch (SQLException | RuntimeException e) {
+            insertLine.clearBatch();
+            stmt.execute("ROLLBACK");
+            throw e;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private long writeOrder(NewOrder order) throws SQLException {
+        customerName.setLong(1, order.custId);
+        ResultSet rs = customerName.executeQuery();
+        if (!rs.next()) {
+            rs.close();
+            // A data exception: the request is at fault, not the database
+            throw new SQLDataException("Customer " + order.custId + " not found");
+        }
+        String name = rs.getString(1);
+        rs.close();
+
+        long orderId = orderIdSeq++;
+        insertOrder.setLong(1, orderId);
+        insertOrder.setLong(2, order.custId);
+        insertOrder.setString(3, name);
+        insertOrder.setBigDecimal(4, order.subtotal);
+        insertOrder.setBigDecimal(5, order.discount);
+        insertOrder.setBigDecimal(6, order.tax);
+        insertOrder.setBigDecimal(7, order.total);
+        insertOrder.executeUpdate();
+        CustomerStats.orderAdded(insertOrder.getConnection(), orderId);
+
+        for (int i = 0; i < order.prodIds.length; i++) {
+            productName.setLong(1, order.prodIds[i]);
+            rs = productName.executeQuery();
+            String prodName = rs.next() ? rs.getString(1) : null;
+            rs.close();
+
+            insertLine.setLong(1, lineIdSeq++);
+            insertLine.setLong(2, orderId);
+            insertLine.setLong(3, order.prodIds[i]);
+            insertLine.setString(4, prodName);
+            insertLine.setInt(5, order.quantities[i]);
+            insertLine.setBigDecimal(6, order.prices[i]);
+            insertLine.addBatch();
+        }
+        return orderId;
+    }
+
+    private void prepare(Connection conn) throws SQLException {
+        nextOrderId = conn.prepareStatement(OrderArchive.LAST_ORDER_ID);
+        nextLineId = conn.prepareStatement(OrderArchive.LAST_LINE_ID);
+        nextCustId = conn.prepareStatement("SELECT MAX(cust_id) FROM customer");
+        customerName = conn.prepareStatement("SELECT cust_name FROM customer WHERE cust_id = ?");
+        productName = conn.prepareStatement("SELECT prod_name FROM product WHERE prod_id = ?");
+        insertOrder = conn.prepareStatement(
+            "INSERT INTO orders (order_id, cust_id, cust_name, order_date, subtotal, discount, tax, total, order_ts) " +
+            "VALUES (?, ?, ?, datetime('now'), ?, ?, ?, ?, strftime('%s', 'now'))");
+        insertLine = conn.prepareStatement(
+            "INSERT INTO order_line (line_id, order_id, prod_id, prod_name, quantity, unit_price) " +
+            "VALUES (?, ?, ?, ?, ?, ?)");
+        insertCustomer = conn.prepareStatement(
+            "INSERT INTO customer (cust_id, cust_name, email, phone, address) VALUES (?, ?, ?, ?, ?)");
+    }
+
+    private static long max(PreparedStatement ps) throws SQLException {
+        ResultSet rs = ps.executeQuery();
+        long max = rs.next() ? rs.getLong(1) : 0;
+        rs.close();
+        return max;
+    }
+
+    private synchronized void recordCommit(int items) {
+        committedBatches++;
+        committedItems += items;
+    }
+}
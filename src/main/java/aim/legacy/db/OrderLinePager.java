@@ -0,0 +1,161 @@
+/**
+ * OrderLinePager.java
+ *
+ * Random access to the lines of one order without loading them all.
+ * On open it reads only the line ids (index-only) and the aggregates needed for
+ * totals and validation; line rows are then fetched in pages as the editor
+ * scrolls to them, keeping a small LRU of recently used pages.
+ */
+package aim.legacy.db;
+
+import aim.legacy.domain.OrderLine;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class OrderLinePager {
+
+    private static final int PAGE_SIZE = 500;
+    private static final int MAX_PAGES = 32;
+
+    private final Connection conn;
+    private final String schema;
+    private final long orderId;
+
+    private String customerName;
+    private long[] lineIds;
+    private BigDecimal subtotal;
+    private int invalidCount;
+
+    private final Map<Integer, OrderLine[]> pages = new LinkedHashMap<Integer, OrderLine[]>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, OrderLine[]> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+
+    public OrderLinePager(Connection conn, String schema, long orderId) throws SQLException {
+        this.conn = conn;
+        this.schema = schema;
+        this.orderId = orderId;
+        loadHeader();
+        loadLineIds();
+        loadAggregates();
+    }
+
+    // Number of lines in an order; answered from idx_order_line_order alone
+    // Lets callers decide between loading the whole order and paging it
+    public static int countLines(Connection conn, String schema, long orderId) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT COUNT(*) FROM " + schema + ".order_line WHERE order_id = ?");
+        ps.setLong(1, orderId);
+        ResultSet rs = ps.executeQuery();
+        int count = rs.next() ? rs.getInt(1) : 0;
+        rs.close();
+        ps.close();
+        return count;
+    }
+
+    private void loadHeader() throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT cust_name FROM " + schema + ".orders WHERE order_id = ?");
+        ps.setLong(1, orderId);
+        ResultSet rs = ps.executeQuery();
+        if (rs.next()) {
+            customerName = rs.getString(1);
+        }
+        rs.close();
+        ps.close();
+    }
+
+    private void loadLineIds() throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT line_id FROM " + schema + ".order_line WHERE order_id = ? ORDER BY line_id");
+        ps.setLong(1, orderId);
+        ResultSet rs = ps.executeQuery();
+        long[] ids = new long[256];
+        int count = 0;
+        while (rs.next()) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = rs.getLong(1);
+        }
+        rs.close();
+        ps.close();
+        lineIds = Arrays.copyOf(ids, count);
+    }
+
+    // Subtotal in exact cents and the number of lines that would fail validation
+    private void loadAggregates() throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT COALESCE(SUM(quantity * CAST(ROUND(unit_price * 100) AS INTEGER)), 0), " +
+            "COALESCE(SUM(quantity <= 0 OR unit_price IS NULL OR unit_price < 0), 0) " +
+            "FROM " + schema + ".order_line WHERE order_id = ?");
+        ps.setLong(1, orderId);
+        ResultSet rs = ps.executeQuery();
+        rs.next();
+        subtotal = BigDecimal.valueOf(rs.getLong(1), 2);
+        invalidCount = rs.getInt(2);
+        rs.close();
+        ps.close();
+    }
+
+    public boolean isArchived() {
+        return !OrderArchive.MAIN.equals(schema);
+    }
+
+    public String getCustomerName() {
+        return customerName;
+    }
+
+    public int size() {
+        return lineIds.length;
+    }
+
+    public BigDecimal getSubtotal() {
+        return subtotal;
+    }
+
+    public int getInvalidCount() {
+        return invalidCount;
+    }
+
+    // Line at a position (ordered by line id), fetching its page if needed
+    public OrderLine get(int index) {
+        int page = index / PAGE_SIZE;
+        OrderLine[] lines = pages.get(page);
+        if (lines == null) {
+            try {
+                lines = fetchPage(page);
+            } catch (SQLException e) {
+                throw new IllegalStateException("Error loading order lines: " + e.getMessage(), e);
+            }
+            pages.put(page, lines);
+        }
+        return lines[index % PAGE_SIZE];
+    }
+
+    private OrderLine[] fetchPage(int page) throws SQLException {
+        int from = page * PAGE_SIZE;
+        int to = Math.min(lineIds.length, from + PAGE_SIZE);
+        OrderLine[] lines = new OrderLine[to - from];
+
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT line_id, prod_id, prod_name, quantity, unit_price FROM " + schema +
+            ".order_line WHERE order_id = ? AND line_id BETWEEN ? AND ? ORDER BY line_id");
+        ps.setLong(1, orderId);
+        ps.setLong(2, lineIds[from]);
+        ps.setLong(3, lineIds[to - 1]);
+        ResultSet rs = ps.executeQuery();
+        int i = 0;
+        while (rs.next() && i < lines.length) {
+            String price = rs.getString(5);
+            lines[i++] = new OrderLine(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getInt(4),
+                price == null ? null : new BigDecimal(price));
+        }
+        rs.close();
+        ps.close();
+        return lines;
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * OrderRules.java
+ *
+ * Discount tiers and tax rate applied to order totals.
+ * Rules are read from a JSON file (orderentry-rules.json next to the database,
+ * or -Dorderentry.rules=<file>) and compiled into a sorted threshold table that
+ * is searched with a binary search. The file is watched and a new compiled
+ * table is swapped in when it changes; a file that fails to parse or validate
+ * is reported and the previous rules stay in force.
+ *
+ * File format:
+ *   {
+ *     "taxRate": 0.14975,
+ *     "maxDiscountRate": 0.15,
+ *     "discountTiers": [ { "minSubtotal": 500, "rate": 0.05 }, ... ]
+ *   }
+ */
+package aim.legacy.db;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public final class OrderRules {
+
+    private static final String RULES_FILE = "orderentry-rules.json";
+
+    // Built-in rules, used until a rules file is present
+    private static final OrderRules DEFAULTS = new OrderRules(
+        new long[]{50000, 100000, 200000},
+        new BigDecimal[]{new BigDecimal("0.05"), new BigDecimal("0.10"), new BigDecimal("0.15")},
+        new BigDecimal("0.14975"),
+        new BigDecimal("0.15"),
+        "built-in");
+
+    private static volatile OrderRules current;
+    private static Thread watcher;
+
+    // Compiled tiers: ascending subtotal thresholds in cents and the rate from each threshold up
+    private final long[] thresholds;
+    private final BigDecimal[] rates;
+    private final BigDecimal taxRate;
+    private final BigDecimal maxDiscountRate;
+    private final String source;
+
+    private OrderRules(long[] thresholds, BigDecimal[] rates, BigDecimal taxRate,
+                       BigDecimal maxDiscountRate, String source) {
+        this.thresholds = thresholds;
+        this.rates = rates;
+        this.taxRate = taxRate;
+        this.maxDiscountRate = maxDiscountRate;
+        this.source = source;
+    }
+
+    // Rules in force; the first call loads the file and starts watching it
+    public static OrderRules current() {
+        OrderRules rules = current;
+        if (rules == null) {
+            synchronized (OrderRules.class) {
+                if (current == null) {
+                    reload();
+                    startWatcher();
+                }
+                rules = current;
+            }
+        }
+        return rules;
+    }
+
+    // The built-in rules, whatever the rules file says
+    static OrderRules builtIn() {
+        return DEFAULTS;
+    }
+
+    public static File getRulesFile() {
+        String path = System.getProperty("orderentry.rules");
+        if (path != null) {
+            return new File(path).getAbsoluteFile();
+        }
+        File parent = new File(DB.getDbFile()).getAbsoluteFile().getParentFile();
+        return new File(parent, RULES_FILE);
+    }
+
+    // Discount for a subtotal: the rate of the highest tier reached, rounded to cents
+    public BigDecimal discount(BigDecimal subtotal) {
+        long cents = subtotal.movePointRight(2).setScale(0, RoundingMode.DOWN).longValue();
+        int lo = 0;
+        int hi = thresholds.length - 1;
+        int tier = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (thresholds[mid] <= cents) {
+                tier = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        BigDecimal discount = tier < 0 ? BigDecimal.ZERO : subtotal.multiply(rates[tier]);
+        return discount.setScale(2, RoundingMode.HALF_UP);
+    }
+
+    // Tax on the amount after discount, rounded to cents
+    public BigDecimal tax(BigDecimal taxableAmount) {
+        return taxableAmount.multiply(taxRate).setScale(2, RoundingMode.HALF_UP);
+    }
+
+    public BigDecimal getTaxRate() {
+        return taxRate;
+    }
+
+    public BigDecimal getMaxDiscountRate() {
+        return maxDiscountRate;
+    }
+
+    public String describe() {
+        StringBuilder sb = new StringBuilder("Rules (" + source + "): tax " + taxRate + ", discounts");
+        for (int i = 0; i < thresholds.length; i++) {
+            sb.append(i == 0 ? " " : ", ").append(rates[i]).append(" from $").append(BigDecimal.valueOf(thresholds[i], 2));
+        }
+        return sb.toString();
+    }
+
+    // Read the rules file (or fall back to the built-in rules) and swap it in
+    // Returns false and keeps the current rules if the file is invalid
+    public static synchronized boolean reload() {
+        File file = getRulesFile();
+        if (!file.exists()) {
+            current = DEFAULTS;
+            return true;
+        }
+        try {
+            current = compile(new ObjectMapper()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true)
+                .readValue(file, RuleFile.class), file.getPath());
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Ignoring invalid rules file " + file + ": " + e.getMessage());
+            if (current == null) {
+                current = DEFAULTS;
+            }
+            return false;
+        }
+    }
+
+    static OrderRules compile(RuleFile file, String source) {
+        if (file.taxRate == null || file.taxRate.signum() < 0 || file.taxRate.compareTo(BigDecimal.ONE) >= 0) {
+            throw new IllegalArgumentException("taxRate must be at least 0 and below 1");
+        }
+        BigDecimal maxRate = file.maxDiscountRate == null ? DEFAULTS.maxDiscountRate : file.maxDiscountRate;
+
+        List<Tier> tiers = new ArrayList<>(file.discountTiers == null ? Collections.<Tier>emptyList() : file.discountTiers);
+        for (Tier tier : tiers) {
+            if (tier.minSubtotal == null || tier.minSubtotal.signum() < 0 || tier.rate == null) {
+                throw new IllegalArgumentException("each discount tier needs a minSubtotal >= 0 and a rate");
+            }
+            if (tier.rate.signum() < 0 || tier.rate.compareTo(maxRate) > 0) {
+                throw new IllegalArgumentException("discount rate " + tier.rate + " is outside 0.." + maxRate);
+            }
+        }
+        Collections.sort(tiers, (a, b) -> a.minSubtotal.compareTo(b.minSubtotal));
+
+        long[] thresholds = new long[tiers.size()];
+        BigDecimal[] rates = new BigDecimal[tiers.size()];
+        for (int i = 0; i < tiers.size(); i++) {
+            thresholds[i] = tiers.get(i).minSubtotal.movePointRight(2).setScale(0, RoundingMode.UP).longValueExact();
+            rates[i] = tiers.get(i).rate;
+            if (i > 0 && thresholds[i] == thresholds[i - 1]) {
+                throw new IllegalArgumentException("duplicate discount tier at " + tiers.get(i).minSubtotal);
+            }
+        }
+        return new OrderRules(thresholds, rates, file.taxRate, maxRate, source);
+    }
+
+    // Watch the rules file's directory and reload when the file is written, created or removed
+    private static void startWatcher() {
+        final Path file = getRulesFile().toPath();
+        final Path dir = file.getParent();
+        if (watcher != null || dir == null || !Files.isDirectory(dir)) {
+            return;
+        }
+        final WatchService service;
+        try {
+            service = dir.getFileSystem().newWatchService();
+            dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        watcher = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = service.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Object context = event.context();
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                        || (context instanceof Path && file.getFileName().equals(context))) {
+                        changed = true;
+                    }
+                }
+                if (changed && reload()) {
+                    System.out.println(current.describe());
+                }
+                if (!key.reset()) {
+                    return;
+                }
+            }
+        }, "order-rules-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // JSON binding for the rules file
+    static class RuleFile {
+        public BigDecimal taxRate;
+        public BigDecimal maxDiscountRate;
+        public List<Tier> discountTiers;
+    }
+
+    static class Tier {
+        public BigDecimal minSubtotal;
+        public BigDecimal rate;
+    }
+}
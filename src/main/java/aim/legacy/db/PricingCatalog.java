@@ -0,0 +1,399 @@
+/**
+ * PricingCatalog.java
+ *
+ * Resolves the unit price of a product for a customer on a date.
+ * Prices come from, in order of precedence:
+ *   1. contract_price   - negotiated (customer, product) prices with an effective period
+ *   2. price_list_item  - the most recent price list effective on the date that lists the product
+ *   3. product.unit_price
+ * All three are loaded once into primitive-keyed interval indexes, so a lookup
+ * is a hash probe plus a binary search with no query per order line.
+ * List price changes made through this class are pushed into the loaded
+ * catalog; other changes drop it so the next get() reloads.
+ */
+package aim.legacy.db;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Map;
+
+public class PricingCatalog {
+
+    // Start and end days of an open-ended interval
+    private static final long ALWAYS = Long.MIN_VALUE;
+    private static final long FOREVER = Long.MAX_VALUE;
+    private static final long NO_PRICE = Long.MIN_VALUE;
+
+    private static PricingCatalog instance;
+
+    private final IntervalIndex contracts;
+    private final IntervalIndex priceLists;
+    private final IntervalIndex basePrices;
+
+    private PricingCatalog(IntervalIndex contracts, IntervalIndex priceLists, IntervalIndex basePrices) {
+        this.contracts = contracts;
+        this.priceLists = priceLists;
+        this.basePrices = basePrices;
+    }
+
+    // Shared catalog for the application database, loaded on first use
+    public static synchronized PricingCatalog get() {
+        if (instance == null) {
+            try {
+                instance = load(DB.getConn());
+            } catch (SQLException e) {
+                e.printStackTrace();
+                instance = new PricingCatalog(new IntervalIndex.Builder().build(),
+                    new IntervalIndex.Builder().build(), new IntervalIndex.Builder().build());
+            }
+        }
+        return instance;
+    }
+
+    // Drop the shared catalog; the next get() reloads it from the database
+    public static synchronized void invalidate() {
+        instance = null;
+    }
+
+    // Pricing tables live in the main database only; customers and products own their rows
+    static void ensureTables(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE IF NOT EXISTS contract_price (" +
+            "cust_id INTEGER NOT NULL REFERENCES customer(cust_id) ON DELETE CASCADE, " +
+            "prod_id INTEGER NOT NULL REFERENCES product(prod_id) ON DELETE CASCADE, " +
+            "effective_from TEXT NOT NULL, " +
+            "effective_to TEXT, " +
+            "unit_price REAL NOT NULL, " +
+            "PRIMARY KEY (cust_id, prod_id, effective_from))");
+        stmt.execute("CREATE TABLE IF NOT EXISTS price_list (" +
+            "list_id INTEGER PRIMARY KEY, " +
+            "list_name TEXT NOT NULL, " +
+            "effective_from TEXT NOT NULL)");
+        stmt.execute("CREATE TABLE IF NOT EXISTS price_list_item (" +
+            "list_id INTEGER NOT NULL REFERENCES price_list(list_id) ON DELETE CASCADE, " +
+            "prod_id INTEGER NOT NULL REFERENCES product(prod_id) ON DELETE CASCADE, " +
+            "unit_price REAL NOT NULL, " +
+            "PRIMARY KEY (list_id, prod_id))");
+        // Product deletes cascade by prod_id into both tables
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_contract_price_prod ON contract_price(prod_id)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_price_list_item_prod ON price_list_item(prod_id)");
+        stmt.close();
+    }
+
+    // Build the indexes from the database; each query streams rows already in index order
+    public static PricingCatalog load(Connection conn) throws SQLException {
+        ensureTables(conn);
+        Statement stmt = conn.createStatement();
+
+        IntervalIndex.Builder contracts = new IntervalIndex.Builder();
+        ResultSet rs = stmt.executeQuery(
+            "SELECT cust_id, prod_id, effective_from, effective_to, unit_price FROM contract_price " +
+            "ORDER BY cust_id, prod_id, effective_from");
+        while (rs.next()) {
+            String to = rs.getString(4);
+            contracts.add(contractKey(rs.getLong(1), rs.getLong(2)), day(rs.getString(3)),
+                to == null ? FOREVER : day(to), cents(rs.getString(5)));
+        }
+        rs.close();
+
+        // A later list supersedes earlier ones for the products it contains
+        IntervalIndex.Builder priceLists = new IntervalIndex.Builder();
+        rs = stmt.executeQuery(
+            "SELECT i.prod_id, l.effective_from, i.unit_price FROM price_list_item i " +
+            "JOIN price_list l ON l.list_id = i.list_id ORDER BY i.prod_id, l.effective_from, l.list_id");
+        while (rs.next()) {
+            priceLists.add(rs.getLong(1), day(rs.getString(2)), FOREVER, cents(rs.getString(3)));
+        }
+        rs.close();
+
+        stmt.close();
+
+        return new PricingCatalog(contracts.build(), priceLists.build(), loadBasePrices(conn));
+    }
+
+    private static IntervalIndex loadBasePrices(Connection conn) throws SQLException {
+        IntervalIndex.Builder basePrices = new IntervalIndex.Builder();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT prod_id, unit_price FROM product ORDER BY prod_id");
+        while (rs.next()) {
+            basePrices.add(rs.getLong(1), ALWAYS, FOREVER, cents(rs.getString(2)));
+        }
+        rs.close();
+        stmt.close();
+        return basePrices.build();
+    }
+
+    // Reload product list prices into the shared catalog after products were added or changed
+    // Contract and price list indexes are kept; lookups already running finish on the old catalog
+    public static synchronized void reloadBasePrices(Connection conn) throws SQLException {
+        if (instance != null) {
+            instance = new PricingCatalog(instance.contracts, instance.priceLists, loadBasePrices(conn));
+        }
+    }
+
+    // Unit price for a customer and product on a date, or null for an unknown product
+    // custId 0 means no customer (list and base prices only)
+    public BigDecimal price(long custId, long prodId, LocalDate date) {
+        long day = date.toEpochDay();
+        long cents = custId > 0 ? contracts.find(contractKey(custId, prodId), day) : NO_PRICE;
+        if (cents == NO_PRICE) {
+            cents = priceLists.find(prodId, day);
+        }
+        if (cents == NO_PRICE) {
+            cents = basePrices.find(prodId, day);
+        }
+        return cents == NO_PRICE ? null : BigDecimal.valueOf(cents, 2);
+    }
+
+    // Prices for many lines of one customer at once, e.g. for an import batch
+    // Entries are null for unknown products
+    public BigDecimal[] prices(long custId, long[] prodIds, LocalDate date) {
+        BigDecimal[] result = new BigDecimal[prodIds.length];
+        for (int i = 0; i < prodIds.length; i++) {
+            result[i] = price(custId, prodIds[i], date);
+        }
+        return result;
+    }
+
+    // Record a negotiated price for [from, to); to may be null for open-ended
+    public static void putContractPrice(Connection conn, long custId, long prodId,
+                                        LocalDate from, LocalDate to, BigDecimal price) throws SQLException {
+        ensureTables(conn);
+        PreparedStatement ps = conn.prepareStatement(
+            "INSERT OR REPLACE INTO contract_price (cust_id, prod_id, effective_from, effective_to, unit_price) " +
+            "VALUES (?, ?, ?, ?, ?)");
+        ps.setLong(1, custId);
+        ps.setLong(2, prodId);
+        ps.setString(3, from.toString());
+        ps.setString(4, to == null ? null : to.toString());
+        ps.setBigDecimal(5, price);
+        ps.executeUpdate();
+        ps.close();
+        invalidate();
+    }
+
+    // Create a price list taking effect on a date, in one transaction
+    // Returns the new list id
+    public static long createPriceList(Connection conn, String name, LocalDate effectiveFrom,
+                                       Map<Long, BigDecimal> prices) throws SQLException {
+        ensureTables(conn);
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO price_list (list_name, effective_from) VALUES (?, ?)");
+            ps.setString(1, name);
+            ps.setString(2, effectiveFrom.toString());
+            ps.executeUpdate();
+            ps.close();
+
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT last_insert_rowid()");
+            long listId = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            stmt.close();
+
+            ps = conn.prepareStatement("INSERT INTO price_list_item (list_id, prod_id, unit_price) VALUES (?, ?, ?)");
+            for (Map.Entry<Long, BigDecimal> entry : prices.entrySet()) {
+                ps.setLong(1, listId);
+                ps.setLong(2, entry.getKey());
+                ps.setBigDecimal(3, entry.getValue());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            ps.close();
+
+            conn.commit();
+            invalidate();
+            return listId;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    // Change the list price of products by a percentage (e.g. 5 or -2.5), rounded to cents
+    // prodIds null means every product; a selection is staged in a temp table so either
+    // way the prices change with one UPDATE in one transaction
+    // Returns the number of products changed
+    public static int adjustListPrices(Connection conn, long[] prodIds, BigDecimal percent) throws SQLException {
+        double factor = BigDecimal.ONE.add(percent.movePointLeft(2)).doubleValue();
+        if (factor <= 0) {
+            throw new SQLException("Price change of " + percent + "% would make prices zero or negative");
+        }
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            int changed;
+            if (prodIds == null) {
+                PreparedStatement ps = conn.prepareStatement("UPDATE product SET unit_price = ROUND(unit_price * ?, 2)");
+                ps.setDouble(1, factor);
+                changed = ps.executeUpdate();
+                ps.close();
+            } else {
+                Statement stmt = conn.createStatement();
+                stmt.execute("CREATE TEMP TABLE IF NOT EXISTS price_change_product (prod_id INTEGER PRIMARY KEY)");
+                stmt.execute("DELETE FROM temp.price_change_product");
+                PreparedStatement ps = conn.prepareStatement(
+                    "INSERT OR IGNORE INTO temp.price_change_product (prod_id) VALUES (?)");
+                for (long prodId : prodIds) {
+                    ps.setLong(1, prodId);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                ps.close();
+
+                ps = conn.prepareStatement("UPDATE product SET unit_price = ROUND(unit_price * ?, 2) " +
+                    "WHERE prod_id IN (SELECT prod_id FROM temp.price_change_product)");
+                ps.setDouble(1, factor);
+                changed = ps.executeUpdate();
+                ps.close();
+                stmt.execute("DELETE FROM temp.price_change_product");
+                stmt.close();
+            }
+            conn.commit();
+            reloadBasePrices(conn);
+            return changed;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    // Customer and product ids each fit in 32 bits, so the pair packs into one long key
+    private static long contractKey(long custId, long prodId) {
+        return (custId << 32) | (prodId & 0xFFFFFFFFL);
+    }
+
+    private static long day(String date) {
+        return LocalDate.parse(date.substring(0, 10)).toEpochDay();
+    }
+
+    private static long cents(String price) {
+        return new BigDecimal(price).setScale(2, RoundingMode.HALF_UP).unscaledValue().longValue();
+    }
+
+    // Open-addressing map from a long key to a run of intervals sorted by start day
+    // Intervals of all keys share flat arrays; a key's run is [runStart, runStart + runLength)
+    static final class IntervalIndex {
+        private final long[] slotKeys;
+        private final int[] runStart;
+        private final int[] runLength;
+        private final int mask;
+
+        private final long[] from;
+        private final long[] to;
+        private final long[] cents;
+        // Latest end of the intervals from the start of the run up to each one
+        private final long[] reach;
+
+        private IntervalIndex(long[] keys, int[] starts, int[] lengths, int runs,
+                              long[] from, long[] to, long[] cents, long[] reach) {
+            int size = Integer.highestOneBit(Math.max(runs, 1) * 2) * 2;
+            slotKeys = new long[size];
+            runStart = new int[size];
+            runLength = new int[size];
+            mask = size - 1;
+            for (int r = 0; r < runs; r++) {
+                int i = slot(keys[r], mask);
+                while (slotKeys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slotKeys[i] = keys[r];
+                runStart[i] = starts[r];
+                runLength[i] = lengths[r];
+            }
+            this.from = from;
+            this.to = to;
+            this.cents = cents;
+            this.reach = reach;
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        // Price in cents of the latest interval starting on or before day that covers day
+        // Intervals may overlap (a short promotion inside a longer contract), so when the
+        // latest one has ended, earlier ones are tried while any of them still reaches day
+        long find(long key, long day) {
+            int i = slot(key, mask);
+            while (slotKeys[i] != key) {
+                if (slotKeys[i] == 0) {
+                    return NO_PRICE;
+                }
+                i = (i + 1) & mask;
+            }
+            int first = runStart[i];
+            int lo = first;
+            int hi = lo + runLength[i] - 1;
+            int match = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (from[mid] <= day) {
+                    match = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            for (int j = match; j >= first && day < reach[j]; j--) {
+                if (day < to[j]) {
+                    return cents[j];
+                }
+            }
+            return NO_PRICE;
+        }
+
+        // Collects intervals in (key, from) order and groups them into runs
+        static final class Builder {
+            private long[] keys = new long[64];
+            private int[] starts = new int[64];
+            private int[] lengths = new int[64];
+            private int runs;
+
+            private long[] from = new long[64];
+            private long[] to = new long[64];
+            private long[] cents = new long[64];
+            private long[] reach = new long[64];
+            private int count;
+
+            void add(long key, long fromDay, long toDay, long price) {
+                if (count == from.length) {
+                    from = Arrays.copyOf(from, count * 2);
+                    to = Arrays.copyOf(to, count * 2);
+                    cents = Arrays.copyOf(cents, count * 2);
+                    reach = Arrays.copyOf(reach, count * 2);
+                }
+                if (runs == 0 || keys[runs - 1] != key) {
+                    if (runs == keys.length) {
+                        keys = Arrays.copyOf(keys, runs * 2);
+                        starts = Arrays.copyOf(starts, runs * 2);
+                        lengths = Arrays.copyOf(lengths, runs * 2);
+                    }
+                    keys[runs] = key;
+                    starts[runs] = count;
+                    runs++;
+                }
+                lengths[runs - 1]++;
+                from[count] = fromDay;
+                to[count] = toDay;
+                cents[count] = price;
+                reach[count] = starts[runs - 1] == count ? toDay : Math.max(reach[count - 1], toDay);
+                count++;
+            }
+
+            IntervalIndex build() {
+                return new IntervalIndex(keys, starts, lengths, runs, from, to, cents, reach);
+            }
+        }
+    }
+}
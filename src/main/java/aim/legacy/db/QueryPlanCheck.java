@@ -0,0 +1,576 @@
+/**
+ * QueryPlanCheck.java
+ *
+ * Query plan regression check for the statements the application issues.
+ * Each statement is bound with values sampled from the database, explained
+ * with EXPLAIN QUERY PLAN and then timed. A statement fails when its plan
+ * scans a whole table or sorts in a temporary B-tree, unless the catalog
+ * below allows it with a reason (screens that list every row, substring
+ * searches, sorting an already filtered result).
+ * Run it against a large generated database; it exits with status 1 when a
+ * statement fails, and writes the plans and a per-statement latency baseline
+ * as JSON. Writes are timed inside a transaction that is rolled back.
+ * Run with: ./mvnw verify -Pquery-plans   (generates target/query-plans.db first)
+ *       or: ./mvnw exec:java@queryplans -Dorderentry.db=big.db -Dexec.args="--runs 50"
+ * When you add a statement to the application, add it to catalog() as well.
+ */
+package aim.legacy.db;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class QueryPlanCheck {
+
+    private static final String CUSTOMER_COLUMNS = "cust_id, cust_name, email, phone, address";
+    private static final String ORDER_LIST_COLUMNS = "order_id, cust_name, order_date, subtotal, discount, tax, total";
+    private static final String LINE_COLUMNS = "line_id, prod_id, prod_name, quantity, unit_price";
+    private static final String CENTS = "CAST(ROUND(total * 100) AS INTEGER)";
+
+    // A baseline entry only counts as slower when it lost both this factor and this much time
+    private static final double SLOWER_FACTOR = 2.0;
+    private static final long SLOWER_MIN_MICROS = 1000;
+
+    // One application statement with sample parameters and the plan steps it may use
+    static class Query {
+        final String name;
+        final String source;
+        final String sql;
+        final Object[] params;
+        String scanAllowed;
+        String sortAllowed;
+
+        Query(String name, String source, String sql, Object... params) {
+            this.name = name;
+            this.source = source;
+            this.sql = sql;
+            this.params = params;
+        }
+
+        Query allowScan(String reason) {
+            scanAllowed = reason;
+            return this;
+        }
+
+        Query allowSort(String reason) {
+            sortAllowed = reason;
+            return this;
+        }
+    }
+
+    // Values that exist in the database, so each plan and timing reflects a real lookup
+    static class Samples {
+        long orderId;
+        long lineId;
+        long custId;
+        String namePrefix;
+        long prodId;
+        long tsFrom;
+        long tsTo;
+
+        static Samples read(Connection conn) throws SQLException {
+            Samples s = new Samples();
+            Statement stmt = conn.createStatement();
+            // An order in the middle of the table, with lines, and its customer
+            ResultSet rs = stmt.executeQuery(
+                "SELECT o.order_id, o.cust_id, c.cust_name FROM orders o " +
+                "JOIN customer c ON c.cust_id = o.cust_id " +
+                "WHERE o.order_id >= (SELECT (MIN(order_id) + MAX(order_id)) / 2 FROM orders) " +
+                "AND EXISTS (SELECT 1 FROM order_line l WHERE l.order_id = o.order_id) LIMIT 1");
+            if (!rs.next()) {
+                rs.close();
+                stmt.close();
+                throw new IllegalStateException("The database has no orders with lines; generate one first");
+            }
+            s.orderId = rs.getLong(1);
+            s.custId = rs.getLong(2);
+            String name = rs.getString(3);
+            s.namePrefix = name.substring(0, Math.min(3, name.length()));
+            rs.close();
+            rs = stmt.executeQuery("SELECT MAX(order_ts) FROM orders");
+            rs.next();
+            s.tsTo = rs.getLong(1);
+            s.tsFrom = s.tsTo - 30L * 24 * 3600;
+            rs.close();
+            rs = stmt.executeQuery("SELECT line_id, prod_id FROM order_line WHERE order_id = " + s.orderId + " LIMIT 1");
+            rs.next();
+            s.lineId = rs.getLong(1);
+            s.prodId = rs.getLong(2);
+            rs.close();
+            stmt.close();
+            return s;
+        }
+    }
+
+    // Every statement on a user or intake path, grouped by the code that issues it
+    static List<Query> catalog(Samples s) {
+        List<Query> q = new ArrayList<>();
+
+        // Customers screen
+        q.add(new Query("customer list", "CustomersScreen.loadCustomers",
+            "SELECT " + CUSTOMER_COLUMNS + " FROM customer ORDER BY cust_id")
+            .allowScan("lists every customer"));
+        q.add(new Query("customer search", "CustomersScreen.searchCustomers",
+            "SELECT " + CUSTOMER_COLUMNS + " FROM customer WHERE LOWER(cust_name) LIKE ? ORDER BY cust_id",
+            "%" + s.namePrefix.toLowerCase() + "%")
+            .allowScan("substring match cannot use an index"));
+        q.add(new Query("customer history", "CustomersScreen.loadHistory",
+            "SELECT order_id, order_date, total FROM orders WHERE cust_id = ? ORDER BY order_date DESC LIMIT ?",
+            s.custId, 50));
+        q.add(new Query("customer stats", "CustomerStats.load",
+            "SELECT order_count, lifetime_cents, last_order_date FROM customer_stats WHERE cust_id = ?", s.custId));
+        q.add(new Query("next customer id", "CustomersScreen.addCustomer",
+            "SELECT MAX(cust_id) FROM customer"));
+        q.add(new Query("customer update", "CustomersScreen.editCustomer",
+            "UPDATE customer SET cust_name = ?, email = ?, phone = ?, address = ? WHERE cust_id = ?",
+            "Name", "e@mail.com", "555-0100", "1 Main St", s.custId));
+        q.add(new Query("customer delete count", "BulkDeleteService.countOrdersForCustomers",
+            "SELECT COUNT(*) FROM orders WHERE cust_id IN (?, ?, ?)", s.custId, s.custId + 1, s.custId + 2));
+        q.add(new Query("customer delete", "BulkDeleteService.deleteCustomers",
+            "DELETE FROM customer WHERE cust_id IN (?, ?, ?)", s.custId, s.custId + 1, s.custId + 2));
+
+        q.add(new Query("duplicate scan", "DuplicateCustomers.find",
+            "SELECT " + CUSTOMER_COLUMNS + " FROM customer ORDER BY cust_id")
+            .allowScan("reads every customer once to build the blocking index"));
+        q.add(new Query("merge name", "DuplicateCustomers.merge",
+            "SELECT cust_name FROM customer WHERE cust_id = ?", s.custId));
+        q.add(new Query("merge image", "DuplicateCustomers.merge",
+            "SELECT cust_name, email, phone, address FROM customer WHERE cust_id = ?", s.custId));
+        q.add(new Query("merge orders", "DuplicateCustomers.merge",
+            "UPDATE orders SET cust_id = ?, cust_name = ? WHERE cust_id = ?", s.custId, "Name", s.custId + 1));
+        q.add(new Query("merge stats", "CustomerStats.customerMerged",
+            "INSERT INTO customer_stats (cust_id, order_count, lifetime_cents, last_order_date) " +
+            "SELECT ?, order_count, lifetime_cents, last_order_date FROM customer_stats WHERE cust_id = ? " +
+            "ON CONFLICT(cust_id) DO UPDATE SET order_count = order_count + excluded.order_count, " +
+            "lifetime_cents = lifetime_cents + excluded.lifetime_cents", s.custId, s.custId + 1));
+        q.add(new Query("merge contract prices", "DuplicateCustomers.merge",
+            "UPDATE OR IGNORE contract_price SET cust_id = ? WHERE cust_id = ?", s.custId, s.custId + 1));
+        q.add(new Query("merge delete", "DuplicateCustomers.merge",
+            "DELETE FROM customer WHERE cust_id = ?", s.custId + 1));
+        q.add(new Query("merge record", "DuplicateCustomers.merge",
+            "INSERT INTO customer_merge (keep_id, keep_name, duplicate_id) VALUES (?, ?, ?)", s.custId, "Name", s.custId + 1));
+        q.add(new Query("merge archives pending", "DuplicateCustomers.finishArchived",
+            "SELECT merge_id, keep_id, keep_name, duplicate_id FROM customer_merge ORDER BY merge_id")
+            .allowScan("holds only merges whose archives are not repointed yet"));
+        q.add(new Query("merge archives done", "DuplicateCustomers.finishArchived",
+            "DELETE FROM customer_merge WHERE merge_id = ?", 1));
+        q.add(new Query("screen change token", "DB.changeToken",
+            "SELECT (SELECT MAX(audit_id) FROM audit_log), (SELECT MAX(cust_id) FROM customer), " +
+            "(SELECT MAX(order_id) FROM orders), (SELECT SUM(order_count) FROM order_archive)")
+            .allowScan("sums the archive catalog, one row per archived year"));
+
+        // Orders screen
+        q.add(new Query("order list", "OrdersScreen.loadOrders",
+            "SELECT " + ORDER_LIST_COLUMNS + " FROM main.orders ORDER BY order_id")
+            .allowScan("lists every order when no filter is set"));
+        q.add(new Query("order list by date", "OrdersScreen.loadOrders",
+            "SELECT " + ORDER_LIST_COLUMNS + " FROM main.orders WHERE order_ts >= ? AND order_ts < ? ORDER BY order_id",
+            s.tsFrom, s.tsTo)
+            .allowSort("sorts the orders in the date range only"));
+        q.add(new Query("order list by customer", "OrdersScreen.loadOrders",
+            "SELECT " + ORDER_LIST_COLUMNS + " FROM main.orders WHERE cust_id = ? ORDER BY order_id", s.custId)
+            .allowSort("sorts the customer's orders only"));
+        q.add(new Query("order list by name prefix", "OrdersScreen.loadOrders",
+            "SELECT " + ORDER_LIST_COLUMNS + " FROM main.orders WHERE " +
+            "cust_id IN (SELECT cust_id FROM main.customer WHERE cust_name LIKE ? ESCAPE '\\') ORDER BY order_id",
+            s.namePrefix + "%")
+            .allowSort("sorts the matching customers' orders only"));
+        q.add(new Query("order list by total", "OrdersScreen.loadOrders",
+            "SELECT " + ORDER_LIST_COLUMNS + " FROM main.orders WHERE total >= ? AND total <= ? ORDER BY order_id",
+            5000, 5100)
+            .allowSort("sorts the orders in the total range only"));
+        q.add(new Query("order list by products (any)", "OrdersScreen.addProductConditions",
+            "SELECT " + ORDER_LIST_COLUMNS + " FROM main.orders WHERE order_id IN (SELECT order_id FROM main.order_line " +
+            "WHERE prod_id IN (SELECT ? UNION SELECT prod_id FROM main.product WHERE prod_name LIKE ? ESCAPE '\\')) " +
+            "ORDER BY order_id", s.prodId, "Webcam%")
+            .allowSort("merges the few product ids of the search terms"));
+        q.add(new Query("order list by products (all)", "OrdersScreen.addProductConditions",
+            "SELECT " + ORDER_LIST_COLUMNS + " FROM main.orders WHERE order_id IN (SELECT order_id FROM main.order_line " +
+            "WHERE prod_id IN (SELECT ?)) AND EXISTS (SELECT 1 FROM main.order_line l WHERE l.order_id = orders.order_id " +
+            "AND +l.prod_id IN (SELECT prod_id FROM main.product WHERE prod_name LIKE ? ESCAPE '\\')) ORDER BY order_id",
+            s.prodId, "Webcam%"));
+        q.add(new Query("product term lines", "OrdersScreen.addProductConditions",
+            "SELECT COUNT(*) FROM (SELECT 1 FROM main.order_line WHERE prod_id IN " +
+            "(SELECT prod_id FROM main.product WHERE prod_name LIKE ? ESCAPE '\\') LIMIT ?)", "Webcam%", 10000)
+            .allowScan("counts the lines read, at most the limit"));
+        q.add(new Query("order delete", "BulkDeleteService.deleteOrders",
+            "DELETE FROM orders WHERE order_id IN (?, ?, ?)", s.orderId, s.orderId + 1, s.orderId + 2));
+        q.add(new Query("order delete stats", "CustomerStats.ordersRemoving",
+            "SELECT cust_id, COUNT(*), SUM(" + CENTS + ") FROM orders WHERE order_id IN (?, ?, ?) GROUP BY cust_id",
+            s.orderId, s.orderId + 1, s.orderId + 2)
+            .allowSort("groups the orders of one delete chunk"));
+
+        // Order editor: open
+        q.add(new Query("editor customers", "OrderEditorDialog.loadCustomers",
+            "SELECT cust_id, cust_name FROM customer ORDER BY cust_name")
+            .allowScan("fills the customer drop-down")
+            .allowSort("drop-down is sorted by exact name"));
+        q.add(new Query("locate order", "OrderArchive.locate",
+            "SELECT 1 FROM main.orders WHERE order_id = ?", s.orderId));
+        q.add(new Query("locate archive", "OrderArchive.locate",
+            "SELECT year FROM order_archive WHERE ? BETWEEN min_order_id AND max_order_id ORDER BY year DESC", s.orderId)
+            .allowScan("one row per archived year"));
+        q.add(new Query("order header", "OrderCache.readOrder",
+            "SELECT cust_id, cust_name, order_date, subtotal, discount, tax, total FROM main.orders WHERE order_id = ?",
+            s.orderId));
+        q.add(new Query("order lines", "OrderCache.readOrder",
+            "SELECT " + LINE_COLUMNS + " FROM main.order_line WHERE order_id = ? ORDER BY line_id", s.orderId));
+        q.add(new Query("line count", "OrderLinePager.countLines",
+            "SELECT COUNT(*) FROM main.order_line WHERE order_id = ?", s.orderId));
+        q.add(new Query("paged customer name", "OrderLinePager",
+            "SELECT cust_name FROM main.orders WHERE order_id = ?", s.orderId));
+        q.add(new Query("paged line ids", "OrderLinePager.loadLineIds",
+            "SELECT line_id FROM main.order_line WHERE order_id = ? ORDER BY line_id", s.orderId));
+        q.add(new Query("paged totals", "OrderLinePager.loadAggregates",
+            "SELECT COALESCE(SUM(quantity * CAST(ROUND(unit_price * 100) AS INTEGER)), 0), " +
+            "COALESCE(SUM(quantity <= 0 OR unit_price IS NULL OR unit_price < 0), 0) " +
+            "FROM main.order_line WHERE order_id = ?", s.orderId));
+        q.add(new Query("paged lines", "OrderLinePager",
+            "SELECT " + LINE_COLUMNS + " FROM main.order_line WHERE order_id = ? AND line_id BETWEEN ? AND ? ORDER BY line_id",
+            s.orderId, s.lineId, s.lineId + 100));
+
+        // Order editor: add line and save
+        q.add(new Query("product list", "OrderEditorDialog.addLine",
+            "SELECT prod_id, prod_name, unit_price FROM product ORDER BY prod_name")
+            .allowScan("lists every product to pick from")
+            .allowSort("product list is sorted by name"));
+        q.add(new Query("next order id", "OrderEditorDialog.save",
+            OrderArchive.LAST_ORDER_ID)
+            .allowScan("one row per archived year"));
+        q.add(new Query("next line id", "OrderEditorDialog.saveLines",
+            OrderArchive.LAST_LINE_ID)
+            .allowScan("one row per archived year"));
+        q.add(new Query("order before image", "OrderEditorDialog.orderImage",
+            "SELECT cust_id, cust_name, order_date, subtotal, discount, tax, total FROM orders WHERE order_id = ?",
+            s.orderId));
+        q.add(new Query("order update", "OrderEditorDialog.save",
+            "UPDATE orders SET cust_id = ?, cust_name = ?, subtotal = ?, discount = ?, tax = ?, total = ? WHERE order_id = ?",
+            s.custId, "Name", 100, 5, 14.25, 109.25, s.orderId));
+        q.add(new Query("line update", "OrderEditorDialog.saveLines",
+            "UPDATE order_line SET prod_id = ?, prod_name = ?, quantity = ?, unit_price = ? WHERE line_id = ? AND order_id = ?",
+            s.prodId, "Product", 2, 10, s.lineId, s.orderId));
+        q.add(new Query("line delete", "OrderEditorDialog.saveLines",
+            "DELETE FROM order_line WHERE line_id = ? AND order_id = ?", s.lineId, s.orderId));
+        q.add(new Query("stats order removed", "CustomerStats.orderRemoving",
+            "SELECT cust_id, " + CENTS + " FROM orders WHERE order_id = ?", s.orderId));
+        q.add(new Query("stats order added", "CustomerStats.orderAdded",
+            "INSERT INTO customer_stats (cust_id, order_count, lifetime_cents, last_order_date) " +
+            "SELECT cust_id, 1, " + CENTS + ", order_date FROM orders WHERE order_id = ? " +
+            "ON CONFLICT(cust_id) DO UPDATE SET order_count = order_count + 1, " +
+            "lifetime_cents = lifetime_cents + excluded.lifetime_cents", s.orderId));
+        q.add(new Query("stats last order", "CustomerStats.refreshLastOrder",
+            "SELECT MAX(order_date) FROM orders WHERE cust_id = ?", s.custId));
+
+        // Products screen
+        q.add(new Query("product catalog", "ProductsScreen.loadProducts",
+            "SELECT prod_id, prod_name, unit_price FROM product ORDER BY prod_id")
+            .allowScan("lists every product"));
+        q.add(new Query("next product id", "ProductsScreen.addProduct",
+            "SELECT MAX(prod_id) FROM product"));
+        q.add(new Query("product update", "ProductsScreen.editProduct",
+            "UPDATE product SET prod_name = ?, unit_price = ? WHERE prod_id = ?", "Product", 10, s.prodId));
+        q.add(new Query("list price change", "PricingCatalog.adjustListPrices",
+            "UPDATE product SET unit_price = ROUND(unit_price * ?, 2)", 1.0)
+            .allowScan("changes every product"));
+        q.add(new Query("product delete", "BulkDeleteService.deleteProducts",
+            "DELETE FROM product WHERE prod_id IN (?, ?, ?)", s.prodId, s.prodId + 1, s.prodId + 2));
+        q.add(new Query("base prices", "PricingCatalog.reloadBasePrices",
+            "SELECT prod_id, unit_price FROM product ORDER BY prod_id")
+            .allowScan("loads every list price"));
+
+        // Inventory
+        q.add(new Query("stock levels", "Inventory.refresh",
+            "SELECT prod_id, on_hand, reserved FROM stock")
+            .allowScan("reads every tracked product"));
+        q.add(new Query("stock recount", "Inventory.recountReserved",
+            "SELECT prod_id, SUM(quantity) FROM main.order_line WHERE prod_id IN (SELECT prod_id FROM stock) GROUP BY prod_id")
+            .allowScan("recomputes reservations from every order line once, on upgrade")
+            .allowSort("groups the lines of tracked products"));
+        q.add(new Query("stock start tracking", "Inventory.setOnHand",
+            "SELECT COALESCE(SUM(quantity), 0) FROM main.order_line WHERE prod_id = ?", s.prodId)
+            .allowScan("counts the product on every order line once, when tracking starts"));
+        q.add(new Query("stock count", "Inventory.setOnHand",
+            "UPDATE stock SET on_hand = ? WHERE prod_id = ?", 0, s.prodId));
+        q.add(new Query("stock reserve", "Inventory.reserve",
+            "UPDATE main.stock SET reserved = reserved + ? WHERE prod_id = ? AND on_hand - reserved >= ?",
+            0, s.prodId, 0));
+        q.add(new Query("stock release", "Inventory.release",
+            "UPDATE main.stock SET reserved = reserved - ? WHERE prod_id = ?", 0, s.prodId));
+        q.add(new Query("stock short", "Inventory.checkShort",
+            "SELECT prod_id, on_hand - reserved FROM main.stock WHERE prod_id IN (?, ?, ?)",
+            s.prodId, s.prodId + 1, s.prodId + 2));
+        q.add(new Query("stock of deleted orders", "Inventory.orderQuantities",
+            "SELECT l.prod_id, SUM(l.quantity) FROM main.order_line l JOIN main.stock s ON s.prod_id = l.prod_id " +
+            "WHERE l.order_id IN (?, ?, ?) GROUP BY l.prod_id",
+            s.orderId, s.orderId + 1, s.orderId + 2)
+            .allowSort("groups the lines of the deleted orders only"));
+        q.add(new Query("stock of edited lines", "OrderEditorDialog.reserveStock",
+            "SELECT prod_id, quantity FROM order_line WHERE line_id = ? AND order_id = ?", s.lineId, s.orderId));
+        q.add(new Query("stock shipped", "Inventory.shipStock",
+            "UPDATE main.stock SET on_hand = on_hand - ?, reserved = reserved - ? WHERE prod_id = ?", 0, 0, s.prodId));
+
+        // HTTP intake
+        q.add(new Query("intake customer", "OrderServer GET /customers/{id}",
+            "SELECT " + CUSTOMER_COLUMNS + " FROM customer WHERE cust_id = ?", s.custId));
+        q.add(new Query("intake customer search", "OrderServer GET /customers",
+            "SELECT " + CUSTOMER_COLUMNS + " FROM customer WHERE cust_name LIKE ? ORDER BY cust_id LIMIT ?",
+            "%" + s.namePrefix + "%", 100)
+            .allowScan("substring match cannot use an index; stops at the limit"));
+        q.add(new Query("intake customer name", "OrderIntake",
+            "SELECT cust_name FROM customer WHERE cust_id = ?", s.custId));
+        q.add(new Query("intake product name", "OrderIntake",
+            "SELECT prod_name FROM product WHERE prod_id = ?", s.prodId));
+
+        // Idempotency keys
+        q.add(new Query("idempotency key claim", "IdempotencyKeys.claim",
+            "INSERT OR IGNORE INTO order_key (idem_key, order_id, created_ts) VALUES (?, ?, strftime('%s', 'now'))",
+            "plan-check-key", s.orderId));
+        q.add(new Query("idempotency key lookup", "IdempotencyKeys.find",
+            "SELECT order_id FROM order_key WHERE idem_key = ?", "plan-check-key"));
+        q.add(new Query("idempotency keys expire", "IdempotencyKeys.load",
+            "DELETE FROM order_key WHERE created_ts < ?", 0)
+            .allowScan("removes expired keys once at start"));
+        q.add(new Query("idempotency keys load", "IdempotencyKeys.load",
+            "SELECT idem_key FROM order_key")
+            .allowScan("builds the key filter once at start"));
+        return q;
+    }
+
+    // Outcome for one statement
+    static class Result {
+        final Query query;
+        final List<String> plan = new ArrayList<>();
+        final List<String> violations = new ArrayList<>();
+        final List<String> allowed = new ArrayList<>();
+        long rows;
+        long medianMicros;
+        long p90Micros;
+        long maxMicros;
+        String slower;
+
+        Result(Query query) {
+            this.query = query;
+        }
+
+        boolean failed() {
+            return !violations.isEmpty();
+        }
+    }
+
+    private final Connection conn;
+    private final int runs;
+
+    public QueryPlanCheck(Connection conn, int runs) {
+        this.conn = conn;
+        this.runs = runs;
+    }
+
+    public List<Result> run() throws SQLException {
+        OrderArchive.ensureCatalog(conn);
+        PricingCatalog.ensureTables(conn);
+        List<Result> results = new ArrayList<>();
+        for (Query query : catalog(Samples.read(conn))) {
+            Result result = new Result(query);
+            explain(result);
+            time(result);
+            results.add(result);
+        }
+        return results;
+    }
+
+    private void explain(Result result) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("EXPLAIN QUERY PLAN " + result.query.sql);
+        bind(ps, result.query.params);
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+            String detail = rs.getString("detail");
+            result.plan.add(detail);
+            // "SCAN t", "SCAN t USING INDEX i" and covering index scans all read every row
+            boolean scan = detail.startsWith("SCAN ") && !detail.startsWith("SCAN CONSTANT ROW");
+            boolean sort = detail.contains("TEMP B-TREE");
+            if (scan) {
+                classify(result, detail, result.query.scanAllowed);
+            } else if (sort) {
+                classify(result, detail, result.query.sortAllowed);
+            }
+        }
+        rs.close();
+        ps.close();
+    }
+
+    private static void classify(Result result, String detail, String reason) {
+        if (reason == null) {
+            result.violations.add(detail);
+        } else {
+            result.allowed.add(detail + " (" + reason + ")");
+        }
+    }
+
+    // One untimed run to warm the page cache, then the timed runs
+    // Writes are rolled back so every run sees the same data
+    private void time(Result result) throws SQLException {
+        long[] micros = new long[runs];
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            for (int i = -1; i < runs; i++) {
+                long start = System.nanoTime();
+                PreparedStatement ps = conn.prepareStatement(result.query.sql);
+                bind(ps, result.query.params);
+                long rows = 0;
+                if (ps.execute()) {
+                    ResultSet rs = ps.getResultSet();
+                    int columns = rs.getMetaData().getColumnCount();
+                    while (rs.next()) {
+                        for (int c = 1; c <= columns; c++) {
+                            rs.getString(c);
+                        }
+                        rows++;
+                    }
+                    rs.close();
+                } else {
+                    rows = ps.getUpdateCount();
+                }
+                ps.close();
+                conn.rollback();
+                if (i >= 0) {
+                    micros[i] = (System.nanoTime() - start) / 1000;
+                }
+                result.rows = rows;
+            }
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        Arrays.sort(micros);
+        result.medianMicros = micros[runs / 2];
+        result.p90Micros = micros[Math.min(runs - 1, (int) Math.ceil(runs * 0.9) - 1)];
+        result.maxMicros = micros[runs - 1];
+    }
+
+    private static void bind(PreparedStatement ps, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            ps.setObject(i + 1, params[i]);
+        }
+    }
+
+    // Mark statements whose median got much slower than in an earlier run's JSON
+    static void compare(List<Result> results, File baseline) throws IOException {
+        Map<String, Long> previous = new LinkedHashMap<>();
+        for (JsonNode node : new ObjectMapper().readTree(baseline).path("statements")) {
+            previous.put(node.path("name").asText(), node.path("medianMicros").asLong());
+        }
+        for (Result result : results) {
+            Long before = previous.get(result.query.name);
+            if (before != null && result.medianMicros > before * SLOWER_FACTOR
+                    && result.medianMicros - before >= SLOWER_MIN_MICROS) {
+                result.slower = "median " + before + " us -> " + result.medianMicros + " us";
+            }
+        }
+    }
+
+    static Map<String, Object> toJson(List<Result> results, int runs) throws SQLException {
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("database", new File(DB.getDbFile()).getAbsolutePath());
+        root.put("storageProfile", StorageProfile.current().name().toLowerCase());
+        root.put("runs", runs);
+        List<Map<String, Object>> statements = new ArrayList<>();
+        int failures = 0;
+        for (Result result : results) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", result.query.name);
+            map.put("source", result.query.source);
+            map.put("sql", result.query.sql);
+            map.put("status", result.failed() ? "FAIL" : result.allowed.isEmpty() ? "OK" : "ALLOWED");
+            map.put("plan", result.plan);
+            if (!result.violations.isEmpty()) {
+                map.put("violations", result.violations);
+            }
+            if (!result.allowed.isEmpty()) {
+                map.put("allowed", result.allowed);
+            }
+            map.put("rows", result.rows);
+            map.put("medianMicros", result.medianMicros);
+            map.put("p90Micros", result.p90Micros);
+            map.put("maxMicros", result.maxMicros);
+            if (result.slower != null) {
+                map.put("slowerThanBaseline", result.slower);
+            }
+            statements.add(map);
+            if (result.failed()) {
+                failures++;
+            }
+        }
+        root.put("failures", failures);
+        root.put("statements", statements);
+        return root;
+    }
+
+    // Command line entry point
+    // Options: --runs n (timed executions per statement), --out file, --baseline previous.json
+    public static void main(String[] args) {
+        int runs = 20;
+        String out = "query-plans.json";
+        String baseline = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--runs") && i + 1 < args.length) {
+                runs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--out") && i + 1 < args.length) {
+                out = args[++i];
+            } else if (args[i].equals("--baseline") && i + 1 < args.length) {
+                baseline = args[++i];
+            } else {
+                System.err.println("Usage: QueryPlanCheck [--runs 20] [--out query-plans.json] [--baseline previous.json]");
+                System.exit(2);
+            }
+        }
+        if (runs < 1) {
+            System.err.println("--runs must be at least 1");
+            System.exit(2);
+        }
+
+        int failures = 0;
+        try {
+            List<Result> results = new QueryPlanCheck(DB.getConn(), runs).run();
+            if (baseline != null) {
+                compare(results, new File(baseline));
+            }
+
+            System.out.println(String.format("%-28s %-8s %10s %10s %10s", "statement", "status", "rows", "median us", "max us"));
+            for (Result result : results) {
+                System.out.println(String.format("%-28s %-8s %10d %10d %10d", result.query.name,
+                    result.failed() ? "FAIL" : result.allowed.isEmpty() ? "OK" : "ALLOWED",
+                    result.rows, result.medianMicros, result.maxMicros));
+                for (String violation : result.violations) {
+                    System.out.println("    " + violation);
+                }
+                if (result.slower != null) {
+                    System.out.println("    slower than baseline: " + result.slower);
+                }
+                if (result.failed()) {
+                    failures++;
+                }
+            }
+
+            new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT)
+                .writeValue(new File(out), toJson(results, runs));
+            System.out.println(results.size() + " statements checked, " + failures + " failed; plans and timings written to " +
+                new File(out).getAbsolutePath());
+            DB.closeConn();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}
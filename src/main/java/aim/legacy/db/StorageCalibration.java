@@ -0,0 +1,259 @@
+/**
+ * StorageCalibration.java
+ *
+ * Measures each StorageProfile on the local disk and recommends one.
+ * Runs an order-save style write workload and a list/lookup read workload against
+ * a generated database placed next to the real one, then optionally stores the
+ * recommendation in the workstation's profile file.
+ * Run with: ./mvnw exec:java@calibrate -Dexec.args="--save"
+ */
+package aim.legacy.db;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+public class StorageCalibration {
+
+    // Durable is preferred while its saves stay this fast in absolute terms...
+    private static final double DURABLE_MAX_P99_MS = 15.0;
+    // ...and at least this fraction of balanced's save throughput
+    private static final double DURABLE_MIN_RELATIVE_RATE = 0.5;
+
+    private static final int LINES_PER_SAVE = 5;
+
+    private final int baseOrders;
+    private final int saves;
+    private final int reads;
+
+    // Result of one profile run
+    static class Result {
+        double savesPerSec;
+        double saveP50Ms;
+        double saveP99Ms;
+        double readsPerSec;
+        double scanMs;
+    }
+
+    public StorageCalibration(int baseOrders, int saves, int reads) {
+        this.baseOrders = baseOrders;
+        this.saves = saves;
+        this.reads = reads;
+    }
+
+    // Run the workload once per profile on a private copy of the same base database
+    public Map<StorageProfile, Result> run() throws Exception {
+        File dir = new File(DB.getDbFile()).getAbsoluteFile().getParentFile();
+        File base = new File(dir, "calibration-base.db");
+        deleteDb(base);
+
+        System.out.println("Generating calibration database in " + dir + " ...");
+        new DataGenerator(42, 2000, 500, baseOrders, 4, 20, 0, 0, 2,
+            LocalDateTime.of(2024, 12, 31, 23, 59, 59), 20000).generate(base.getPath());
+
+        Map<StorageProfile, Result> results = new EnumMap<>(StorageProfile.class);
+        try {
+            for (StorageProfile profile : StorageProfile.values()) {
+                File copy = new File(dir, "calibration-" + profile.name().toLowerCase() + ".db");
+                deleteDb(copy);
+                Files.copy(base.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                try {
+                    results.put(profile, measure(profile, copy));
+                } finally {
+                    deleteDb(copy);
+                }
+            }
+        } finally {
+            deleteDb(base);
+        }
+        return results;
+    }
+
+    private Result measure(StorageProfile profile, File file) throws SQLException {
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        try {
+            profile.apply(conn);
+            Result result = new Result();
+            measureSaves(conn, result);
+            measureReads(conn, result);
+            return result;
+        } finally {
+            conn.close();
+        }
+    }
+
+    // One transaction per save: order header plus a few lines, like the order editor
+    private void measureSaves(Connection conn, Result result) throws SQLException {
+        Random random = new Random(7);
+        long[] latencies = new long[saves];
+        long nextOrderId = baseOrders + 1;
+        long nextLineId = 10_000_000L;
+
+        PreparedStatement orderPs = conn.prepareStatement(
+            "INSERT INTO orders (order_id, cust_id, cust_name, order_date, subtotal, discount, tax, total, order_ts) " +
+            "VALUES (?, ?, 'Calibration', datetime('now'), ?, 0, 0, ?, strftime('%s', 'now'))");
+        PreparedStatement linePs = conn.prepareStatement(
+            "INSERT INTO order_line (line_id, order_id, prod_id, prod_name, quantity, unit_price) " +
+            "VALUES (?, ?, ?, 'Calibration', ?, ?)");
+
+        conn.setAutoCommit(false);
+        long total = System.nanoTime();
+        for (int i = 0; i < saves; i++) {
+            long start = System.nanoTime();
+            long orderId = nextOrderId++;
+            double subtotal = 0;
+            for (int l = 0; l < LINES_PER_SAVE; l++) {
+                double price = 10 + random.nextInt(1000);
+                int qty = 1 + random.nextInt(5);
+                subtotal += price * qty;
+                linePs.setLong(1, nextLineId++);
+                linePs.setLong(2, orderId);
+                linePs.setLong(3, 1 + random.nextInt(500));
+                linePs.setInt(4, qty);
+                linePs.setDouble(5, price);
+                linePs.addBatch();
+            }
+            orderPs.setLong(1, orderId);
+            orderPs.setLong(2, 1 + random.nextInt(2000));
+            orderPs.setDouble(3, subtotal);
+            orderPs.setDouble(4, subtotal);
+            orderPs.executeUpdate();
+            linePs.executeBatch();
+            conn.commit();
+            latencies[i] = System.nanoTime() - start;
+        }
+        long elapsed = System.nanoTime() - total;
+        conn.setAutoCommit(true);
+        orderPs.close();
+        linePs.close();
+
+        Arrays.sort(latencies);
+        result.savesPerSec = saves / (elapsed / 1e9);
+        result.saveP50Ms = latencies[saves / 2] / 1e6;
+        result.saveP99Ms = latencies[Math.min(saves - 1, (int) (saves * 0.99))] / 1e6;
+    }
+
+    // Point lookups by order id mixed with list pages, then a full aggregate scan
+    private void measureReads(Connection conn, Result result) throws SQLException {
+        Random random = new Random(11);
+        PreparedStatement lookup = conn.prepareStatement(
+            "SELECT order_id, cust_name, order_date, total FROM orders WHERE order_id = ?");
+        PreparedStatement page = conn.prepareStatement(
+            "SELECT order_id, cust_name, order_date, total FROM orders ORDER BY order_id LIMIT 100 OFFSET ?");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            ResultSet rs;
+            if (i % 10 == 0) {
+                page.setInt(1, random.nextInt(Math.max(1, baseOrders - 100)));
+                rs = page.executeQuery();
+            } else {
+                lookup.setLong(1, 1 + random.nextInt(baseOrders));
+                rs = lookup.executeQuery();
+            }
+            while (rs.next()) {
+                rs.getLong(1);
+            }
+            rs.close();
+        }
+        result.readsPerSec = reads / ((System.nanoTime() - start) / 1e9);
+        lookup.close();
+        page.close();
+
+        Statement stmt = conn.createStatement();
+        start = System.nanoTime();
+        ResultSet rs = stmt.executeQuery(
+            "SELECT l.prod_id, SUM(l.quantity * l.unit_price) FROM order_line l GROUP BY l.prod_id");
+        while (rs.next()) {
+            rs.getDouble(2);
+        }
+        rs.close();
+        stmt.close();
+        result.scanMs = (System.nanoTime() - start) / 1e6;
+    }
+
+    // Pick the safest profile whose cost is acceptable on this disk
+    // Throughput is never chosen unless explicitly allowed since it can lose commits
+    static StorageProfile recommend(Map<StorageProfile, Result> results, boolean allowThroughput) {
+        Result durable = results.get(StorageProfile.DURABLE);
+        Result balanced = results.get(StorageProfile.BALANCED);
+        Result throughput = results.get(StorageProfile.THROUGHPUT);
+
+        if (allowThroughput && throughput.savesPerSec >= 2 * balanced.savesPerSec) {
+            return StorageProfile.THROUGHPUT;
+        }
+        if (durable.saveP99Ms <= DURABLE_MAX_P99_MS &&
+                durable.savesPerSec >= DURABLE_MIN_RELATIVE_RATE * balanced.savesPerSec) {
+            return StorageProfile.DURABLE;
+        }
+        return StorageProfile.BALANCED;
+    }
+
+    private static void deleteDb(File file) {
+        file.delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+        new File(file.getPath() + "-journal").delete();
+    }
+
+    // Command line entry point
+    // Options: --orders n, --saves n, --reads n, --allow-throughput, --save
+    public static void main(String[] args) {
+        int orders = 50000;
+        int saves = 300;
+        int reads = 20000;
+        boolean allowThroughput = false;
+        boolean save = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--orders") && i + 1 < args.length) {
+                orders = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--saves") && i + 1 < args.length) {
+                saves = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--reads") && i + 1 < args.length) {
+                reads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--allow-throughput")) {
+                allowThroughput = true;
+            } else if (args[i].equals("--save")) {
+                save = true;
+            } else {
+                System.err.println("Usage: StorageCalibration [--orders n] [--saves n] [--reads n] [--allow-throughput] [--save]");
+                System.exit(2);
+            }
+        }
+
+        try {
+            Map<StorageProfile, Result> results = new StorageCalibration(orders, saves, reads).run();
+
+            System.out.println();
+            System.out.println(String.format("%-12s %12s %10s %10s %12s %10s",
+                "profile", "saves/s", "p50 ms", "p99 ms", "reads/s", "scan ms"));
+            for (Map.Entry<StorageProfile, Result> entry : results.entrySet()) {
+                Result r = entry.getValue();
+                System.out.println(String.format("%-12s %12.1f %10.2f %10.2f %12.1f %10.1f",
+                    entry.getKey().name().toLowerCase(), r.savesPerSec, r.saveP50Ms, r.saveP99Ms, r.readsPerSec, r.scanMs));
+            }
+
+            StorageProfile recommended = recommend(results, allowThroughput);
+            System.out.println();
+            System.out.println("Recommended profile: " + recommended.describe());
+
+            if (save) {
+                StorageProfile.writeProfileFile(recommended, "Written by StorageCalibration on " + LocalDateTime.now());
+                System.out.println("Saved to " + StorageProfile.getProfileFile());
+            } else {
+                System.out.println("Run with --save to use it, or pass -D" + StorageProfile.PROPERTY + "=" +
+                    recommended.name().toLowerCase());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
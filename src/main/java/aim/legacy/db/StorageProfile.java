@@ -0,0 +1,112 @@
+/**
+ * StorageProfile.java
+ *
+ * Named SQLite tuning profiles applied when the connection is opened.
+ * Selected with -Dorderentry.profile=durable|balanced|throughput, or read from the
+ * profile file written by StorageCalibration for this workstation.
+ */
+package aim.legacy.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+public enum StorageProfile {
+
+    // Rollback journal with full fsync: every commit survives power loss and
+    // transactions spanning attached archive files stay atomic
+    DURABLE("DELETE", "FULL", 16 * 1024, 0, "DEFAULT"),
+
+    // WAL with NORMAL sync: commits survive application crashes, the last few
+    // may be lost on power failure; readers never block the writer
+    BALANCED("WAL", "NORMAL", 64 * 1024, 256L * 1024 * 1024, "MEMORY"),
+
+    // WAL without fsync and a large cache: for bulk loads, reporting copies and
+    // benchmarks where the data can be regenerated
+    THROUGHPUT("WAL", "OFF", 256 * 1024, 1024L * 1024 * 1024, "MEMORY");
+
+    public static final String PROPERTY = "orderentry.profile";
+    public static final String PROFILE_FILE = "orderentry-profile.properties";
+
+    private final String journalMode;
+    private final String synchronous;
+    private final int cacheKb;
+    private final long mmapBytes;
+    private final String tempStore;
+
+    StorageProfile(String journalMode, String synchronous, int cacheKb, long mmapBytes, String tempStore) {
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        this.cacheKb = cacheKb;
+        this.mmapBytes = mmapBytes;
+        this.tempStore = tempStore;
+    }
+
+    // Apply the PRAGMAs of this profile to a freshly opened connection
+    public void apply(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("PRAGMA journal_mode = " + journalMode);
+        stmt.execute("PRAGMA synchronous = " + synchronous);
+        stmt.execute("PRAGMA cache_size = -" + cacheKb);
+        stmt.execute("PRAGMA mmap_size = " + mmapBytes);
+        stmt.execute("PRAGMA temp_store = " + tempStore);
+        stmt.close();
+    }
+
+    public String describe() {
+        return name().toLowerCase() + " (journal_mode=" + journalMode + ", synchronous=" + synchronous +
+            ", cache=" + (cacheKb / 1024) + "MB, mmap=" + (mmapBytes / (1024 * 1024)) + "MB)";
+    }
+
+    // Profile selected for this process
+    // System property wins, then the calibrated profile file, then DURABLE
+    public static StorageProfile current() {
+        String name = System.getProperty(PROPERTY);
+        if (name == null) {
+            name = readProfileFile().getProperty("profile");
+        }
+        if (name == null) {
+            return DURABLE;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown storage profile '" + name + "', using durable");
+            return DURABLE;
+        }
+    }
+
+    // The profile file lives next to the database so each workstation keeps its own
+    public static File getProfileFile() {
+        File parent = new File(DB.getDbFile()).getAbsoluteFile().getParentFile();
+        return new File(parent, PROFILE_FILE);
+    }
+
+    private static Properties readProfileFile() {
+        Properties props = new Properties();
+        File file = getProfileFile();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                props.load(in);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return props;
+    }
+
+    static void writeProfileFile(StorageProfile profile, String comment) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("profile", profile.name().toLowerCase());
+        try (OutputStream out = new FileOutputStream(getProfileFile())) {
+            props.store(out, comment);
+        }
+    }
+}
@@ -22,6 +22,7 @@ public class Order {
     private BigDecimal discount;
     private BigDecimal tax;
     private BigDecimal total;
+    private boolean archived;
 
     public Order() {
         this.lines = new ArrayList<>();
@@ -115,6 +116,15 @@ public class Order {
         this.total = total;
     }
 
+    // True when the order lives in an archive file and is read-only
+    public boolean isArchived() {
+        return archived;
+    }
+
+    public void setArchived(boolean archived) {
+        this.archived = archived;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
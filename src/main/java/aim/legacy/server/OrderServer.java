@@ -0,0 +1,630 @@
+/**
+ * OrderServer.java
+ *
+ * Headless HTTP/JSON intake for orders and customers, for front ends and
+ * gateways running on the same host. Built on the JDK's HttpServer.
+ * Orders go through OrderIntake, which prices them like the editor and writes
+ * them in group-committed batches; reads use a small pool of extra connections.
+ * A fixed number of requests may be in flight; beyond that the server answers
+ * 503 at once. An order for more than the available stock of a tracked
+ * product is refused with 409. Per-endpoint latency percentiles are served at /metrics.
+ * An order may carry an idempotency key (the Idempotency-Key header, or an
+ * "idempotencyKey" field per order); resubmitting a key answers with the order
+ * first created with it instead of creating another.
+ * Listens on the loopback interface only, unless --host (or the
+ * orderentry.server.host property) names another address, e.g. 0.0.0.0.
+ * Start with: ./mvnw exec:java@serve  (or MainApp --server [--host 127.0.0.1] [--port 8080])
+ *
+ * Endpoints:
+ *   POST /orders           {"customerId":1,"lines":[{"productId":2,"quantity":3}]}  or an array of those
+ *   GET  /orders/{id}
+ *   GET  /customers?q=name&limit=100
+ *   GET  /customers/{id}
+ *   POST /customers        {"name":"...","email":"...","phone":"...","address":"..."}
+ *   GET  /metrics
+ *   GET  /health
+ */
+package aim.legacy.server;
+
+import aim.legacy.db.AuditLog;
+import aim.legacy.db.BackupService;
+import aim.legacy.db.DB;
+import aim.legacy.db.Diagnostics;
+import aim.legacy.db.IdempotencyKeys;
+import aim.legacy.db.Inventory;
+import aim.legacy.db.OrderCache;
+import aim.legacy.db.OrderIntake;
+import aim.legacy.db.OrderRules;
+import aim.legacy.db.PricingCatalog;
+import aim.legacy.domain.Order;
+import aim.legacy.domain.OrderLine;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OrderServer {
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    private static final int QUEUE_CAPACITY = 20000;
+    private static final int READ_CONNECTIONS = 4;
+    private static final long WRITE_TIMEOUT_SECONDS = 30;
+
+    // Rows returned by a customer search unless limit asks for fewer or more
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 10000;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final OrderIntake intake;
+    private final IdempotencyKeys keys;
+    private final BlockingQueue<Connection> readers = new ArrayBlockingQueue<>(READ_CONNECTIONS);
+
+    // Admission control and metrics
+    private final Semaphore admission;
+    private final int maxInFlight;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong ordersAccepted = new AtomicLong();
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final long startNanos = System.nanoTime();
+
+    public OrderServer(int port, int maxInFlight) throws IOException, SQLException {
+        this(defaultHost(), port, maxInFlight);
+    }
+
+    public OrderServer(String host, int port, int maxInFlight) throws IOException, SQLException {
+        this.maxInFlight = maxInFlight;
+        admission = new Semaphore(maxInFlight);
+
+        // Warm the shared connection, pricing catalog and rules before taking traffic
+        DB.getConn();
+        PricingCatalog.get();
+        Inventory.get();
+        OrderRules.current();
+        keys = IdempotencyKeys.get();
+        for (int i = 0; i < READ_CONNECTIONS; i++) {
+            readers.add(DB.openConnection());
+        }
+
+        intake = new OrderIntake(QUEUE_CAPACITY);
+        executor = requestExecutor(maxInFlight);
+        server = HttpServer.create(new InetSocketAddress(host, port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/orders", exchange -> dispatch(exchange, this::orders));
+        server.createContext("/customers", exchange -> dispatch(exchange, this::customers));
+        server.createContext("/metrics", exchange -> dispatch(exchange, this::metrics));
+        server.createContext("/health", exchange -> dispatch(exchange, this::health));
+    }
+
+    // The orderentry.server.host property, or the loopback address so that only
+    // programs on this host can reach the server
+    static String defaultHost() {
+        return System.getProperty("orderentry.server.host",
+            InetAddress.getLoopbackAddress().getHostAddress());
+    }
+
+    // One virtual thread per request when running on Java 21 or later.
+    // The build still targets Java 8, so the factory is looked up reflectively;
+    // older runtimes get a fixed pool sized to the admission limit.
+    static ExecutorService requestExecutor(int threads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger seq = new AtomicInteger();
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "order-server-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    // Stop taking requests, let queued orders commit, then release connections
+    public void stop() {
+        server.stop(1);
+        intake.close();
+        executor.shutdown();
+        Connection conn;
+        while ((conn = readers.poll()) != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public String getHost() {
+        return server.getAddress().getAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // A handler result: HTTP status, JSON body, and the route name used for metrics
+    private static class Response {
+        final int status;
+        final JsonNode body;
+        final String route;
+
+        Response(int status, JsonNode body, String route) {
+            this.status = status;
+            this.body = body;
+            this.route = route;
+        }
+    }
+
+    private interface Handler {
+        Response handle(HttpExchange exchange) throws Exception;
+    }
+
+    // Admission, error mapping and latency recording shared by all endpoints
+    private void dispatch(HttpExchange exchange, Handler handler) throws IOException {
+        long start = System.nanoTime();
+        if (!admission.tryAcquire()) {
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, new Response(503, error("Server busy, retry later"), "rejected"));
+            return;
+        }
+        String route = exchange.getRequestMethod() + " " + exchange.getHttpContext().getPath();
+        try {
+            Response response;
+            try {
+                response = handler.handle(exchange);
+            } catch (IllegalArgumentException | IOException e) {
+                response = new Response(400, error(e.getMessage()), route);
+            } catch (RejectedExecutionException e) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                response = new Response(503, error(e.getMessage()), route);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                boolean badRequest = cause instanceof SQLDataException || cause instanceof IllegalArgumentException;
+                int status = cause instanceof Inventory.OutOfStockException ? 409 : badRequest ? 400 : 500;
+                response = new Response(status, error(cause.getMessage()), route);
+            } catch (Exception e) {
+                e.printStackTrace();
+                response = new Response(500, error(e.toString()), route);
+            }
+            send(exchange, response);
+            route = response.route;
+        } finally {
+            admission.release();
+            histogram(route).recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    private LatencyHistogram histogram(String route) {
+        LatencyHistogram histogram = latencies.get(route);
+        if (histogram == null) {
+            histogram = latencies.computeIfAbsent(route, k -> new LatencyHistogram());
+        }
+        return histogram;
+    }
+
+    private Response orders(HttpExchange exchange) throws Exception {
+        String method = exchange.getRequestMethod();
+        String id = pathId(exchange);
+        if ("POST".equals(method) && id == null) {
+            return createOrders(exchange);
+        }
+        if ("GET".equals(method) && id != null) {
+            return getOrder(Long.parseLong(id));
+        }
+        return new Response(405, error("Unsupported: " + method + " " + exchange.getRequestURI().getPath()), "other");
+    }
+
+    // A single order answers 201 with the order; an array answers 200 with one result per order
+    // An order whose idempotency key was already used answers with the original order (200 when single),
+    // whether the key was found up front or only by the intake (a retry racing the original)
+    @SuppressWarnings("unchecked")
+    private Response createOrders(HttpExchange exchange) throws Exception {
+        JsonNode body = readBody(exchange);
+        if (!body.isArray()) {
+            String key = idempotencyKey(body, exchange.getRequestHeaders().getFirst("Idempotency-Key"));
+            ObjectNode replayed = replay(key);
+            if (replayed != null) {
+                return new Response(200, replayed, "POST /orders (replay)");
+            }
+            OrderIntake.NewOrder order = parseOrder(body);
+            OrderIntake.Submitted submitted = intake.submit(order, key).get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (submitted.duplicate) {
+                return new Response(200, replay(submitted.id), "POST /orders (replay)");
+            }
+            ordersAccepted.incrementAndGet();
+            return new Response(201, orderResult(submitted.id, order), "POST /orders");
+        }
+
+        // Queue every order first so the whole request lands in as few commits as possible
+        List<Object> pending = new ArrayList<>(body.size());
+        List<OrderIntake.NewOrder> orders = new ArrayList<>(body.size());
+        for (JsonNode item : body) {
+            try {
+                String key = idempotencyKey(item, null);
+                ObjectNode replayed = replay(key);
+                if (replayed != null) {
+                    orders.add(null);
+                    pending.add(replayed);
+                    continue;
+                }
+                OrderIntake.NewOrder order = parseOrder(item);
+                orders.add(order);
+                pending.add(intake.submit(order, key));
+            } catch (IllegalArgumentException | RejectedExecutionException e) {
+                orders.add(null);
+                pending.add(e.getMessage());
+            }
+        }
+
+        ArrayNode results = mapper.createArrayNode();
+        for (int i = 0; i < pending.size(); i++) {
+            Object item = pending.get(i);
+            if (item instanceof String) {
+                results.add(error((String) item));
+                continue;
+            }
+            if (item instanceof ObjectNode) {
+                results.add((ObjectNode) item);
+                continue;
+            }
+            try {
+                OrderIntake.Submitted submitted =
+                    ((CompletableFuture<OrderIntake.Submitted>) item).get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (submitted.duplicate) {
+                    results.add(replay(submitted.id));
+                    continue;
+                }
+                ordersAccepted.incrementAndGet();
+                results.add(orderResult(submitted.id, orders.get(i)));
+            } catch (ExecutionException e) {
+                results.add(error(e.getCause().getMessage()));
+            }
+        }
+        return new Response(200, results, "POST /orders (bulk)");
+    }
+
+    // The order's "idempotencyKey" field, else the request header (single orders only); null if neither
+    private static String idempotencyKey(JsonNode node, String header) {
+        String key = text(node, "idempotencyKey");
+        if (key == null) {
+            key = header;
+        }
+        IdempotencyKeys.checkKey(key);
+        return key;
+    }
+
+    // The order first created with this key, or null if the key is new
+    // Keys the filter has never seen are answered without taking a connection
+    private ObjectNode replay(String key) throws Exception {
+        if (key == null || !keys.mightContain(key)) {
+            return null;
+        }
+        Connection conn = readers.take();
+        try {
+            long orderId = keys.find(conn, key);
+            return orderId == 0 ? null : duplicateResult(conn, orderId);
+        } finally {
+            readers.put(conn);
+        }
+    }
+
+    // The answer for a duplicate the intake found in its own transaction; the key may have
+    // been claimed by another process, so the original is looked up by id, not by key
+    private ObjectNode replay(long orderId) throws Exception {
+        Connection conn = readers.take();
+        try {
+            return duplicateResult(conn, orderId);
+        } finally {
+            readers.put(conn);
+        }
+    }
+
+    // The original order's id and totals, marked as a duplicate
+    private ObjectNode duplicateResult(Connection conn, long orderId) throws SQLException {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("orderId", orderId);
+        Order order = OrderCache.get().loadCurrent(conn, orderId);
+        if (order != null) {
+            node.put("subtotal", order.getSubtotal());
+            node.put("discount", order.getDiscount());
+            node.put("tax", order.getTax());
+            node.put("total", order.getTotal());
+        }
+        node.put("duplicate", true);
+        return node;
+    }
+
+    private OrderIntake.NewOrder parseOrder(JsonNode node) {
+        JsonNode lines = node.path("lines");
+        if (!lines.isArray()) {
+            throw new IllegalArgumentException("lines must be an array");
+        }
+        long[] prodIds = new long[lines.size()];
+        int[] quantities = new int[lines.size()];
+        for (int i = 0; i < lines.size(); i++) {
+            prodIds[i] = lines.get(i).path("productId").asLong();
+            quantities[i] = lines.get(i).path("quantity").asInt();
+        }
+        return OrderIntake.price(node.path("customerId").asLong(), prodIds, quantities);
+    }
+
+    private ObjectNode orderResult(long orderId, OrderIntake.NewOrder order) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("orderId", orderId);
+        node.put("subtotal", order.subtotal);
+        node.put("discount", order.discount);
+        node.put("tax", order.tax);
+        node.put("total", order.total);
+        return node;
+    }
+
+    private Response getOrder(long orderId) throws Exception {
+        Connection conn = readers.take();
+        Order order;
+        try {
+            order = OrderCache.get().loadCurrent(conn, orderId);
+        } finally {
+            readers.put(conn);
+        }
+        if (order == null) {
+            return new Response(404, error("Order " + orderId + " not found"), "GET /orders/{id}");
+        }
+
+        ObjectNode node = mapper.createObjectNode();
+        node.put("orderId", order.getId());
+        node.put("customerId", order.getCustomerId());
+        node.put("customerName", order.getCustomerName());
+        node.put("orderDate", String.valueOf(order.getOrderDate()));
+        node.put("subtotal", order.getSubtotal());
+        node.put("discount", order.getDiscount());
+        node.put("tax", order.getTax());
+        node.put("total", order.getTotal());
+        ArrayNode lines = node.putArray("lines");
+        for (OrderLine line : order.getLines()) {
+            ObjectNode l = lines.addObject();
+            l.put("lineId", line.getId());
+            l.put("productId", line.getProductId());
+            l.put("productName", line.getProductName());
+            l.put("quantity", line.getQuantity());
+            l.put("unitPrice", line.getUnitPrice());
+        }
+        return new Response(200, node, "GET /orders/{id}");
+    }
+
+    private Response customers(HttpExchange exchange) throws Exception {
+        String method = exchange.getRequestMethod();
+        String id = pathId(exchange);
+        if ("POST".equals(method) && id == null) {
+            JsonNode body = readBody(exchange);
+            String name = body.path("name").asText("").trim();
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("name is required");
+            }
+            long custId = intake.submitCustomer(name, text(body, "email"), text(body, "phone"), text(body, "address"))
+                .get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            ObjectNode node = mapper.createObjectNode();
+            node.put("customerId", custId);
+            return new Response(201, node, "POST /customers");
+        }
+        if (!"GET".equals(method)) {
+            return new Response(405, error("Unsupported: " + method + " " + exchange.getRequestURI().getPath()), "other");
+        }
+
+        Connection conn = readers.take();
+        try {
+            if (id != null) {
+                PreparedStatement ps = conn.prepareStatement(
+                    "SELECT cust_id, cust_name, email, phone, address FROM customer WHERE cust_id = ?");
+                ps.setLong(1, Long.parseLong(id));
+                ArrayNode found = customerRows(ps);
+                if (found.size() == 0) {
+                    return new Response(404, error("Customer " + id + " not found"), "GET /customers/{id}");
+                }
+                return new Response(200, found.get(0), "GET /customers/{id}");
+            }
+
+            String query = queryParam(exchange, "q");
+            int limit = limitParam(exchange);
+            PreparedStatement ps = conn.prepareStatement(
+                "SELECT cust_id, cust_name, email, phone, address FROM customer " +
+                "WHERE cust_name LIKE ? ORDER BY cust_id LIMIT ?");
+            ps.setString(1, "%" + (query == null ? "" : query) + "%");
+            ps.setInt(2, limit);
+            return new Response(200, customerRows(ps), "GET /customers");
+        } finally {
+            readers.put(conn);
+        }
+    }
+
+    private ArrayNode customerRows(PreparedStatement ps) throws SQLException {
+        ArrayNode rows = mapper.createArrayNode();
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+            ObjectNode node = rows.addObject();
+            node.put("customerId", rs.getLong(1));
+            node.put("name", rs.getString(2));
+            node.put("email", rs.getString(3));
+            node.put("phone", rs.getString(4));
+            node.put("address", rs.getString(5));
+        }
+        rs.close();
+        ps.close();
+        return rows;
+    }
+
+    private Response metrics(HttpExchange exchange) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        ObjectNode node = mapper.createObjectNode();
+        node.put("uptimeSeconds", Math.round(seconds));
+        node.put("maxInFlight", maxInFlight);
+        node.put("inFlight", maxInFlight - admission.availablePermits());
+        node.put("rejected", rejected.get());
+        node.put("queueDepth", intake.getQueueDepth());
+        node.put("ordersAccepted", ordersAccepted.get());
+        node.put("duplicateOrders", keys.getDuplicates());
+        node.put("ordersPerSecond", Math.round(ordersAccepted.get() / Math.max(seconds, 1e-3)));
+        node.put("commitBatches", intake.getCommittedBatches());
+        node.put("committedItems", intake.getCommittedItems());
+        ObjectNode routes = node.putObject("endpoints");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            ObjectNode r = routes.putObject(entry.getKey());
+            r.put("count", h.getCount());
+            r.put("meanMs", millis(Math.round(h.getMeanMicros())));
+            r.put("p50Ms", millis(h.percentileMicros(50)));
+            r.put("p90Ms", millis(h.percentileMicros(90)));
+            r.put("p99Ms", millis(h.percentileMicros(99)));
+            r.put("p999Ms", millis(h.percentileMicros(99.9)));
+            r.put("maxMs", millis(h.getMaxMicros()));
+        }
+        return new Response(200, node, "GET /metrics");
+    }
+
+    private Response health(HttpExchange exchange) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("status", "ok");
+        node.put("rules", OrderRules.current().describe());
+        return new Response(200, node, "GET /health");
+    }
+
+    private static BigDecimal millis(long micros) {
+        return BigDecimal.valueOf(micros, 3);
+    }
+
+    private ObjectNode error(String message) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("error", message);
+        return node;
+    }
+
+    private JsonNode readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            JsonNode node = mapper.readTree(in);
+            if (node == null || node.isMissingNode()) {
+                throw new IllegalArgumentException("Request body must be JSON");
+            }
+            return node;
+        }
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    // The id segment after the context path, e.g. "42" for /orders/42, or null
+    private static String pathId(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getPath();
+        String rest = path.substring(exchange.getHttpContext().getPath().length());
+        if (rest.startsWith("/")) {
+            rest = rest.substring(1);
+        }
+        if (rest.isEmpty()) {
+            return null;
+        }
+        if (!rest.matches("\\d+")) {
+            throw new IllegalArgumentException("Invalid id: " + rest);
+        }
+        return rest;
+    }
+
+    // The limit parameter clamped to 1..MAX_LIMIT (SQLite would read a negative LIMIT as none)
+    private static int limitParam(HttpExchange exchange) throws IOException {
+        String limit = queryParam(exchange, "limit");
+        if (limit == null) {
+            return DEFAULT_LIMIT;
+        }
+        try {
+            return (int) Math.max(1, Math.min(Long.parseLong(limit.trim()), MAX_LIMIT));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("limit must be a number from 1 to " + MAX_LIMIT + ": " + limit);
+        }
+    }
+
+    private static String queryParam(HttpExchange exchange, String name) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private void send(HttpExchange exchange, Response response) throws IOException {
+        byte[] bytes = mapper.writeValueAsBytes(response.body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(response.status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // Usage: OrderServer [--host 127.0.0.1] [--port 8080] [--max-in-flight 256]
+    public static void main(String[] args) {
+        String host = defaultHost();
+        int port = DEFAULT_PORT;
+        int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--host")) {
+                host = args[i + 1];
+            } else if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--max-in-flight")) {
+                maxInFlight = Integer.parseInt(args[i + 1]);
+            } else {
+                System.err.println("Usage: OrderServer [--host 127.0.0.1] [--port 8080] [--max-in-flight 256]");
+                System.exit(2);
+            }
+        }
+        try {
+            final OrderServer server = new OrderServer(host, port, maxInFlight);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                Inventory.shutdown();
+                AuditLog.shutdown();
+                DB.closeConn();
+            }));
+            server.start();
+            Diagnostics.startFromProperties();
+            BackupService.startFromProperties();
+            System.out.println("Order intake listening on " + server.getHost() + ":" + server.getPort() +
+                " (max " + maxInFlight + " requests in flight)");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,702 @@
+/**
+ * ColumnarTableModel.java
+ *
+ * Compact table model for large result sets.
+ * Stores each column in a primitive array (ids, money in cents, dates as epoch
+ * seconds) and text as codes into a deduplicated string dictionary. Cells are
+ * formatted only when JTable asks for them, i.e. for the rows on screen.
+ * Sorting and filtering are computed off the EDT on precomputed primitive keys
+ * with parallel sorts, then swapped in as a row index view.
+ * Rows can be loaded off the EDT into a second model and taken over with
+ * takeRows(), and the first rows can be written to and restored from a
+ * warm-start snapshot (see ScreenSnapshot).
+ */
+package aim.legacy.ui;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.JTableHeader;
+import javax.swing.table.TableCellRenderer;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.List;
+import java.util.stream.IntStream;
+
+public class ColumnarTableModel extends AbstractTableModel {
+
+    public enum ColumnType { ID, MONEY, DATE, TEXT }
+
+    // Marker for a missing id, amount or date
+    public static final long NULL = Long.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final String[] columnNames;
+    private final ColumnType[] columnTypes;
+
+    // Column storage: numeric columns use longs, TEXT columns use dictionary codes
+    private long[][] longColumns;
+    private int[][] textColumns;
+    private int rowCount;
+
+    // Shared string dictionary; code -1 means null
+    private List<String> dictionary;
+    private Map<String, Integer> dictionaryIndex;
+
+    // Visible rows in display order; null means all rows in load order
+    private int[] view;
+
+    // Sort keys in priority order and the current quick filter
+    private final List<SortKey> sortKeys = new ArrayList<>();
+    private String filterText = "";
+
+    // Bumped on every load/sort/filter so stale background results are dropped
+    private int generation;
+
+    // Set while only the first rows are loaded; run once before the rest is needed
+    private Runnable loadRest;
+
+    public static class SortKey {
+        final int column;
+        final boolean ascending;
+
+        SortKey(int column, boolean ascending) {
+            this.column = column;
+            this.ascending = ascending;
+        }
+    }
+
+    public ColumnarTableModel(String[] columnNames, ColumnType[] columnTypes) {
+        this.columnNames = columnNames;
+        this.columnTypes = columnTypes;
+        beginLoad();
+    }
+
+    // Drop all rows and start a new load
+    // Fresh arrays are allocated so a running background sort keeps a consistent snapshot
+    public void beginLoad() {
+        generation++;
+        longColumns = new long[columnTypes.length][];
+        textColumns = new int[columnTypes.length][];
+        for (int c = 0; c < columnTypes.length; c++) {
+            if (columnTypes[c] == ColumnType.TEXT) {
+                textColumns[c] = new int[INITIAL_CAPACITY];
+            } else {
+                longColumns[c] = new long[INITIAL_CAPACITY];
+            }
+        }
+        dictionary = new ArrayList<>();
+        dictionaryIndex = new HashMap<>();
+        rowCount = 0;
+        view = null;
+        loadRest = null;
+    }
+
+    // Empty model with the same columns, to be filled off the EDT and passed to takeRows()
+    public ColumnarTableModel emptyCopy() {
+        return new ColumnarTableModel(columnNames, columnTypes);
+    }
+
+    // Replace the rows with those of a model filled off the EDT (not shown in any table)
+    // The active sort and filter are applied to the new rows
+    public void takeRows(ColumnarTableModel loaded) {
+        generation++;
+        longColumns = loaded.longColumns;
+        textColumns = loaded.textColumns;
+        rowCount = loaded.rowCount;
+        dictionary = loaded.dictionary;
+        dictionaryIndex = loaded.dictionaryIndex;
+        view = null;
+        loadRest = null;
+        endLoad();
+    }
+
+    // Mark the rows as only the first part of the data, e.g. restored from a snapshot
+    // loadRest runs once, before sorting or filtering or when the user scrolls to the end,
+    // and must eventually hand the full rows to takeRows()
+    public void setPartial(Runnable loadRest) {
+        this.loadRest = loadRest;
+    }
+
+    public boolean isPartial() {
+        return loadRest != null;
+    }
+
+    public boolean isFiltered() {
+        return !filterText.isEmpty();
+    }
+
+    private void requestRest() {
+        Runnable pending = loadRest;
+        loadRest = null;
+        if (pending != null) {
+            pending.run();
+        }
+    }
+
+    // Append an empty row and return its storage index
+    public int appendRow() {
+        if (rowCount == capacity()) {
+            int newCapacity = capacity() * 2;
+            for (int c = 0; c < columnTypes.length; c++) {
+                if (textColumns[c] != null) {
+                    textColumns[c] = Arrays.copyOf(textColumns[c], newCapacity);
+                } else {
+                    longColumns[c] = Arrays.copyOf(longColumns[c], newCapacity);
+                }
+            }
+        }
+        return rowCount++;
+    }
+
+    public void setLong(int row, int column, long value) {
+        longColumns[column][row] = value;
+    }
+
+    public void setMoney(int row, int column, double amount) {
+        longColumns[column][row] = Math.round(amount * 100);
+    }
+
+    // Dates are stored as epoch seconds; accepts "yyyy-MM-dd HH:mm:ss" or "yyyy-MM-dd"
+    public void setDate(int row, int column, String text) {
+        longColumns[column][row] = parseDate(text);
+    }
+
+    public void setText(int row, int column, String text) {
+        int code = -1;
+        if (text != null) {
+            Integer existing = dictionaryIndex.get(text);
+            if (existing == null) {
+                existing = dictionary.size();
+                dictionary.add(text);
+                dictionaryIndex.put(text, existing);
+            }
+            code = existing;
+        }
+        textColumns[column][row] = code;
+    }
+
+    // Finish a load: show the rows, then re-apply the active sort and filter in the background
+    public void endLoad() {
+        fireTableDataChanged();
+        if (!sortKeys.isEmpty() || !filterText.isEmpty()) {
+            recompute();
+        }
+    }
+
+    private int capacity() {
+        return textColumns[0] != null ? textColumns[0].length : longColumns[0].length;
+    }
+
+    @Override
+    public int getRowCount() {
+        return view != null ? view.length : rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return columnTypes[column] == ColumnType.ID ? Long.class : String.class;
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+
+    // Ids are returned as Long, text as String, money and dates formatted for display
+    @Override
+    public Object getValueAt(int row, int column) {
+        int r = view != null ? view[row] : row;
+        switch (columnTypes[column]) {
+            case ID: {
+                long v = longColumns[column][r];
+                return v == NULL ? null : v;
+            }
+            case MONEY:
+                return formatMoney(longColumns[column][r]);
+            case DATE:
+                return formatDate(longColumns[column][r]);
+            default: {
+                int code = textColumns[column][r];
+                return code < 0 ? null : dictionary.get(code);
+            }
+        }
+    }
+
+    // Raw primitive value of a numeric cell at a view row
+    public long getLong(int row, int column) {
+        return longColumns[column][view != null ? view[row] : row];
+    }
+
+    // Click sorts by a column (toggling direction); with extend=true the column
+    // is added as a secondary key instead
+    public void toggleSort(int column, boolean extend) {
+        requestRest();
+        SortKey existing = null;
+        for (SortKey key : sortKeys) {
+            if (key.column == column) {
+                existing = key;
+            }
+        }
+        boolean ascending = existing == null || !existing.ascending;
+        if (extend) {
+            int index = existing != null ? sortKeys.indexOf(existing) : sortKeys.size();
+            sortKeys.remove(existing);
+            sortKeys.add(index, new SortKey(column, ascending));
+        } else {
+            sortKeys.clear();
+            sortKeys.add(new SortKey(column, ascending));
+        }
+        recompute();
+    }
+
+    public void clearSort() {
+        sortKeys.clear();
+        recompute();
+    }
+
+    // Keep rows where any text column contains the text (case-insensitive)
+    // or an id column equals it
+    public void setFilter(String text) {
+        requestRest();
+        filterText = text == null ? "" : text.trim().toLowerCase();
+        recompute();
+    }
+
+    // 1-based position and direction of a column in the sort, or 0 if not sorted
+    int sortPosition(int column) {
+        for (int i = 0; i < sortKeys.size(); i++) {
+            if (sortKeys.get(i).column == column) {
+                return sortKeys.get(i).ascending ? i + 1 : -(i + 1);
+            }
+        }
+        return 0;
+    }
+
+    // Compute the new view on a worker thread from a snapshot of the current state
+    private void recompute() {
+        final int gen = ++generation;
+        final Snapshot snapshot = new Snapshot();
+        new SwingWorker<int[], Void>() {
+            @Override
+            protected int[] doInBackground() {
+                return snapshot.computeView();
+            }
+
+            @Override
+            protected void done() {
+                if (gen != generation) {
+                    return;
+                }
+                try {
+                    view = get();
+                    fireTableDataChanged();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }.execute();
+    }
+
+    // Immutable copy of everything the background computation needs
+    private class Snapshot {
+        final int rows = rowCount;
+        final long[][] longs = longColumns;
+        final int[][] texts = textColumns;
+        final String[] dict = dictionary.toArray(new String[0]);
+        final List<SortKey> keys = new ArrayList<>(sortKeys);
+        final String filter = filterText;
+
+        int[] computeView() {
+            int[] rowsInView = filter.isEmpty() ? null : filterRows();
+            if (keys.isEmpty()) {
+                return rowsInView;
+            }
+            if (rowsInView == null) {
+                rowsInView = IntStream.range(0, rows).toArray();
+            }
+            return sortRows(rowsInView);
+        }
+
+        // Text matching is decided once per dictionary entry, then rows test a boolean
+        private int[] filterRows() {
+            final boolean[] matches = new boolean[dict.length];
+            IntStream.range(0, dict.length).parallel().forEach(
+                code -> matches[code] = dict[code].toLowerCase().contains(filter));
+
+            long parsed = NULL;
+            try {
+                parsed = Long.parseLong(filter);
+            } catch (NumberFormatException e) {
+                // not an id
+            }
+            final long idValue = parsed;
+
+            return IntStream.range(0, rows).parallel().filter(r -> {
+                for (int c = 0; c < columnTypes.length; c++) {
+                    if (texts[c] != null) {
+                        int code = texts[c][r];
+                        if (code >= 0 && matches[code]) {
+                            return true;
+                        }
+                    } else if (columnTypes[c] == ColumnType.ID && idValue != NULL && longs[c][r] == idValue) {
+                        return true;
+                    }
+                }
+                return false;
+            }).toArray();
+        }
+
+        // Multi-key sort: every key column becomes a small non-negative integer key,
+        // the keys are combined mixed-radix into one long and packed with the row
+        // position, so a single primitive parallel sort orders all rows. Keys that
+        // would not fit are first collapsed to dense ranks: the key so far, then the
+        // new column, then the (key so far, column) pairs together.
+        private int[] sortRows(int[] rowsInView) {
+            int n = rowsInView.length;
+            int indexBits = 64 - Long.numberOfLeadingZeros(Math.max(1, n - 1));
+            long limit = Long.MAX_VALUE >>> indexBits;
+
+            long[] composite = null;
+            long width = 1;
+            for (SortKey key : keys) {
+                long[] widthOut = new long[1];
+                long[] columnKey = columnKeys(key.column, rowsInView, key.ascending, widthOut);
+                long columnWidth = widthOut[0];
+                if (columnWidth > limit) {
+                    columnKey = rank(columnKey, widthOut);
+                    columnWidth = widthOut[0];
+                }
+                if (composite == null) {
+                    composite = columnKey;
+                    width = columnWidth;
+                    continue;
+                }
+                if (width > limit / columnWidth) {
+                    composite = rank(composite, widthOut);
+                    width = widthOut[0];
+                }
+                if (width > limit / columnWidth) {
+                    columnKey = rank(columnKey, widthOut);
+                    columnWidth = widthOut[0];
+                }
+                if (width > limit / columnWidth) {
+                    composite = rankPairs(composite, columnKey, indexBits, widthOut);
+                    width = widthOut[0];
+                    continue;
+                }
+                final long[] prev = composite;
+                final long[] next = columnKey;
+                final long w = columnWidth;
+                IntStream.range(0, n).parallel().forEach(i -> prev[i] = prev[i] * w + next[i]);
+                width *= columnWidth;
+            }
+
+            final long[] finalKey = composite;
+            final int shift = indexBits;
+            long[] packed = new long[n];
+            IntStream.range(0, n).parallel().forEach(i -> packed[i] = (finalKey[i] << shift) | i);
+            Arrays.parallelSort(packed);
+
+            final long mask = (1L << shift) - 1;
+            int[] sorted = new int[n];
+            IntStream.range(0, n).parallel().forEach(i -> sorted[i] = rowsInView[(int) (packed[i] & mask)]);
+            return sorted;
+        }
+
+        // Per-row sort key in 0..width-1 with the direction already applied
+        // Text uses the rank of its dictionary entry; numbers are offset by the
+        // column minimum; nulls come first
+        private long[] columnKeys(int column, int[] rowsInView, boolean ascending, long[] widthOut) {
+            int n = rowsInView.length;
+            long[] keys = new long[n];
+            long width;
+            if (texts[column] != null) {
+                final int[] codeRank = dictionaryRanks();
+                final int[] codes = texts[column];
+                IntStream.range(0, n).parallel().forEach(i -> {
+                    int code = codes[rowsInView[i]];
+                    keys[i] = code < 0 ? 0 : codeRank[code] + 1;
+                });
+                width = dict.length + 1;
+            } else {
+                final long[] values = longs[column];
+                long min = Long.MAX_VALUE;
+                long max = Long.MIN_VALUE;
+                for (int row : rowsInView) {
+                    long v = values[row];
+                    if (v != NULL) {
+                        min = Math.min(min, v);
+                        max = Math.max(max, v);
+                    }
+                }
+                if (min > max) {
+                    // only nulls
+                    widthOut[0] = 1;
+                    return keys;
+                }
+                final long base = min;
+                if (max - min < 0 || max - min >= Long.MAX_VALUE - 1) {
+                    // spread too large to offset; rank the raw values instead
+                    IntStream.range(0, n).parallel().forEach(i -> keys[i] = values[rowsInView[i]]);
+                    long[] ranked = rank(keys, widthOut);
+                    return ascending ? ranked : reverse(ranked, widthOut[0]);
+                }
+                IntStream.range(0, n).parallel().forEach(i -> {
+                    long v = values[rowsInView[i]];
+                    keys[i] = v == NULL ? 0 : v - base + 1;
+                });
+                width = max - min + 2;
+            }
+            widthOut[0] = width;
+            return ascending ? keys : reverse(keys, width);
+        }
+
+        private int[] dictionaryRanks() {
+            Integer[] order = new Integer[dict.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.parallelSort(order, (a, b) -> String.CASE_INSENSITIVE_ORDER.compare(dict[a], dict[b]));
+            int[] ranks = new int[dict.length];
+            for (int i = 0; i < order.length; i++) {
+                ranks[order[i]] = i;
+            }
+            return ranks;
+        }
+    }
+
+    // Write the first rows in display order, with the sort keys, for a warm start
+    public void writeRows(DataOutputStream out, int maxRows) throws IOException {
+        int rows = Math.min(maxRows, getRowCount());
+        out.writeInt(columnTypes.length);
+        for (ColumnType type : columnTypes) {
+            out.writeByte(type.ordinal());
+        }
+        out.writeInt(sortKeys.size());
+        for (SortKey key : sortKeys) {
+            out.writeInt(key.column);
+            out.writeBoolean(key.ascending);
+        }
+        out.writeInt(rows);
+        for (int c = 0; c < columnTypes.length; c++) {
+            for (int row = 0; row < rows; row++) {
+                int r = view != null ? view[row] : row;
+                if (textColumns[c] == null) {
+                    out.writeLong(longColumns[c][r]);
+                } else {
+                    int code = textColumns[c][r];
+                    out.writeBoolean(code >= 0);
+                    if (code >= 0) {
+                        out.writeUTF(dictionary.get(code));
+                    }
+                }
+            }
+        }
+    }
+
+    // Load rows written by writeRows; they are shown in the saved order under the saved sort
+    // Returns false, leaving the model empty, if the columns do not match
+    public boolean readRows(DataInputStream in) throws IOException {
+        beginLoad();
+        int columns = in.readInt();
+        if (columns != columnTypes.length) {
+            return false;
+        }
+        for (ColumnType type : columnTypes) {
+            if (in.readByte() != type.ordinal()) {
+                return false;
+            }
+        }
+        List<SortKey> keys = new ArrayList<>();
+        int keyCount = in.readInt();
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(new SortKey(in.readInt(), in.readBoolean()));
+        }
+        int rows = in.readInt();
+        for (int row = 0; row < rows; row++) {
+            appendRow();
+        }
+        for (int c = 0; c < columnTypes.length; c++) {
+            for (int row = 0; row < rows; row++) {
+                if (textColumns[c] == null) {
+                    longColumns[c][row] = in.readLong();
+                } else {
+                    setText(row, c, in.readBoolean() ? in.readUTF() : null);
+                }
+            }
+        }
+        sortKeys.clear();
+        sortKeys.addAll(keys);
+        fireTableDataChanged();
+        return true;
+    }
+
+    // Replace keys by their dense rank (0..distinct-1); the distinct count goes to widthOut
+    private static long[] rank(long[] keys, long[] widthOut) {
+        long[] unique = keys.clone();
+        Arrays.parallelSort(unique);
+        int count = 0;
+        for (int i = 0; i < unique.length; i++) {
+            if (i == 0 || unique[i] != unique[i - 1]) {
+                unique[count++] = unique[i];
+            }
+        }
+        final long[] distinct = Arrays.copyOf(unique, count);
+        long[] ranks = new long[keys.length];
+        IntStream.range(0, keys.length).parallel().forEach(i -> ranks[i] = Arrays.binarySearch(distinct, keys[i]));
+        widthOut[0] = Math.max(1, count);
+        return ranks;
+    }
+
+    // Dense rank of (major, minor) pairs, both already ranks below 2^indexBits
+    // Rows are ordered by minor, then stably by major using the minor position,
+    // so neither sort key needs more than 2 * indexBits bits
+    private static long[] rankPairs(long[] major, long[] minor, int indexBits, long[] widthOut) {
+        int n = major.length;
+        final long mask = (1L << indexBits) - 1;
+        long[] byMinor = new long[n];
+        IntStream.range(0, n).parallel().forEach(i -> byMinor[i] = (minor[i] << indexBits) | i);
+        Arrays.parallelSort(byMinor);
+        long[] byPair = new long[n];
+        IntStream.range(0, n).parallel().forEach(p -> {
+            int row = (int) (byMinor[p] & mask);
+            byPair[row] = (major[row] << indexBits) | p;
+        });
+        Arrays.parallelSort(byPair);
+
+        long[] ranks = new long[n];
+        long rank = -1;
+        int previous = -1;
+        for (int i = 0; i < n; i++) {
+            int row = (int) (byMinor[(int) (byPair[i] & mask)] & mask);
+            if (previous < 0 || major[row] != major[previous] || minor[row] != minor[previous]) {
+                rank++;
+            }
+            ranks[row] = rank;
+            previous = row;
+        }
+        widthOut[0] = Math.max(1, rank + 1);
+        return ranks;
+    }
+
+    private static long[] reverse(long[] keys, long width) {
+        IntStream.range(0, keys.length).parallel().forEach(i -> keys[i] = width - 1 - keys[i]);
+        return keys;
+    }
+
+    static String formatMoney(long cents) {
+        if (cents == NULL) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(16);
+        if (cents < 0) {
+            sb.append('-');
+            cents = -cents;
+        }
+        long fraction = cents % 100;
+        sb.append('$').append(cents / 100).append('.');
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction).toString();
+    }
+
+    static String formatDate(long epochSeconds) {
+        if (epochSeconds == NULL) {
+            return "";
+        }
+        LocalDateTime t = LocalDateTime.ofEpochSecond(epochSeconds, 0, ZoneOffset.UTC);
+        StringBuilder sb = new StringBuilder(19);
+        sb.append(t.getYear()).append('-');
+        pad(sb, t.getMonthValue()).append('-');
+        pad(sb, t.getDayOfMonth()).append(' ');
+        pad(sb, t.getHour()).append(':');
+        pad(sb, t.getMinute()).append(':');
+        return pad(sb, t.getSecond()).toString();
+    }
+
+    private static StringBuilder pad(StringBuilder sb, int value) {
+        if (value < 10) {
+            sb.append('0');
+        }
+        return sb.append(value);
+    }
+
+    // Fixed-position parse of SQLite datetime text, avoiding a formatter per row
+    static long parseDate(String text) {
+        if (text == null || text.length() < 10) {
+            return NULL;
+        }
+        try {
+            int year = Integer.parseInt(text.substring(0, 4));
+            int month = Integer.parseInt(text.substring(5, 7));
+            int day = Integer.parseInt(text.substring(8, 10));
+            int hour = 0;
+            int minute = 0;
+            int second = 0;
+            if (text.length() >= 19) {
+                hour = Integer.parseInt(text.substring(11, 13));
+                minute = Integer.parseInt(text.substring(14, 16));
+                second = Integer.parseInt(text.substring(17, 19));
+            }
+            return LocalDateTime.of(year, month, day, hour, minute, second).toEpochSecond(ZoneOffset.UTC);
+        } catch (RuntimeException e) {
+            return NULL;
+        }
+    }
+
+    // Click a header to sort, shift-click to add a secondary sort column
+    // Load the rest of a partial model when the user scrolls to the last loaded rows
+    public static void loadRestOnScroll(JScrollPane scrollPane, ColumnarTableModel model) {
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            JScrollBar bar = (JScrollBar) e.getAdjustable();
+            if (model.isPartial() && bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - bar.getVisibleAmount()) {
+                model.requestRest();
+            }
+        });
+    }
+
+    public static void install(JTable table, ColumnarTableModel model) {
+        JTableHeader header = table.getTableHeader();
+        header.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int viewColumn = header.columnAtPoint(e.getPoint());
+                if (viewColumn >= 0) {
+                    model.toggleSort(table.convertColumnIndexToModel(viewColumn), e.isShiftDown());
+                    header.repaint();
+                }
+            }
+        });
+
+        final TableCellRenderer base = header.getDefaultRenderer();
+        header.setDefaultRenderer((t, value, selected, focused, row, column) -> {
+            Component c = base.getTableCellRendererComponent(t, value, selected, focused, row, column);
+            int position = model.sortPosition(t.convertColumnIndexToModel(column));
+            if (position != 0 && c instanceof JLabel) {
+                String arrow = position > 0 ? "\u25B2" : "\u25BC";
+                String order = model.sortKeys.size() > 1 ? String.valueOf(Math.abs(position)) : "";
+                ((JLabel) c).setText(arrow + order + " " + value);
+            }
+            return c;
+        });
+    }
+}
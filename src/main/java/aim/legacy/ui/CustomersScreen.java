@@ -3,14 +3,22 @@
  * 
  * Screen for managing customer records.
  * Provides functionality to view, add, edit, delete, and search customers.
+ * The selected customer's recent orders and lifetime statistics are shown below the list.
+ * Likely duplicates can be found and merged (see DuplicateCustomers).
+ * The list is not loaded on construction: MainApp restores it from the warm-start
+ * snapshot (see ScreenSnapshot) or loads it in the background.
  * All database operations are performed directly in this class for simplicity.
  */
 package aim.legacy.ui;
 
+import aim.legacy.db.AuditLog;
+import aim.legacy.db.BulkDeleteService;
+import aim.legacy.db.CustomerStats;
 import aim.legacy.db.DB;
+import aim.legacy.db.Diagnostics;
+import aim.legacy.db.DuplicateCustomers;
 
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.sql.*;
 
@@ -19,13 +27,18 @@ public class CustomersScreen extends JPanel {
     private final MainApp mainApp;
     
     private JTable customerTable;
-    private DefaultTableModel tableModel;
+    private ColumnarTableModel tableModel;
     private JTextField searchField;
+    private ScreenSnapshot.Table snapshotTable;
+    
+    // Order history of the selected customer
+    private static final int HISTORY_LIMIT = 50;
+    private ColumnarTableModel historyModel;
+    private JLabel statsLabel;
     
     public CustomersScreen(MainApp mainApp) {
         this.mainApp = mainApp;
         setupUI();
-        loadCustomers();
     }
     
     private void setupUI() {
@@ -45,14 +58,39 @@ public class CustomersScreen extends JPanel {
         add(topPanel, BorderLayout.NORTH);
         
         String[] columns = {"ID", "Name", "Email", "Phone", "Address"};
-        tableModel = new DefaultTableModel(columns, 0) {
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
+        ColumnarTableModel.ColumnType[] types = {
+            ColumnarTableModel.ColumnType.ID, ColumnarTableModel.ColumnType.TEXT, ColumnarTableModel.ColumnType.TEXT,
+            ColumnarTableModel.ColumnType.TEXT, ColumnarTableModel.ColumnType.TEXT
         };
+        tableModel = new ColumnarTableModel(columns, types);
         customerTable = new JTable(tableModel);
+        ColumnarTableModel.install(customerTable, tableModel);
+        customerTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        customerTable.getSelectionModel().addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                loadHistory();
+            }
+        });
         JScrollPane scrollPane = new JScrollPane(customerTable);
-        add(scrollPane, BorderLayout.CENTER);
+        snapshotTable = new ScreenSnapshot.Table("customers", customerTable, scrollPane, tableModel,
+            CustomersScreen::readCustomers);
+        
+        JPanel historyPanel = new JPanel(new BorderLayout());
+        statsLabel = new JLabel(" ");
+        statsLabel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        historyPanel.add(statsLabel, BorderLayout.NORTH);
+        String[] historyColumns = {"Order ID", "Date", "Total"};
+        ColumnarTableModel.ColumnType[] historyTypes = {
+            ColumnarTableModel.ColumnType.ID, ColumnarTableModel.ColumnType.DATE, ColumnarTableModel.ColumnType.MONEY
+        };
+        historyModel = new ColumnarTableModel(historyColumns, historyTypes);
+        JTable historyTable = new JTable(historyModel);
+        ColumnarTableModel.install(historyTable, historyModel);
+        historyPanel.add(new JScrollPane(historyTable), BorderLayout.CENTER);
+        
+        JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, scrollPane, historyPanel);
+        splitPane.setResizeWeight(0.7);
+        add(splitPane, BorderLayout.CENTER);
         
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         JButton addButton = new JButton("Add Customer");
@@ -63,47 +101,116 @@ public class CustomersScreen extends JPanel {
         editButton.addActionListener(e -> editCustomer());
         buttonPanel.add(editButton);
         
-        JButton deleteButton = new JButton("Delete Customer");
+        JButton deleteButton = new JButton("Delete Selected");
         deleteButton.addActionListener(e -> deleteCustomer());
         buttonPanel.add(deleteButton);
         
+        JButton duplicatesButton = new JButton("Find Duplicates...");
+        duplicatesButton.addActionListener(e -> findDuplicates());
+        buttonPanel.add(duplicatesButton);
+        
         add(buttonPanel, BorderLayout.SOUTH);
     }
     
     // Refresh the customer list from database
-    // Called when switching back to this screen
+    // Called when switching back to this screen; skipped when nothing changed since the last load
     public void refresh() {
-        loadCustomers();
+        Diagnostics.ActionEvent event = new Diagnostics.ActionEvent("Customers.refresh");
+        try {
+            if (!snapshotTable.isCurrent(DB.getConn())) {
+                loadCustomers();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            loadCustomers();
+        }
+        event.rowCount = tableModel.getRowCount();
+        event.commit();
+    }
+    
+    // Warm-start state of the customer list, restored and saved by MainApp
+    ScreenSnapshot.Table getSnapshotTable() {
+        return snapshotTable;
     }
     
     // Load all customers from database into the table
     // Executes direct SQL query and populates table model
     private void loadCustomers() {
-        tableModel.setRowCount(0);
+        tableModel.beginLoad();
         try {
             Connection conn = DB.getConn();
-            Statement stmt = conn.createStatement();
-            String sql = "SELECT cust_id, cust_name, email, phone, address FROM customer ORDER BY cust_id";
-            ResultSet rs = stmt.executeQuery(sql);
+            snapshotTable.loading(DB.changeToken(conn));
+            readCustomers(conn, tableModel);
+            tableModel.endLoad();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error loading customers: " + e.getMessage());
+        }
+    }
+    
+    // Read all customers into a model; also used for background loads on another connection
+    private static void readCustomers(Connection conn, ColumnarTableModel model) throws SQLException {
+        Statement stmt = conn.createStatement();
+        String sql = "SELECT cust_id, cust_name, email, phone, address FROM customer ORDER BY cust_id";
+        ResultSet rs = stmt.executeQuery(sql);
+        
+        while (rs.next()) {
+            addRow(rs, model);
+        }
+        
+        rs.close();
+        stmt.close();
+    }
+    
+    // Show lifetime statistics and the most recent orders of the selected customer
+    // Statistics come from customer_stats; the list reads the (cust_id, order_date) index only
+    private void loadHistory() {
+        historyModel.beginLoad();
+        int selectedRow = customerTable.getSelectedRow();
+        if (selectedRow < 0 || customerTable.getSelectedRowCount() > 1) {
+            historyModel.endLoad();
+            statsLabel.setText(" ");
+            return;
+        }
+        long custId = tableModel.getLong(selectedRow, 0);
+        
+        try {
+            Connection conn = DB.getConn();
+            CustomerStats stats = CustomerStats.load(conn, custId);
+            statsLabel.setText("Orders: " + stats.orderCount +
+                "    Lifetime spend: " + ColumnarTableModel.formatMoney(stats.lifetimeCents) +
+                "    Last order: " + (stats.lastOrderDate != null ? stats.lastOrderDate : "never"));
             
+            PreparedStatement ps = conn.prepareStatement(
+                "SELECT order_id, order_date, total FROM orders WHERE cust_id = ? ORDER BY order_date DESC LIMIT ?");
+            ps.setLong(1, custId);
+            ps.setInt(2, HISTORY_LIMIT);
+            ResultSet rs = ps.executeQuery();
             while (rs.next()) {
-                tableModel.addRow(new Object[]{
-                    rs.getLong("cust_id"),
-                    rs.getString("cust_name"),
-                    rs.getString("email"),
-                    rs.getString("phone"),
-                    rs.getString("address")
-                });
+                int row = historyModel.appendRow();
+                historyModel.setLong(row, 0, rs.getLong(1));
+                historyModel.setDate(row, 1, rs.getString(2));
+                historyModel.setMoney(row, 2, rs.getDouble(3));
             }
-            
             rs.close();
-            stmt.close();
+            ps.close();
+            historyModel.endLoad();
         } catch (SQLException e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error loading customers: " + e.getMessage());
+            historyModel.endLoad();
+            JOptionPane.showMessageDialog(this, "Error loading order history: " + e.getMessage());
         }
     }
     
+    private static void addRow(ResultSet rs, ColumnarTableModel model) throws SQLException {
+        int row = model.appendRow();
+        model.setLong(row, 0, rs.getLong("cust_id"));
+        model.setText(row, 1, rs.getString("cust_name"));
+        model.setText(row, 2, rs.getString("email"));
+        model.setText(row, 3, rs.getString("phone"));
+        model.setText(row, 4, rs.getString("address"));
+    }
+    
     // Search customers by name using LIKE query
     // Note: Uses string concatenation for SQL (should use prepared statements)
     private void searchCustomers() {
@@ -113,7 +220,9 @@ public class CustomersScreen extends JPanel {
             return;
         }
         
-        tableModel.setRowCount(0);
+        Diagnostics.ActionEvent event = new Diagnostics.ActionEvent("Customers.search");
+        tableModel.beginLoad();
+        snapshotTable.loading(null);
         try {
             Connection conn = DB.getConn();
             Statement stmt = conn.createStatement();
@@ -122,19 +231,17 @@ public class CustomersScreen extends JPanel {
             ResultSet rs = stmt.executeQuery(sql);
             
             while (rs.next()) {
-                tableModel.addRow(new Object[]{
-                    rs.getLong("cust_id"),
-                    rs.getString("cust_name"),
-                    rs.getString("email"),
-                    rs.getString("phone"),
-                    rs.getString("address")
-                });
+                addRow(rs, tableModel);
             }
             
             rs.close();
             stmt.close();
+            tableModel.endLoad();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            event.rowCount = tableModel.getRowCount();
+            event.commit();
         }
     }
     
@@ -164,6 +271,8 @@ public class CustomersScreen extends JPanel {
                 
                 rs.close();
                 stmt.close();
+                AuditLog.get().record(AuditLog.CREATE, "customer", nextId, null,
+                    customerImage(dialog.getName(), dialog.getEmail(), dialog.getPhone(), dialog.getAddress()));
                 loadCustomers();
             } catch (SQLException e) {
                 e.printStackTrace();
@@ -202,6 +311,9 @@ public class CustomersScreen extends JPanel {
                 stmt.execute(sql);
                 
                 stmt.close();
+                AuditLog.get().record(AuditLog.UPDATE, "customer", id,
+                    customerImage(name, email, phone, address),
+                    customerImage(dialog.getName(), dialog.getEmail(), dialog.getPhone(), dialog.getAddress()));
                 loadCustomers();
             } catch (SQLException e) {
                 e.printStackTrace();
@@ -210,35 +322,91 @@ public class CustomersScreen extends JPanel {
         }
     }
     
-    // Delete customer from database
-    // Uses CASCADE delete to remove associated orders
+    private static java.util.Map<String, Object> customerImage(String name, String email, String phone, String address) {
+        return AuditLog.image("cust_name", name, "email", email, "phone", phone, "address", address);
+    }
+    
+    // Delete all selected customers in one transaction
+    // Their orders and order lines are removed by ON DELETE CASCADE foreign keys
     private void deleteCustomer() {
-        int selectedRow = customerTable.getSelectedRow();
-        if (selectedRow < 0) {
+        int[] selectedRows = customerTable.getSelectedRows();
+        if (selectedRows.length == 0) {
             JOptionPane.showMessageDialog(this, "Please select a customer to delete");
             return;
         }
         
-        int confirm = JOptionPane.showConfirmDialog(this, 
-            "Are you sure you want to delete this customer?",
-            "Confirm Delete", 
-            JOptionPane.YES_NO_OPTION);
+        long[] ids = new long[selectedRows.length];
+        for (int i = 0; i < selectedRows.length; i++) {
+            ids[i] = tableModel.getLong(selectedRows[i], 0);
+        }
         
-        if (confirm == JOptionPane.YES_OPTION) {
-            long id = (Long) tableModel.getValueAt(selectedRow, 0);
+        try {
+            Connection conn = DB.getConn();
+            int orderCount = BulkDeleteService.countOrdersForCustomers(conn, ids);
             
-            try {
-                Connection conn = DB.getConn();
-                Statement stmt = conn.createStatement();
-                String sql = "DELETE FROM customer WHERE cust_id = " + id;
-                stmt.execute(sql);
-                
-                stmt.close();
+            String message = selectedRows.length == 1
+                ? "Are you sure you want to delete this customer?"
+                : "Are you sure you want to delete these " + selectedRows.length + " customers?";
+            if (orderCount > 0) {
+                message += "\n" + orderCount + " order(s) will also be deleted.";
+            }
+            int confirm = JOptionPane.showConfirmDialog(this, 
+                message,
+                "Confirm Delete", 
+                JOptionPane.YES_NO_OPTION);
+            
+            if (confirm == JOptionPane.YES_OPTION) {
+                BulkDeleteService.deleteCustomers(conn, ids);
+                AuditLog audit = AuditLog.get();
+                for (int row : selectedRows) {
+                    audit.record(AuditLog.DELETE, "customer", tableModel.getLong(row, 0),
+                        customerImage((String) tableModel.getValueAt(row, 1), (String) tableModel.getValueAt(row, 2),
+                            (String) tableModel.getValueAt(row, 3), (String) tableModel.getValueAt(row, 4)),
+                        null);
+                }
                 loadCustomers();
-            } catch (SQLException e) {
-                e.printStackTrace();
-                JOptionPane.showMessageDialog(this, "Error deleting customer: " + e.getMessage());
             }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error deleting customer: " + e.getMessage());
         }
     }
+    
+    // Find likely duplicates on a background connection, then offer to merge them
+    private void findDuplicates() {
+        Diagnostics.ActionEvent event = new Diagnostics.ActionEvent("Customers.findDuplicates");
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<java.util.List<DuplicateCustomers.Match>, Void>() {
+            protected java.util.List<DuplicateCustomers.Match> doInBackground() throws Exception {
+                try (Connection conn = DB.openConnection()) {
+                    return DuplicateCustomers.find(conn);
+                }
+            }
+            
+            protected void done() {
+                setCursor(Cursor.getDefaultCursor());
+                java.util.List<DuplicateCustomers.Match> matches;
+                try {
+                    matches = get();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    event.commit();
+                    JOptionPane.showMessageDialog(CustomersScreen.this, "Error finding duplicates: " + e.getMessage());
+                    return;
+                }
+                event.rowCount = matches.size();
+                event.commit();
+                if (matches.isEmpty()) {
+                    JOptionPane.showMessageDialog(CustomersScreen.this, "No likely duplicates found");
+                    return;
+                }
+                DuplicateCustomersDialog dialog = new DuplicateCustomersDialog(
+                    (Frame) SwingUtilities.getWindowAncestor(CustomersScreen.this), matches);
+                dialog.setVisible(true);
+                if (dialog.isMerged()) {
+                    loadCustomers();
+                }
+            }
+        }.execute();
+    }
 }
@@ -0,0 +1,136 @@
+/**
+ * DuplicateCustomersDialog.java
+ *
+ * Lists likely duplicate customers found by DuplicateCustomers, best matches first.
+ * The selected pairs are merged: the duplicate's orders move to the older customer
+ * and the duplicate is deleted. Pairs sharing a customer can be merged together.
+ */
+package aim.legacy.ui;
+
+import aim.legacy.db.DB;
+import aim.legacy.db.DuplicateCustomers;
+
+import javax.swing.*;
+import java.awt.*;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class DuplicateCustomersDialog extends JDialog {
+
+    private final java.util.List<DuplicateCustomers.Match> matches;
+    private final ColumnarTableModel tableModel;
+    private final JTable table;
+    private final JLabel countLabel = new JLabel();
+
+    // Customers merged so far, mapped to the customer they were merged into
+    private final Map<Long, Long> mergedInto = new HashMap<>();
+
+    public DuplicateCustomersDialog(Frame parent, java.util.List<DuplicateCustomers.Match> matches) {
+        super(parent, "Duplicate Customers", true);
+        this.matches = matches;
+
+        String[] columns = {"Keep ID", "Keep Name", "Duplicate ID", "Duplicate Name", "Score %", "Matched On"};
+        ColumnarTableModel.ColumnType[] types = {
+            ColumnarTableModel.ColumnType.ID, ColumnarTableModel.ColumnType.TEXT,
+            ColumnarTableModel.ColumnType.ID, ColumnarTableModel.ColumnType.TEXT,
+            ColumnarTableModel.ColumnType.ID, ColumnarTableModel.ColumnType.TEXT
+        };
+        tableModel = new ColumnarTableModel(columns, types);
+        table = new JTable(tableModel);
+        ColumnarTableModel.install(table, tableModel);
+        table.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+
+        setLayout(new BorderLayout());
+        countLabel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        add(countLabel, BorderLayout.NORTH);
+        add(new JScrollPane(table), BorderLayout.CENTER);
+
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        JButton mergeButton = new JButton("Merge Selected");
+        mergeButton.addActionListener(e -> mergeSelected());
+        buttonPanel.add(mergeButton);
+        JButton closeButton = new JButton("Close");
+        closeButton.addActionListener(e -> dispose());
+        buttonPanel.add(closeButton);
+        add(buttonPanel, BorderLayout.SOUTH);
+
+        loadMatches();
+        setSize(800, 450);
+        setLocationRelativeTo(parent);
+    }
+
+    public boolean isMerged() {
+        return !mergedInto.isEmpty();
+    }
+
+    // Show the pairs not affected by a merge yet
+    private void loadMatches() {
+        tableModel.beginLoad();
+        for (DuplicateCustomers.Match match : matches) {
+            if (mergedInto.containsKey(match.keepId) || mergedInto.containsKey(match.duplicateId)) {
+                continue;
+            }
+            int row = tableModel.appendRow();
+            tableModel.setLong(row, 0, match.keepId);
+            tableModel.setText(row, 1, match.keepName);
+            tableModel.setLong(row, 2, match.duplicateId);
+            tableModel.setText(row, 3, match.duplicateName);
+            tableModel.setLong(row, 4, Math.round(match.score * 100));
+            tableModel.setText(row, 5, match.matchedOn);
+        }
+        tableModel.endLoad();
+        countLabel.setText(tableModel.getRowCount() + " likely duplicate(s); the duplicate is merged into the customer kept");
+    }
+
+    private long resolve(long custId) {
+        Long into;
+        while ((into = mergedInto.get(custId)) != null) {
+            custId = into;
+        }
+        return custId;
+    }
+
+    // Merge every selected pair, one transaction each; a customer already merged
+    // is followed to the customer it went into, and the older customer is always kept
+    private void mergeSelected() {
+        int[] selectedRows = table.getSelectedRows();
+        if (selectedRows.length == 0) {
+            JOptionPane.showMessageDialog(this, "Please select the pairs to merge");
+            return;
+        }
+        int confirm = JOptionPane.showConfirmDialog(this,
+            "Merge " + selectedRows.length + " duplicate(s)?\n" +
+            "Their orders move to the customer kept and the duplicates are deleted.",
+            "Confirm Merge",
+            JOptionPane.YES_NO_OPTION);
+        if (confirm != JOptionPane.YES_OPTION) {
+            return;
+        }
+
+        long[][] pairs = new long[selectedRows.length][];
+        for (int i = 0; i < selectedRows.length; i++) {
+            pairs[i] = new long[] {tableModel.getLong(selectedRows[i], 0), tableModel.getLong(selectedRows[i], 2)};
+        }
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        try {
+            for (long[] pair : pairs) {
+                long a = resolve(pair[0]);
+                long b = resolve(pair[1]);
+                if (a == b) {
+                    continue;
+                }
+                long keepId = Math.min(a, b);
+                long duplicateId = Math.max(a, b);
+                DuplicateCustomers.merge(DB.getConn(), keepId, duplicateId);
+                mergedInto.put(duplicateId, keepId);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error merging customers: " + e.getMessage());
+        } finally {
+            setCursor(Cursor.getDefaultCursor());
+            loadMatches();
+        }
+    }
+}
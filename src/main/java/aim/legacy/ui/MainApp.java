@@ -4,14 +4,24 @@
  * Main application window and entry point.
  * Provides navigation between customer and order management screens.
  * Uses CardLayout for switching between different views.
+ * The customer and order lists are restored from the warm-start snapshot
+ * saved on exit, so the window is usable before the full lists are loaded.
  */
 package aim.legacy.ui;
 
+import aim.legacy.db.AuditLog;
+import aim.legacy.db.BackupService;
 import aim.legacy.db.DB;
+import aim.legacy.db.Diagnostics;
+import aim.legacy.db.Inventory;
+import aim.legacy.server.OrderServer;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.sql.*;
+import java.util.Arrays;
 
 public class MainApp extends JFrame {
     
@@ -20,6 +30,7 @@ public class MainApp extends JFrame {
     
     private CustomersScreen customersScreen;
     private OrdersScreen ordersScreen;
+    private ProductsScreen productsScreen;
     
     // Initialize database connection on startup
     // This ensures the database is ready before any screens load
@@ -33,6 +44,11 @@ public class MainApp extends JFrame {
         setupUI();
         
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) {
+                saveSnapshot();
+            }
+        });
         setSize(900, 600);
         setLocationRelativeTo(null);
     }
@@ -47,13 +63,24 @@ public class MainApp extends JFrame {
         
         customersScreen = new CustomersScreen(this);
         ordersScreen = new OrdersScreen(this);
+        productsScreen = new ProductsScreen(this);
         
         mainPanel.add(customersScreen, "customers");
         mainPanel.add(ordersScreen, "orders");
+        mainPanel.add(productsScreen, "products");
         
         add(mainPanel);
         
-        showCustomersScreen();
+        // Shown from the snapshot without the usual refresh; reconciled in the background
+        ScreenSnapshot snapshot = ScreenSnapshot.read();
+        customersScreen.getSnapshotTable().restore(snapshot);
+        ordersScreen.getSnapshotTable().restore(snapshot);
+        cardLayout.show(mainPanel, "customers");
+    }
+    
+    // Save the first rows of the customer and order lists for the next start
+    private void saveSnapshot() {
+        ScreenSnapshot.save(customersScreen.getSnapshotTable(), ordersScreen.getSnapshotTable());
     }
     
     // Creates the application menu bar with navigation options
@@ -71,10 +98,21 @@ public class MainApp extends JFrame {
         ordersItem.addActionListener(e -> showOrdersScreen());
         menu.add(ordersItem);
         
+        JMenuItem productsItem = new JMenuItem("Products");
+        productsItem.addActionListener(e -> showProductsScreen());
+        menu.add(productsItem);
+        
+        menu.addSeparator();
+        
+        JMenuItem backupItem = new JMenuItem("Back Up Database");
+        backupItem.addActionListener(e -> backupDatabase());
+        menu.add(backupItem);
+        
         menu.addSeparator();
         
         JMenuItem exitItem = new JMenuItem("Exit");
         exitItem.addActionListener(e -> {
+            saveSnapshot();
             DB.closeConn();
             System.exit(0);
         });
@@ -85,6 +123,25 @@ public class MainApp extends JFrame {
         return menuBar;
     }
     
+    // Take an online backup on a background thread; the screens stay usable meanwhile
+    private void backupDatabase() {
+        new SwingWorker<BackupService.Result, Void>() {
+            protected BackupService.Result doInBackground() throws Exception {
+                return BackupService.get().backup(true);
+            }
+            
+            protected void done() {
+                try {
+                    JOptionPane.showMessageDialog(MainApp.this, get().toString());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    JOptionPane.showMessageDialog(MainApp.this, "Backup failed: " + e.getMessage(),
+                        "Backup", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+    
     // Switch to customers screen and refresh the data
     // Uses card layout to swap views without creating new instances
     public void showCustomersScreen() {
@@ -99,14 +156,34 @@ public class MainApp extends JFrame {
         cardLayout.show(mainPanel, "orders");
     }
     
+    // Switch to products screen and reload the catalog
+    public void showProductsScreen() {
+        productsScreen.refresh();
+        cardLayout.show(mainPanel, "products");
+    }
+    
     // Application entry point
     // Sets look and feel to match OS and launches the main window
+    // With --server, runs the headless HTTP order intake instead (see OrderServer)
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--server")) {
+            OrderServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch (Exception e) {
         }
         
+        Diagnostics.startFromProperties();
+        BackupService.startFromProperties();
+        // Audit entries still buffered are written before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            Inventory.shutdown();
+            AuditLog.shutdown();
+        }));
+        
         SwingUtilities.invokeLater(() -> {
             MainApp app = new MainApp();
             app.setVisible(true);
@@ -8,14 +8,26 @@
  */
 package aim.legacy.ui;
 
+import aim.legacy.db.AuditLog;
+import aim.legacy.db.CustomerStats;
 import aim.legacy.db.DB;
+import aim.legacy.db.Diagnostics;
+import aim.legacy.db.IdempotencyKeys;
+import aim.legacy.db.Inventory;
+import aim.legacy.db.OrderArchive;
+import aim.legacy.db.OrderCache;
+import aim.legacy.db.OrderLinePager;
+import aim.legacy.db.OrderRules;
+import aim.legacy.db.PricingCatalog;
+import aim.legacy.domain.Order;
+import aim.legacy.ui.OrderLinesTableModel.TempLine;
 
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.sql.*;
+import java.time.LocalDate;
 import java.util.*;
 
 public class OrderEditorDialog extends JDialog {
@@ -23,39 +35,30 @@ public class OrderEditorDialog extends JDialog {
     private long orderId;
     private boolean saved = false;
     
+    // Archived orders are opened read-only
+    private boolean readOnly = false;
+    
     private JComboBox<String> customerCombo;
     private Map<String, Long> customerMap = new HashMap<>();
     private JTable linesTable;
-    private DefaultTableModel linesTableModel;
+    private OrderLinesTableModel linesTableModel;
     
     private JLabel subtotalLabel;
     private JLabel discountLabel;
     private JLabel taxLabel;
     private JLabel totalLabel;
     private JTextArea statusArea;
+    private JButton addLineButton;
+    private JButton removeLineButton;
+    private JButton saveButton;
     
-    // Tax rate is fixed at 14.975% for all orders
-    private static final BigDecimal TAX_RATE = new BigDecimal("0.14975");
-    
-    // Temp-table pattern: holds line items in memory before committing to database
-    // This is similar to Progress ABL temp-tables for transaction buffering
-    private class TempLine {
-        long lineId;
-        long prodId;
-        String prodName;
-        int qty;
-        BigDecimal price;
-        
-        TempLine(long lid, long pid, String pname, int q, BigDecimal p) {
-            lineId = lid;
-            prodId = pid;
-            prodName = pname;
-            qty = q;
-            price = p;
-        }
-    }
+    // Idempotency key of this dialog's new order: a save repeated after one that committed
+    // (e.g. when the dialog missed the outcome) returns that order instead of inserting again
+    private final String submissionKey = UUID.randomUUID().toString();
     
-    private ArrayList<TempLine> tempLines = new ArrayList<>();
+    // Orders with more lines than this are paged from the database instead of
+    // being loaded whole (and are kept out of the order cache)
+    private static final int IN_MEMORY_LINE_LIMIT = 2000;
     
     public OrderEditorDialog(Frame parent, long id) {
         super(parent, id == 0 ? "New Order" : "Edit Order", true);
@@ -67,6 +70,10 @@ public class OrderEditorDialog extends JDialog {
             loadOrder();
         }
         calculateTotals();
+        if (readOnly) {
+            setTitle("View Archived Order");
+            statusArea.setText("This order is archived and cannot be modified");
+        }
         
         setSize(800, 600);
         setLocationRelativeTo(parent);
@@ -84,10 +91,9 @@ public class OrderEditorDialog extends JDialog {
         
         JPanel centerPanel = new JPanel(new BorderLayout());
         
-        String[] columns = {"Product", "Quantity", "Unit Price", "Line Total"};
-        linesTableModel = new DefaultTableModel(columns, 0) {
-            public boolean isCellEditable(int row, int column) {
-                return false;
+        linesTableModel = new OrderLinesTableModel() {
+            public void setValueAt(Object value, int row, int column) {
+                updateQuantity(row, value);
             }
         };
         linesTable = new JTable(linesTableModel);
@@ -95,11 +101,11 @@ public class OrderEditorDialog extends JDialog {
         centerPanel.add(scrollPane, BorderLayout.CENTER);
         
         JPanel lineButtonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
-        JButton addLineButton = new JButton("Add Line");
+        addLineButton = new JButton("Add Line");
         addLineButton.addActionListener(e -> addLine());
         lineButtonPanel.add(addLineButton);
         
-        JButton removeLineButton = new JButton("Remove Line");
+        removeLineButton = new JButton("Remove Line");
         removeLineButton.addActionListener(e -> removeLine());
         lineButtonPanel.add(removeLineButton);
         
@@ -143,7 +149,7 @@ public class OrderEditorDialog extends JDialog {
         
         JPanel bottomPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         
-        JButton saveButton = new JButton("Save");
+        saveButton = new JButton("Save");
         saveButton.addActionListener(e -> save());
         bottomPanel.add(saveButton);
         
@@ -175,80 +181,71 @@ public class OrderEditorDialog extends JDialog {
         }
     }
     
+    // Load the order aggregate through the read-through cache
+    // Very large orders skip the cache and are paged into the table as it scrolls
+    // Archived orders come back flagged and are opened read-only
     private void loadOrder() {
+        Diagnostics.ActionEvent event = new Diagnostics.ActionEvent("OrderEditor.loadOrder");
         try {
             Connection conn = DB.getConn();
-            Statement stmt = conn.createStatement();
-            String sql = "SELECT cust_name FROM orders WHERE order_id = " + orderId;
-            ResultSet rs = stmt.executeQuery(sql);
-            
-            if (rs.next()) {
-                String custName = rs.getString("cust_name");
-                customerCombo.setSelectedItem(custName);
+            Order order = OrderCache.get().getOrder(orderId);
+            if (order == null) {
+                String schema = OrderArchive.locate(conn, orderId);
+                if (schema == null) {
+                    statusArea.setText("Order " + orderId + " not found");
+                    return;
+                }
+                if (OrderLinePager.countLines(conn, schema, orderId) > IN_MEMORY_LINE_LIMIT) {
+                    OrderLinePager pager = new OrderLinePager(conn, schema, orderId);
+                    if (pager.isArchived()) {
+                        setReadOnly();
+                    }
+                    customerCombo.setSelectedItem(pager.getCustomerName());
+                    linesTableModel.load(pager);
+                    return;
+                }
+                order = OrderCache.get().load(conn, orderId);
+                if (order == null) {
+                    statusArea.setText("Order " + orderId + " not found");
+                    return;
+                }
             }
-            
-            rs.close();
-            
-            sql = "SELECT line_id, prod_id, prod_name, quantity, unit_price FROM order_line WHERE order_id = " + orderId;
-            rs = stmt.executeQuery(sql);
-            
-            while (rs.next()) {
-                TempLine line = new TempLine(
-                    rs.getLong("line_id"),
-                    rs.getLong("prod_id"),
-                    rs.getString("prod_name"),
-                    rs.getInt("quantity"),
-                    new BigDecimal(rs.getString("unit_price"))
-                );
-                tempLines.add(line);
+            if (order.isArchived()) {
+                setReadOnly();
             }
             
-            rs.close();
-            stmt.close();
-            
-            refreshLines();
+            customerCombo.setSelectedItem(order.getCustomerName());
+            linesTableModel.load(order.getLines());
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            event.orderId = orderId;
+            event.lineCount = linesTableModel.getRowCount();
+            event.commit();
         }
     }
     
-    private void refreshLines() {
-        linesTableModel.setRowCount(0);
-        for (TempLine line : tempLines) {
-            BigDecimal lineTotal = line.price.multiply(BigDecimal.valueOf(line.qty));
-            linesTableModel.addRow(new Object[]{
-                line.prodName,
-                line.qty,
-                "$" + line.price,
-                "$" + lineTotal.setScale(2, RoundingMode.HALF_UP)
-            });
-        }
+    // Disable every editing control; used for orders living in an archive file
+    private void setReadOnly() {
+        readOnly = true;
+        linesTableModel.setEditable(false);
+        customerCombo.setEnabled(false);
+        addLineButton.setEnabled(false);
+        removeLineButton.setEnabled(false);
+        saveButton.setEnabled(false);
     }
     
     // Calculate order totals including discounts and tax
-    // Discount tiers: 5% over $600, 10% over $1200, 15% over $2500
+    // Discount tiers and the tax rate come from the current OrderRules
     // Tax is applied to subtotal after discount
+    // The subtotal is kept up to date by the lines model, so this is constant time
     private void calculateTotals() {
-        BigDecimal subtotal = BigDecimal.ZERO;
-        for (TempLine line : tempLines) {
-            BigDecimal lineTotal = line.price.multiply(BigDecimal.valueOf(line.qty));
-            subtotal = subtotal.add(lineTotal);
-        }
-        subtotal = subtotal.setScale(2, RoundingMode.HALF_UP);
-        
-        BigDecimal discount = BigDecimal.ZERO;
-        if (subtotal.compareTo(new BigDecimal("2000")) >= 0) {
-            discount = subtotal.multiply(new BigDecimal("0.15"));
-        } else if (subtotal.compareTo(new BigDecimal("1000")) >= 0) {
-            discount = subtotal.multiply(new BigDecimal("0.10"));
-        } else if (subtotal.compareTo(new BigDecimal("500")) >= 0) {
-            discount = subtotal.multiply(new BigDecimal("0.05"));
-        }
-        discount = discount.setScale(2, RoundingMode.HALF_UP);
+        OrderRules rules = OrderRules.current();
+        BigDecimal subtotal = linesTableModel.getSubtotal().setScale(2, RoundingMode.HALF_UP);
+        BigDecimal discount = rules.discount(subtotal);
         
         BigDecimal taxableAmount = subtotal.subtract(discount);
-        BigDecimal tax = taxableAmount.multiply(TAX_RATE);
-        tax = tax.setScale(2, RoundingMode.HALF_UP);
+        BigDecimal tax = rules.tax(taxableAmount);
         
         BigDecimal total = subtotal.subtract(discount).add(tax);
         total = total.setScale(2, RoundingMode.HALF_UP);
@@ -259,8 +256,16 @@ public class OrderEditorDialog extends JDialog {
         totalLabel.setText("$" + total);
     }
     
+    // Offered prices are the selected customer's prices for today
+    // (contract price, then current price list, then the product's list price)
     private void addLine() {
+        Diagnostics.ActionEvent event = new Diagnostics.ActionEvent("OrderEditor.addLine");
         try {
+            String customerName = (String) customerCombo.getSelectedItem();
+            Long custId = customerName == null ? null : customerMap.get(customerName);
+            PricingCatalog catalog = PricingCatalog.get();
+            LocalDate today = LocalDate.now();
+            
             Connection conn = DB.getConn();
             Statement stmt = conn.createStatement();
             String sql = "SELECT prod_id, prod_name, unit_price FROM product ORDER BY prod_name";
@@ -273,7 +278,10 @@ public class OrderEditorDialog extends JDialog {
             while (rs.next()) {
                 long id = rs.getLong("prod_id");
                 String name = rs.getString("prod_name");
-                BigDecimal price = new BigDecimal(rs.getString("unit_price"));
+                BigDecimal price = catalog.price(custId == null ? 0 : custId, id, today);
+                if (price == null) {
+                    price = new BigDecimal(rs.getString("unit_price"));
+                }
                 String item = name + " - $" + price;
                 productList.add(item);
                 prodIdMap.put(item, id);
@@ -282,6 +290,10 @@ public class OrderEditorDialog extends JDialog {
             
             rs.close();
             stmt.close();
+            // Only the product list is timed, not the clerk picking from it
+            event.orderId = orderId;
+            event.rowCount = productList.size();
+            event.commit();
             
             if (productList.isEmpty()) {
                 JOptionPane.showMessageDialog(this, "No products available");
@@ -315,11 +327,9 @@ public class OrderEditorDialog extends JDialog {
             BigDecimal price = priceMap.get(selected);
             String prodName = selected.substring(0, selected.lastIndexOf(" - $"));
             
-            long nextLineId = tempLines.size() + 1;
-            TempLine line = new TempLine(nextLineId, prodId, prodName, quantity, price);
-            tempLines.add(line);
+            TempLine line = new TempLine(0, prodId, prodName, quantity, price);
+            linesTableModel.addLine(line);
             
-            refreshLines();
             calculateTotals();
         } catch (SQLException e) {
             e.printStackTrace();
@@ -333,8 +343,21 @@ public class OrderEditorDialog extends JDialog {
             return;
         }
         
-        tempLines.remove(selectedRow);
-        refreshLines();
+        linesTableModel.removeRow(selectedRow);
+        calculateTotals();
+    }
+    
+    // Quantity edited in the lines table; marks the line dirty so only it is rewritten
+    private void updateQuantity(int row, Object value) {
+        int quantity;
+        try {
+            quantity = Integer.parseInt(String.valueOf(value).trim());
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Invalid quantity");
+            return;
+        }
+        
+        linesTableModel.setQuantity(row, quantity);
         calculateTotals();
     }
     
@@ -353,40 +376,22 @@ public class OrderEditorDialog extends JDialog {
         
         ArrayList<String> errors = new ArrayList<>();
         
-        if (tempLines.isEmpty()) {
+        if (linesTableModel.getRowCount() == 0) {
             errors.add("Order must have at least one line item");
         }
         
-        for (int i = 0; i < tempLines.size(); i++) {
-            TempLine line = tempLines.get(i);
-            if (line.qty <= 0) {
-                errors.add("Line " + (i + 1) + ": Quantity must be positive");
-            }
-            if (line.price == null || line.price.compareTo(BigDecimal.ZERO) < 0) {
-                errors.add("Line " + (i + 1) + ": Unit price must be zero or greater");
-            }
-        }
+        linesTableModel.collectErrors(errors);
         
-        BigDecimal subtotal = BigDecimal.ZERO;
-        for (TempLine line : tempLines) {
-            subtotal = subtotal.add(line.price.multiply(BigDecimal.valueOf(line.qty)));
-        }
-        subtotal = subtotal.setScale(2, RoundingMode.HALF_UP);
-        
-        BigDecimal discount = BigDecimal.ZERO;
-        if (subtotal.compareTo(new BigDecimal("2000")) >= 0) {
-            discount = subtotal.multiply(new BigDecimal("0.15"));
-        } else if (subtotal.compareTo(new BigDecimal("1000")) >= 0) {
-            discount = subtotal.multiply(new BigDecimal("0.10"));
-        } else if (subtotal.compareTo(new BigDecimal("500")) >= 0) {
-            discount = subtotal.multiply(new BigDecimal("0.05"));
-        }
-        discount = discount.setScale(2, RoundingMode.HALF_UP);
+        // One rules snapshot for the whole save, even if the file is reloaded meanwhile
+        OrderRules rules = OrderRules.current();
+        BigDecimal subtotal = linesTableModel.getSubtotal().setScale(2, RoundingMode.HALF_UP);
+        BigDecimal discount = rules.discount(subtotal);
         
         if (subtotal.compareTo(BigDecimal.ZERO) > 0) {
             BigDecimal discountRate = discount.divide(subtotal, 4, RoundingMode.HALF_UP);
-            if (discountRate.compareTo(new BigDecimal("0.15")) > 0) {
-                errors.add("Discount cannot exceed 15%");
+            if (discountRate.compareTo(rules.getMaxDiscountRate()) > 0) {
+                errors.add("Discount cannot exceed " +
+                    rules.getMaxDiscountRate().movePointRight(2).stripTrailingZeros().toPlainString() + "%");
             }
         }
         
@@ -400,68 +405,90 @@ public class OrderEditorDialog extends JDialog {
             return;
         }
         
+        BigDecimal taxableAmount = subtotal.subtract(discount);
+        BigDecimal tax = rules.tax(taxableAmount);
+        BigDecimal total = subtotal.subtract(discount).add(tax);
+        
+        Diagnostics.ActionEvent event = new Diagnostics.ActionEvent("OrderEditor.save");
+        Connection conn = DB.getConn();
+        long savedOrderId = orderId;
+        Map<String, Object> before = null;
         try {
-            Connection conn = DB.getConn();
-            Statement stmt = conn.createStatement();
-            
-            BigDecimal taxableAmount = subtotal.subtract(discount);
-            BigDecimal tax = taxableAmount.multiply(TAX_RATE).setScale(2, RoundingMode.HALF_UP);
-            BigDecimal total = subtotal.subtract(discount).add(tax);
+            conn.setAutoCommit(false);
             
-            if (orderId == 0) {
-                String sql = "SELECT MAX(order_id) FROM orders";
-                ResultSet rs = stmt.executeQuery(sql);
+            if (savedOrderId == 0) {
+                Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery(OrderArchive.LAST_ORDER_ID);
                 long nextOrderId = 1;
                 if (rs.next()) {
                     nextOrderId = rs.getLong(1) + 1;
                 }
-                orderId = nextOrderId;
+                rs.close();
+                stmt.close();
                 
-                String insertSql = "INSERT INTO orders (order_id, cust_id, cust_name, order_date, subtotal, discount, tax, total) VALUES (" +
-                    orderId + ", " + custId + ", '" + customerName.replace("'", "''") + "', datetime('now'), " +
-                    subtotal + ", " + discount + ", " + tax + ", " + total + ")";
-                stmt.execute(insertSql);
-                
-                // Get max line_id to ensure globally unique line IDs
-                rs = stmt.executeQuery("SELECT MAX(line_id) FROM order_line");
-                long nextLineId = 1;
-                if (rs.next()) {
-                    nextLineId = rs.getLong(1) + 1;
+                long existing = IdempotencyKeys.claim(conn, submissionKey, nextOrderId);
+                if (existing != 0) {
+                    conn.rollback();
+                    orderId = existing;
+                    savedOrderId = existing;
+                    statusArea.setText("Order was already saved as order " + existing);
+                    saved = true;
+                    
+                    javax.swing.Timer timer = new javax.swing.Timer(500, e -> dispose());
+                    timer.setRepeats(false);
+                    timer.start();
+                    return;
                 }
                 
-                for (int i = 0; i < tempLines.size(); i++) {
-                    TempLine line = tempLines.get(i);
-                    String lineSql = "INSERT INTO order_line (line_id, order_id, prod_id, prod_name, quantity, unit_price) VALUES (" +
-                        (nextLineId + i) + ", " + orderId + ", " + line.prodId + ", '" + line.prodName.replace("'", "''") + "', " +
-                        line.qty + ", " + line.price + ")";
-                    stmt.execute(lineSql);
-                }
+                PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO orders (order_id, cust_id, cust_name, order_date, subtotal, discount, tax, total, order_ts) " +
+                    "VALUES (?, ?, ?, datetime('now'), ?, ?, ?, ?, strftime('%s', 'now'))");
+                ps.setLong(1, nextOrderId);
+                ps.setLong(2, custId);
+                ps.setString(3, customerName);
+                ps.setBigDecimal(4, subtotal);
+                ps.setBigDecimal(5, discount);
+                ps.setBigDecimal(6, tax);
+                ps.setBigDecimal(7, total);
+                ps.executeUpdate();
+                ps.close();
+                savedOrderId = nextOrderId;
+                CustomerStats.orderAdded(conn, savedOrderId);
             } else {
-                String updateSql = "UPDATE orders SET cust_id = " + custId + ", cust_name = '" + customerName.replace("'", "''") + "', " +
-                    "subtotal = " + subtotal + ", discount = " + discount + ", tax = " + tax + ", total = " + total +
-                    " WHERE order_id = " + orderId;
-                stmt.execute(updateSql);
-                
-                String deleteSql = "DELETE FROM order_line WHERE order_id = " + orderId;
-                stmt.execute(deleteSql);
-                
-                // Get max line_id to ensure globally unique line IDs
-                ResultSet rs = stmt.executeQuery("SELECT MAX(line_id) FROM order_line");
-                long nextLineId = 1;
-                if (rs.next()) {
-                    nextLineId = rs.getLong(1) + 1;
-                }
-                
-                for (int i = 0; i < tempLines.size(); i++) {
-                    TempLine line = tempLines.get(i);
-                    String lineSql = "INSERT INTO order_line (line_id, order_id, prod_id, prod_name, quantity, unit_price) VALUES (" +
-                        (nextLineId + i) + ", " + orderId + ", " + line.prodId + ", '" + line.prodName.replace("'", "''") + "', " +
-                        line.qty + ", " + line.price + ")";
-                    stmt.execute(lineSql);
+                before = orderImage(conn, savedOrderId);
+                long previousCustId = CustomerStats.orderRemoving(conn, savedOrderId);
+                PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE orders SET cust_id = ?, cust_name = ?, subtotal = ?, discount = ?, tax = ?, total = ? " +
+                    "WHERE order_id = ?");
+                ps.setLong(1, custId);
+                ps.setString(2, customerName);
+                ps.setBigDecimal(3, subtotal);
+                ps.setBigDecimal(4, discount);
+                ps.setBigDecimal(5, tax);
+                ps.setBigDecimal(6, total);
+                ps.setLong(7, savedOrderId);
+                ps.executeUpdate();
+                ps.close();
+                CustomerStats.orderAdded(conn, savedOrderId);
+                if (previousCustId != 0 && previousCustId != custId) {
+                    CustomerStats.refreshLastOrder(conn, previousCustId);
                 }
             }
             
-            stmt.close();
+            Map<String, Object> after = AuditLog.image("cust_id", custId, "cust_name", customerName,
+                "subtotal", subtotal, "discount", discount, "tax", tax, "total", total);
+            countLineChanges(after);
+            Inventory.Reservation reservation = reserveStock(conn, savedOrderId);
+            long firstNewLineId = saveLines(conn, savedOrderId);
+            conn.commit();
+            reservation.committed();
+            AuditLog.get().record(before == null ? AuditLog.CREATE : AuditLog.UPDATE, "order", savedOrderId, before, after);
+            
+            // Only now that the transaction is durable does the editor adopt the new ids
+            orderId = savedOrderId;
+            linesTableModel.markSaved(firstNewLineId);
+            OrderCache.get().invalidate(orderId);
+            
             statusArea.setText("Order saved successfully");
             saved = true;
             
@@ -470,8 +497,153 @@ public class OrderEditorDialog extends JDialog {
             timer.start();
         } catch (SQLException e) {
             e.printStackTrace();
+            try {
+                conn.rollback();
+            } catch (SQLException rollbackError) {
+                rollbackError.printStackTrace();
+            }
             JOptionPane.showMessageDialog(this, "Error saving order: " + e.getMessage());
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            event.orderId = savedOrderId;
+            event.lineCount = linesTableModel.getRowCount();
+            event.commit();
+        }
+    }
+    
+    // Header of an order as stored, for the audit trail
+    private static Map<String, Object> orderImage(Connection conn, long id) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(
+            "SELECT cust_id, cust_name, order_date, subtotal, discount, tax, total FROM orders WHERE order_id = ?");
+        ps.setLong(1, id);
+        ResultSet rs = ps.executeQuery();
+        Map<String, Object> image = null;
+        if (rs.next()) {
+            image = AuditLog.image("cust_id", rs.getLong(1), "cust_name", rs.getString(2), "order_date", rs.getString(3),
+                "subtotal", rs.getBigDecimal(4), "discount", rs.getBigDecimal(5), "tax", rs.getBigDecimal(6),
+                "total", rs.getBigDecimal(7));
+        }
+        rs.close();
+        ps.close();
+        return image;
+    }
+    
+    // Line changes are summarized as counts; orders can have far too many lines to copy
+    private void countLineChanges(Map<String, Object> image) {
+        int added = 0;
+        int changed = 0;
+        for (TempLine line : linesTableModel.getChangedLines()) {
+            if (line.lineId == 0) {
+                added++;
+            } else if (line.dirty) {
+                changed++;
+            }
+        }
+        image.put("lines_added", added);
+        image.put("lines_changed", changed);
+        image.put("lines_deleted", linesTableModel.getDeletedLineIds().size());
+    }
+    
+    // Reserve stock for the quantities this save adds and release what it removes, in the save transaction
+    // Old quantities of changed and removed lines are read inside the save transaction
+    private Inventory.Reservation reserveStock(Connection conn, long targetOrderId) throws SQLException {
+        Map<Long, Long> changes = new HashMap<>();
+        java.util.List<Long> oldLineIds = new ArrayList<>(linesTableModel.getDeletedLineIds());
+        for (TempLine line : linesTableModel.getChangedLines()) {
+            if (line.lineId == 0 || line.dirty) {
+                changes.merge(line.prodId, (long) line.qty, Long::sum);
+                if (line.lineId > 0) {
+                    oldLineIds.add(line.lineId);
+                }
+            }
+        }
+        if (!oldLineIds.isEmpty()) {
+            PreparedStatement ps = conn.prepareStatement(
+                "SELECT prod_id, quantity FROM order_line WHERE line_id = ? AND order_id = ?");
+            for (long lineId : oldLineIds) {
+                ps.setLong(1, lineId);
+                ps.setLong(2, targetOrderId);
+                ResultSet rs = ps.executeQuery();
+                if (rs.next()) {
+                    changes.merge(rs.getLong(1), -rs.getLong(2), Long::sum);
+                }
+                rs.close();
+            }
+            ps.close();
+        }
+        return Inventory.get().reserve(conn, changes);
+    }
+    
+    // Apply only the line changes made in the editor, in batches:
+    // deletes for removed lines, updates for dirty lines, inserts for new lines.
+    // Existing line ids stay stable; new lines get consecutive ids after the highest line id
+    // ever used (archived lines included), which is safe because the order header write
+    // already holds the write lock.
+    // Returns the id given to the first new line.
+    private long saveLines(Connection conn, long targetOrderId) throws SQLException {
+        if (!linesTableModel.getDeletedLineIds().isEmpty()) {
+            PreparedStatement ps = conn.prepareStatement("DELETE FROM order_line WHERE line_id = ? AND order_id = ?");
+            for (long lineId : linesTableModel.getDeletedLineIds()) {
+                ps.setLong(1, lineId);
+                ps.setLong(2, targetOrderId);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            ps.close();
+        }
+        
+        long firstNewLineId = 0;
+        PreparedStatement update = null;
+        PreparedStatement insert = null;
+        long nextLineId = 0;
+        for (TempLine line : linesTableModel.getChangedLines()) {
+            if (line.lineId > 0 && line.dirty) {
+                if (update == null) {
+                    update = conn.prepareStatement(
+                        "UPDATE order_line SET prod_id = ?, prod_name = ?, quantity = ?, unit_price = ? " +
+                        "WHERE line_id = ? AND order_id = ?");
+                }
+                update.setLong(1, line.prodId);
+                update.setString(2, line.prodName);
+                update.setInt(3, line.qty);
+                update.setBigDecimal(4, line.price);
+                update.setLong(5, line.lineId);
+                update.setLong(6, targetOrderId);
+                update.addBatch();
+            } else if (line.lineId == 0) {
+                if (insert == null) {
+                    Statement stmt = conn.createStatement();
+                    ResultSet rs = stmt.executeQuery(OrderArchive.LAST_LINE_ID);
+                    firstNewLineId = rs.next() ? rs.getLong(1) + 1 : 1;
+                    rs.close();
+                    stmt.close();
+                    nextLineId = firstNewLineId;
+                    insert = conn.prepareStatement(
+                        "INSERT INTO order_line (line_id, order_id, prod_id, prod_name, quantity, unit_price) " +
+                        "VALUES (?, ?, ?, ?, ?, ?)");
+                }
+                insert.setLong(1, nextLineId++);
+                insert.setLong(2, targetOrderId);
+                insert.setLong(3, line.prodId);
+                insert.setString(4, line.prodName);
+                insert.setInt(5, line.qty);
+                insert.setBigDecimal(6, line.price);
+                insert.addBatch();
+            }
+        }
+        if (update != null) {
+            update.executeBatch();
+            update.close();
+        }
+        if (insert != null) {
+            insert.executeBatch();
+            insert.close();
         }
+        return firstNewLineId;
     }
     
     private void cancel() {
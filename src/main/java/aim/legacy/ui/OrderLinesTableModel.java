@@ -0,0 +1,339 @@
+/**
+ * OrderLinesTableModel.java
+ *
+ * Line item table for the order editor.
+ * The persisted lines are read through a BaseLines source (a loaded list, or an
+ * OrderLinePager for very large orders) and only for the rows JTable paints.
+ * Edits, additions and removals live in an overlay on top of that source, and
+ * the subtotal and validation state are adjusted by each change instead of being
+ * recomputed over every line.
+ */
+package aim.legacy.ui;
+
+import aim.legacy.db.OrderLinePager;
+import aim.legacy.domain.OrderLine;
+
+import javax.swing.table.AbstractTableModel;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.*;
+import java.util.List;
+
+class OrderLinesTableModel extends AbstractTableModel {
+
+    private static final String[] COLUMNS = {"Product", "Quantity", "Unit Price", "Line Total"};
+
+    // Temp-table pattern: holds line items in memory before committing to database
+    // This is similar to Progress ABL temp-tables for transaction buffering
+    // lineId is the persisted line_id, or 0 for a line that has not been saved yet
+    static class TempLine {
+        long lineId;
+        long prodId;
+        String prodName;
+        int qty;
+        BigDecimal price;
+        boolean dirty;
+
+        TempLine(long lid, long pid, String pname, int q, BigDecimal p) {
+            lineId = lid;
+            prodId = pid;
+            prodName = pname;
+            qty = q;
+            price = p;
+        }
+    }
+
+    // Persisted lines of the order by position, in line id order
+    interface BaseLines {
+        int size();
+        OrderLine get(int index);
+    }
+
+    private BaseLines base;
+
+    // Base positions still shown, in order; null means all of them (no removals yet)
+    private int[] baseRows;
+    private int baseRowCount;
+
+    // Overlay: edited copies of base lines by base position, and lines added in the editor
+    private final Map<Integer, TempLine> edited = new HashMap<>();
+    private final ArrayList<TempLine> added = new ArrayList<>();
+
+    // Persisted lines removed in the editor; deleted on save
+    private final ArrayList<Long> deletedLineIds = new ArrayList<>();
+
+    // Running totals: unedited base lines are counted once at load, overlay lines on change
+    private BigDecimal subtotal;
+    private int invalidBaseLines;
+    private final Set<TempLine> invalidLines = Collections.newSetFromMap(new IdentityHashMap<TempLine, Boolean>());
+
+    private boolean editable = true;
+
+    OrderLinesTableModel() {
+        load(Collections.<OrderLine>emptyList());
+    }
+
+    // Start from a fully loaded order
+    void load(final List<OrderLine> lines) {
+        BigDecimal sum = BigDecimal.ZERO;
+        int invalid = 0;
+        for (OrderLine line : lines) {
+            sum = sum.add(lineTotal(line.getQuantity(), line.getUnitPrice()));
+            if (!isValid(line.getQuantity(), line.getUnitPrice())) {
+                invalid++;
+            }
+        }
+        reset(new BaseLines() {
+            public int size() {
+                return lines.size();
+            }
+
+            public OrderLine get(int index) {
+                return lines.get(index);
+            }
+        }, sum, invalid);
+    }
+
+    // Start from an order too large to load; the pager supplies the aggregates
+    void load(final OrderLinePager pager) {
+        reset(new BaseLines() {
+            public int size() {
+                return pager.size();
+            }
+
+            public OrderLine get(int index) {
+                return pager.get(index);
+            }
+        }, pager.getSubtotal(), pager.getInvalidCount());
+    }
+
+    private void reset(BaseLines lines, BigDecimal sum, int invalid) {
+        base = lines;
+        baseRows = null;
+        baseRowCount = lines.size();
+        edited.clear();
+        added.clear();
+        deletedLineIds.clear();
+        subtotal = sum;
+        invalidBaseLines = invalid;
+        invalidLines.clear();
+        fireTableDataChanged();
+    }
+
+    void setEditable(boolean editable) {
+        this.editable = editable;
+    }
+
+    public int getRowCount() {
+        return baseRowCount + added.size();
+    }
+
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    public boolean isCellEditable(int row, int column) {
+        return column == 1 && editable;
+    }
+
+    public Object getValueAt(int row, int column) {
+        String name;
+        int qty;
+        BigDecimal price;
+        TempLine line = overlayLine(row);
+        if (line != null) {
+            name = line.prodName;
+            qty = line.qty;
+            price = line.price;
+        } else {
+            OrderLine persisted = base.get(basePosition(row));
+            name = persisted.getProductName();
+            qty = persisted.getQuantity();
+            price = persisted.getUnitPrice();
+        }
+
+        switch (column) {
+            case 0:
+                return name;
+            case 1:
+                return qty;
+            case 2:
+                return "$" + price;
+            default:
+                return "$" + lineTotal(qty, price).setScale(2, RoundingMode.HALF_UP);
+        }
+    }
+
+    private int basePosition(int row) {
+        return baseRows == null ? row : baseRows[row];
+    }
+
+    // The overlay line shown at a row, or null if the row is an unedited base line
+    private TempLine overlayLine(int row) {
+        if (row >= baseRowCount) {
+            return added.get(row - baseRowCount);
+        }
+        return edited.get(basePosition(row));
+    }
+
+    void addLine(TempLine line) {
+        added.add(line);
+        track(line);
+        int row = getRowCount() - 1;
+        fireTableRowsInserted(row, row);
+    }
+
+    void removeRow(int row) {
+        if (row >= baseRowCount) {
+            TempLine line = added.remove(row - baseRowCount);
+            untrack(line);
+            if (line.lineId > 0) {
+                deletedLineIds.add(line.lineId);
+            }
+        } else {
+            int position = basePosition(row);
+            TempLine line = edited.remove(position);
+            if (line != null) {
+                untrack(line);
+                deletedLineIds.add(line.lineId);
+            } else {
+                OrderLine persisted = base.get(position);
+                untrackBase(persisted);
+                deletedLineIds.add(persisted.getId());
+            }
+
+            if (baseRows == null) {
+                baseRows = new int[baseRowCount];
+                for (int i = 0; i < baseRowCount; i++) {
+                    baseRows[i] = i;
+                }
+            }
+            System.arraycopy(baseRows, row + 1, baseRows, row, baseRowCount - row - 1);
+            baseRowCount--;
+        }
+        fireTableRowsDeleted(row, row);
+    }
+
+    // Quantity edited in the table; the line moves into the overlay and is marked dirty
+    void setQuantity(int row, int quantity) {
+        TempLine line = overlayLine(row);
+        if (line == null) {
+            OrderLine persisted = base.get(basePosition(row));
+            if (persisted.getQuantity() == quantity) {
+                return;
+            }
+            untrackBase(persisted);
+            line = new TempLine(persisted.getId(), persisted.getProductId(), persisted.getProductName(),
+                persisted.getQuantity(), persisted.getUnitPrice());
+            edited.put(basePosition(row), line);
+            track(line);
+        } else if (line.qty == quantity) {
+            return;
+        }
+
+        untrack(line);
+        line.qty = quantity;
+        line.dirty = true;
+        track(line);
+        fireTableRowsUpdated(row, row);
+    }
+
+    private void track(TempLine line) {
+        subtotal = subtotal.add(lineTotal(line.qty, line.price));
+        if (!isValid(line.qty, line.price)) {
+            invalidLines.add(line);
+        }
+    }
+
+    private void untrack(TempLine line) {
+        subtotal = subtotal.subtract(lineTotal(line.qty, line.price));
+        invalidLines.remove(line);
+    }
+
+    private void untrackBase(OrderLine line) {
+        subtotal = subtotal.subtract(lineTotal(line.getQuantity(), line.getUnitPrice()));
+        if (!isValid(line.getQuantity(), line.getUnitPrice())) {
+            invalidBaseLines--;
+        }
+    }
+
+    private static BigDecimal lineTotal(int qty, BigDecimal price) {
+        return price == null ? BigDecimal.ZERO : price.multiply(BigDecimal.valueOf(qty));
+    }
+
+    private static boolean isValid(int qty, BigDecimal price) {
+        return qty > 0 && price != null && price.compareTo(BigDecimal.ZERO) >= 0;
+    }
+
+    BigDecimal getSubtotal() {
+        return subtotal;
+    }
+
+    boolean hasErrors() {
+        return invalidBaseLines > 0 || !invalidLines.isEmpty();
+    }
+
+    // Validation messages for the current lines
+    // Only lines known to be invalid are visited, so this is cheap on large orders
+    void collectErrors(List<String> errors) {
+        if (!hasErrors()) {
+            return;
+        }
+        TreeMap<Integer, TempLine> byRow = new TreeMap<>();
+        for (Map.Entry<Integer, TempLine> entry : edited.entrySet()) {
+            if (invalidLines.contains(entry.getValue())) {
+                int position = entry.getKey();
+                int row = baseRows == null ? position : Arrays.binarySearch(baseRows, 0, baseRowCount, position);
+                byRow.put(row, entry.getValue());
+            }
+        }
+        for (int i = 0; i < added.size(); i++) {
+            if (invalidLines.contains(added.get(i))) {
+                byRow.put(baseRowCount + i, added.get(i));
+            }
+        }
+
+        for (Map.Entry<Integer, TempLine> entry : byRow.entrySet()) {
+            TempLine line = entry.getValue();
+            if (line.qty <= 0) {
+                errors.add("Line " + (entry.getKey() + 1) + ": Quantity must be positive");
+            }
+            if (line.price == null || line.price.compareTo(BigDecimal.ZERO) < 0) {
+                errors.add("Line " + (entry.getKey() + 1) + ": Unit price must be zero or greater");
+            }
+        }
+        if (invalidBaseLines > 0) {
+            errors.add(invalidBaseLines + " saved line(s) have a non-positive quantity or negative unit price");
+        }
+    }
+
+    // Lines that need writing on save: edited base lines followed by added lines
+    List<TempLine> getChangedLines() {
+        ArrayList<TempLine> lines = new ArrayList<>(edited.size() + added.size());
+        lines.addAll(edited.values());
+        lines.addAll(added);
+        return lines;
+    }
+
+    List<Long> getDeletedLineIds() {
+        return deletedLineIds;
+    }
+
+    // Called after a successful commit; new lines adopt their ids in insertion order
+    void markSaved(long firstNewLineId) {
+        for (TempLine line : edited.values()) {
+            line.dirty = false;
+        }
+        for (TempLine line : added) {
+            if (line.lineId == 0) {
+                line.lineId = firstNewLineId++;
+            }
+            line.dirty = false;
+        }
+        deletedLineIds.clear();
+    }
+}
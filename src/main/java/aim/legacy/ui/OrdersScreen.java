@@ -4,27 +4,63 @@
  * Screen for viewing and managing customer orders.
  * Shows all orders with calculated totals and allows creating/editing orders.
  * Performs all database operations inline for performance.
+ * The current orders are restored from the warm-start snapshot or loaded in the
+ * background by MainApp (see ScreenSnapshot), not on construction.
  */
 package aim.legacy.ui;
 
+import aim.legacy.db.AuditLog;
+import aim.legacy.db.BulkDeleteService;
 import aim.legacy.db.DB;
+import aim.legacy.db.Diagnostics;
+import aim.legacy.db.OrderArchive;
 
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
+import java.awt.event.ActionListener;
+import java.math.BigDecimal;
 import java.sql.*;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 
 public class OrdersScreen extends JPanel {
 
     private final MainApp mainApp;
     
     private JTable orderTable;
-    private DefaultTableModel tableModel;
+    private ColumnarTableModel tableModel;
+    private JComboBox<String> viewCombo;
+    private ScreenSnapshot.Table snapshotTable;
+    
+    // Query filters, applied in SQL against the order_ts/total/cust_id indexes
+    private JTextField fromField;
+    private JTextField toField;
+    private JTextField customerField;
+    private JTextField minTotalField;
+    private JTextField maxTotalField;
+    private JTextField productField;
+    private JComboBox<String> productMatchCombo;
+    
+    private static final String CURRENT_VIEW = "Current Orders";
+    private static final String ARCHIVE_PREFIX = "Archive ";
+    
+    private static final String ANY_PRODUCT = "any";
+    private static final String ALL_PRODUCTS = "all";
+    
+    // Index entries counted per product term to pick the most selective one
+    private static final int POSTING_SAMPLE = 10000;
+    
+    private static final String SELECT_ORDERS =
+        "SELECT order_id, cust_name, order_date, subtotal, discount, tax, total FROM ";
     
     public OrdersScreen(MainApp mainApp) {
         this.mainApp = mainApp;
         setupUI();
-        loadOrders();
+        loadViews();
     }
     
     private void setupUI() {
@@ -32,17 +68,75 @@ public class OrdersScreen extends JPanel {
         
         JPanel topPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         topPanel.add(new JLabel("Orders"));
-        add(topPanel, BorderLayout.NORTH);
+        viewCombo = new JComboBox<>();
+        viewCombo.addActionListener(e -> loadOrders());
+        topPanel.add(viewCombo);
+        JButton archiveButton = new JButton("Archive Old Orders...");
+        archiveButton.addActionListener(e -> archiveOrders(archiveButton));
+        topPanel.add(archiveButton);
+        topPanel.add(new JLabel("Filter:"));
+        JTextField filterField = new JTextField(15);
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { tableModel.setFilter(filterField.getText()); }
+            public void removeUpdate(DocumentEvent e) { tableModel.setFilter(filterField.getText()); }
+            public void changedUpdate(DocumentEvent e) { tableModel.setFilter(filterField.getText()); }
+        });
+        topPanel.add(filterField);
+        
+        JPanel queryPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        queryPanel.add(new JLabel("From:"));
+        fromField = new JTextField(8);
+        queryPanel.add(fromField);
+        queryPanel.add(new JLabel("To:"));
+        toField = new JTextField(8);
+        queryPanel.add(toField);
+        queryPanel.add(new JLabel("Customer:"));
+        customerField = new JTextField(10);
+        customerField.setToolTipText("Customer ID or start of the customer name");
+        queryPanel.add(customerField);
+        queryPanel.add(new JLabel("Total:"));
+        minTotalField = new JTextField(6);
+        queryPanel.add(minTotalField);
+        queryPanel.add(new JLabel("-"));
+        maxTotalField = new JTextField(6);
+        queryPanel.add(maxTotalField);
+        queryPanel.add(new JLabel("Products:"));
+        productField = new JTextField(12);
+        productField.setToolTipText("Product IDs or starts of product names, separated by commas");
+        queryPanel.add(productField);
+        productMatchCombo = new JComboBox<>(new String[] {ANY_PRODUCT, ALL_PRODUCTS});
+        productMatchCombo.setToolTipText("Orders containing any of the products, or all of them");
+        queryPanel.add(productMatchCombo);
+        JButton applyButton = new JButton("Apply");
+        applyButton.addActionListener(e -> loadOrders());
+        queryPanel.add(applyButton);
+        JButton clearButton = new JButton("Clear");
+        clearButton.addActionListener(e -> clearQuery());
+        queryPanel.add(clearButton);
+        // Enter in any filter field applies it
+        for (JTextField field : new JTextField[] {fromField, toField, customerField, minTotalField, maxTotalField, productField}) {
+            field.addActionListener(e -> loadOrders());
+        }
+        
+        JPanel northPanel = new JPanel(new GridLayout(2, 1));
+        northPanel.add(topPanel);
+        northPanel.add(queryPanel);
+        add(northPanel, BorderLayout.NORTH);
         
         String[] columns = {"ID", "Customer", "Date", "Subtotal", "Discount", "Tax", "Total"};
-        tableModel = new DefaultTableModel(columns, 0) {
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
+        ColumnarTableModel.ColumnType[] types = {
+            ColumnarTableModel.ColumnType.ID, ColumnarTableModel.ColumnType.TEXT, ColumnarTableModel.ColumnType.DATE,
+            ColumnarTableModel.ColumnType.MONEY, ColumnarTableModel.ColumnType.MONEY,
+            ColumnarTableModel.ColumnType.MONEY, ColumnarTableModel.ColumnType.MONEY
         };
+        tableModel = new ColumnarTableModel(columns, types);
         orderTable = new JTable(tableModel);
+        ColumnarTableModel.install(orderTable, tableModel);
+        orderTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
         JScrollPane scrollPane = new JScrollPane(orderTable);
         add(scrollPane, BorderLayout.CENTER);
+        snapshotTable = new ScreenSnapshot.Table("orders", orderTable, scrollPane, tableModel,
+            OrdersScreen::readCurrentOrders);
         
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         JButton newButton = new JButton("New Order");
@@ -53,7 +147,7 @@ public class OrdersScreen extends JPanel {
         editButton.addActionListener(e -> editOrder());
         buttonPanel.add(editButton);
         
-        JButton deleteButton = new JButton("Delete Order");
+        JButton deleteButton = new JButton("Delete Selected");
         deleteButton.addActionListener(e -> deleteOrder());
         buttonPanel.add(deleteButton);
         
@@ -61,41 +155,242 @@ public class OrdersScreen extends JPanel {
     }
     
     // Refresh order list when returning to this screen
-    // Ensures latest data is always displayed
+    // Ensures latest data is always displayed; skipped when nothing changed since the last load
     public void refresh() {
-        loadOrders();
+        Diagnostics.ActionEvent event = new Diagnostics.ActionEvent("Orders.refresh");
+        loadViews();
+        try {
+            if (!snapshotTable.isCurrent(DB.getConn())) {
+                loadOrders();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            loadOrders();
+        }
+        event.rowCount = tableModel.getRowCount();
+        event.commit();
+    }
+    
+    // Warm-start state of the order list, restored and saved by MainApp
+    ScreenSnapshot.Table getSnapshotTable() {
+        return snapshotTable;
+    }
+    
+    // Fill the view selector with current orders plus one entry per archive year
+    // Keeps the current selection when it still exists
+    private void loadViews() {
+        Object selected = viewCombo.getSelectedItem();
+        ActionListener[] listeners = viewCombo.getActionListeners();
+        for (ActionListener l : listeners) {
+            viewCombo.removeActionListener(l);
+        }
+        viewCombo.removeAllItems();
+        viewCombo.addItem(CURRENT_VIEW);
+        try {
+            for (int year : OrderArchive.listYears(DB.getConn())) {
+                viewCombo.addItem(ARCHIVE_PREFIX + year);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        viewCombo.setSelectedItem(selected != null ? selected : CURRENT_VIEW);
+        for (ActionListener l : listeners) {
+            viewCombo.addActionListener(l);
+        }
+    }
+    
+    // Schema of the selected view: main for current orders, attached alias for an archive year
+    private String selectedSchema() throws SQLException {
+        String view = (String) viewCombo.getSelectedItem();
+        if (view == null || !view.startsWith(ARCHIVE_PREFIX)) {
+            return OrderArchive.MAIN;
+        }
+        int year = Integer.parseInt(view.substring(ARCHIVE_PREFIX.length()));
+        return OrderArchive.attach(DB.getConn(), year);
     }
     
-    // Load all orders from database with pre-calculated totals
-    // Formats currency values for display in table
+    // Load orders matching the query filters, with pre-calculated totals
+    // Amounts are kept in cents and only formatted for the rows on screen
     private void loadOrders() {
-        tableModel.setRowCount(0);
+        String schema;
+        String where;
+        java.util.List<Object> params = new ArrayList<>();
+        try {
+            schema = selectedSchema();
+            where = buildWhere(schema, params);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error loading orders: " + e.getMessage());
+            return;
+        }
+        if (where == null) {
+            return;
+        }
+        
+        tableModel.beginLoad();
         try {
             Connection conn = DB.getConn();
-            Statement stmt = conn.createStatement();
-            String sql = "SELECT order_id, cust_name, order_date, subtotal, discount, tax, total FROM orders ORDER BY order_id";
-            ResultSet rs = stmt.executeQuery(sql);
-            
-            while (rs.next()) {
-                tableModel.addRow(new Object[]{
-                    rs.getLong("order_id"),
-                    rs.getString("cust_name"),
-                    rs.getString("order_date"),
-                    "$" + String.format("%.2f", rs.getDouble("subtotal")),
-                    "$" + String.format("%.2f", rs.getDouble("discount")),
-                    "$" + String.format("%.2f", rs.getDouble("tax")),
-                    "$" + String.format("%.2f", rs.getDouble("total"))
-                });
+            // Only the unfiltered current orders are kept for the warm start
+            snapshotTable.loading(where.isEmpty() && schema.equals(OrderArchive.MAIN) ? DB.changeToken(conn) : null);
+            String sql = SELECT_ORDERS + schema + ".orders" + where + " ORDER BY order_id";
+            PreparedStatement ps = conn.prepareStatement(sql);
+            for (int i = 0; i < params.size(); i++) {
+                ps.setObject(i + 1, params.get(i));
             }
+            ResultSet rs = ps.executeQuery();
+            addRows(rs, tableModel);
             
             rs.close();
-            stmt.close();
+            ps.close();
+            tableModel.endLoad();
         } catch (SQLException e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(this, "Error loading orders: " + e.getMessage());
         }
     }
     
+    // Read all current orders into a model; used for background loads on another connection
+    private static void readCurrentOrders(Connection conn, ColumnarTableModel model) throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery(SELECT_ORDERS + OrderArchive.MAIN + ".orders ORDER BY order_id");
+        addRows(rs, model);
+        rs.close();
+        stmt.close();
+    }
+    
+    private static void addRows(ResultSet rs, ColumnarTableModel model) throws SQLException {
+        while (rs.next()) {
+            int row = model.appendRow();
+            model.setLong(row, 0, rs.getLong(1));
+            model.setText(row, 1, rs.getString(2));
+            model.setDate(row, 2, rs.getString(3));
+            model.setMoney(row, 3, rs.getDouble(4));
+            model.setMoney(row, 4, rs.getDouble(5));
+            model.setMoney(row, 5, rs.getDouble(6));
+            model.setMoney(row, 6, rs.getDouble(7));
+        }
+    }
+    
+    // Build the WHERE clause for the query filters, adding parameters in order
+    // Dates are whole days in UTC, like order_date; the To date is inclusive.
+    // Returns "" when no filter is set, or null after reporting invalid input.
+    private String buildWhere(String schema, java.util.List<Object> params) throws SQLException {
+        java.util.List<String> conditions = new ArrayList<>();
+        try {
+            String from = fromField.getText().trim();
+            if (!from.isEmpty()) {
+                conditions.add("order_ts >= ?");
+                params.add(LocalDate.parse(from).atStartOfDay().toEpochSecond(ZoneOffset.UTC));
+            }
+            String to = toField.getText().trim();
+            if (!to.isEmpty()) {
+                conditions.add("order_ts < ?");
+                params.add(LocalDate.parse(to).plusDays(1).atStartOfDay().toEpochSecond(ZoneOffset.UTC));
+            }
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Invalid date: " + e.getParsedString() + " (use yyyy-MM-dd)");
+            return null;
+        }
+        
+        String customer = customerField.getText().trim();
+        if (customer.matches("\\d+")) {
+            conditions.add("cust_id = ?");
+            params.add(Long.parseLong(customer));
+        } else if (!customer.isEmpty()) {
+            // Name prefix, matched through the customer name index; archives keep cust_id
+            conditions.add("cust_id IN (SELECT cust_id FROM main.customer WHERE cust_name LIKE ? ESCAPE '\\')");
+            params.add(customer.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+        }
+        
+        try {
+            String min = minTotalField.getText().trim();
+            if (!min.isEmpty()) {
+                conditions.add("total >= ?");
+                params.add(new BigDecimal(min).doubleValue());
+            }
+            String max = maxTotalField.getText().trim();
+            if (!max.isEmpty()) {
+                conditions.add("total <= ?");
+                params.add(new BigDecimal(max).doubleValue());
+            }
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Invalid total amount");
+            return null;
+        }
+        
+        addProductConditions(schema, conditions, params);
+        
+        return conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions);
+    }
+    
+    // Orders containing any or all of the products in the Products field, through the
+    // (prod_id, order_id) index. Each term is a product ID or the start of product names.
+    // For "all", the term with the fewest lines drives the lookup and the other terms only
+    // check the lines of each order found (the + keeps SQLite on the order_id index), so
+    // one rare product keeps the search fast however common the others are.
+    private void addProductConditions(String schema, java.util.List<String> conditions,
+                                      java.util.List<Object> params) throws SQLException {
+        java.util.List<String> products = new ArrayList<>();
+        java.util.List<Object> productParams = new ArrayList<>();
+        for (String term : productField.getText().split(",")) {
+            term = term.trim();
+            if (term.matches("\\d+")) {
+                products.add("SELECT ?");
+                productParams.add(Long.parseLong(term));
+            } else if (!term.isEmpty()) {
+                products.add("SELECT prod_id FROM main.product WHERE prod_name LIKE ? ESCAPE '\\'");
+                productParams.add(term.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+            }
+        }
+        if (products.isEmpty()) {
+            return;
+        }
+        String lines = schema + ".order_line";
+        
+        if (ANY_PRODUCT.equals(productMatchCombo.getSelectedItem()) || products.size() == 1) {
+            conditions.add("order_id IN (SELECT order_id FROM " + lines + " WHERE prod_id IN (" +
+                String.join(" UNION ", products) + "))");
+            params.addAll(productParams);
+            return;
+        }
+        
+        int driving = 0;
+        long fewest = Long.MAX_VALUE;
+        for (int i = 0; i < products.size(); i++) {
+            PreparedStatement ps = DB.getConn().prepareStatement(
+                "SELECT COUNT(*) FROM (SELECT 1 FROM " + lines + " WHERE prod_id IN (" + products.get(i) + ") LIMIT ?)");
+            ps.setObject(1, productParams.get(i));
+            ps.setInt(2, POSTING_SAMPLE);
+            ResultSet rs = ps.executeQuery();
+            long count = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            ps.close();
+            if (count < fewest) {
+                fewest = count;
+                driving = i;
+            }
+        }
+        conditions.add("order_id IN (SELECT order_id FROM " + lines + " WHERE prod_id IN (" + products.get(driving) + "))");
+        params.add(productParams.get(driving));
+        for (int i = 0; i < products.size(); i++) {
+            if (i != driving) {
+                conditions.add("EXISTS (SELECT 1 FROM " + lines + " l WHERE l.order_id = orders.order_id " +
+                    "AND +l.prod_id IN (" + products.get(i) + "))");
+                params.add(productParams.get(i));
+            }
+        }
+    }
+    
+    private void clearQuery() {
+        fromField.setText("");
+        toField.setText("");
+        customerField.setText("");
+        minTotalField.setText("");
+        maxTotalField.setText("");
+        productField.setText("");
+        loadOrders();
+    }
+    
     // Open new order dialog
     // Dialog handles all order creation logic including line items
     private void createOrder() {
@@ -124,30 +419,80 @@ public class OrdersScreen extends JPanel {
         }
     }
     
+    // Move orders older than a cutoff date into the per-year archive files
+    // Archived orders remain viewable (read-only) from the view selector
+    // Archiving copies and deletes years of orders, so it runs in the background;
+    // the button stays disabled until the run is done
+    private void archiveOrders(JButton archiveButton) {
+        String defaultCutoff = LocalDate.now().withDayOfYear(1).minusYears(1).toString();
+        String input = JOptionPane.showInputDialog(this,
+            "Archive all orders dated before (yyyy-MM-dd):", defaultCutoff);
+        if (input == null) return;
+        
+        LocalDate cutoff;
+        try {
+            cutoff = LocalDate.parse(input.trim());
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Invalid date: " + input);
+            return;
+        }
+        
+        archiveButton.setEnabled(false);
+        new SwingWorker<Integer, Void>() {
+            protected Integer doInBackground() throws Exception {
+                return OrderArchive.archiveBefore(cutoff);
+            }
+            
+            protected void done() {
+                archiveButton.setEnabled(true);
+                try {
+                    JOptionPane.showMessageDialog(OrdersScreen.this, get() + " orders archived");
+                    refresh();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    JOptionPane.showMessageDialog(OrdersScreen.this, "Error archiving orders: " + e.getMessage());
+                }
+            }
+        }.execute();
+    }
+    
+    // Delete all selected orders in one transaction
+    // Order lines are removed by the ON DELETE CASCADE foreign key
     private void deleteOrder() {
-        int selectedRow = orderTable.getSelectedRow();
-        if (selectedRow < 0) {
+        int[] selectedRows = orderTable.getSelectedRows();
+        if (selectedRows.length == 0) {
             JOptionPane.showMessageDialog(this, "Please select an order to delete");
             return;
         }
+        if (!CURRENT_VIEW.equals(viewCombo.getSelectedItem())) {
+            JOptionPane.showMessageDialog(this, "Archived orders are read-only");
+            return;
+        }
         
+        String message = selectedRows.length == 1
+            ? "Are you sure you want to delete this order?"
+            : "Are you sure you want to delete these " + selectedRows.length + " orders?";
         int confirm = JOptionPane.showConfirmDialog(this, 
-            "Are you sure you want to delete this order?",
+            message,
             "Confirm Delete", 
             JOptionPane.YES_NO_OPTION);
         
         if (confirm == JOptionPane.YES_OPTION) {
-            long id = (Long) tableModel.getValueAt(selectedRow, 0);
+            long[] ids = new long[selectedRows.length];
+            for (int i = 0; i < selectedRows.length; i++) {
+                ids[i] = tableModel.getLong(selectedRows[i], 0);
+            }
             
             try {
-                Connection conn = DB.getConn();
-                Statement stmt = conn.createStatement();
-                String sql = "DELETE FROM order_line WHERE order_id = " + id;
-                stmt.execute(sql);
-                sql = "DELETE FROM orders WHERE order_id = " + id;
-                stmt.execute(sql);
-                
-                stmt.close();
+                BulkDeleteService.deleteOrders(DB.getConn(), ids);
+                AuditLog audit = AuditLog.get();
+                for (int i = 0; i < selectedRows.length; i++) {
+                    int row = selectedRows[i];
+                    audit.record(AuditLog.DELETE, "order", ids[i],
+                        AuditLog.image("cust_name", tableModel.getValueAt(row, 1), "order_date", tableModel.getValueAt(row, 2),
+                            "total", BigDecimal.valueOf(tableModel.getLong(row, 6), 2)),
+                        null);
+                }
                 loadOrders();
             } catch (SQLException e) {
                 e.printStackTrace();
@@ -0,0 +1,112 @@
+/**
+ * ProductDialog.java
+ * 
+ * Dialog for adding or editing a product.
+ * Validates the name and list price and returns them to the products screen.
+ */
+package aim.legacy.ui;
+
+import javax.swing.*;
+import java.awt.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+public class ProductDialog extends JDialog {
+
+    private boolean saved = false;
+    
+    private JTextField nameField;
+    private JTextField priceField;
+    
+    private BigDecimal price;
+    
+    public ProductDialog(Frame parent, long id, String name, BigDecimal price) {
+        super(parent, id == 0 ? "Add Product" : "Edit Product", true);
+        
+        setupUI();
+        
+        if (id > 0) {
+            nameField.setText(name);
+            priceField.setText(price.toPlainString());
+        }
+        
+        setSize(400, 170);
+        setLocationRelativeTo(parent);
+    }
+    
+    private void setupUI() {
+        JPanel panel = new JPanel(new GridBagLayout());
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(5, 5, 5, 5);
+        gbc.anchor = GridBagConstraints.WEST;
+        
+        gbc.gridx = 0; gbc.gridy = 0;
+        panel.add(new JLabel("Name:"), gbc);
+        gbc.gridx = 1; gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.weightx = 1.0;
+        nameField = new JTextField(20);
+        panel.add(nameField, gbc);
+        
+        gbc.gridx = 0; gbc.gridy = 1; gbc.weightx = 0;
+        gbc.fill = GridBagConstraints.NONE;
+        panel.add(new JLabel("List Price:"), gbc);
+        gbc.gridx = 1; gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.weightx = 1.0;
+        priceField = new JTextField(10);
+        panel.add(priceField, gbc);
+        
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        JButton saveButton = new JButton("Save");
+        saveButton.addActionListener(e -> save());
+        buttonPanel.add(saveButton);
+        
+        JButton cancelButton = new JButton("Cancel");
+        cancelButton.addActionListener(e -> cancel());
+        buttonPanel.add(cancelButton);
+        
+        gbc.gridx = 0; gbc.gridy = 2; gbc.gridwidth = 2;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        panel.add(buttonPanel, gbc);
+        
+        add(panel);
+    }
+    
+    private void save() {
+        if (nameField.getText().trim().isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Name is required");
+            return;
+        }
+        try {
+            price = new BigDecimal(priceField.getText().trim()).setScale(2, RoundingMode.HALF_UP);
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "List price must be a number");
+            return;
+        }
+        if (price.signum() < 0) {
+            JOptionPane.showMessageDialog(this, "List price cannot be negative");
+            return;
+        }
+        
+        saved = true;
+        dispose();
+    }
+    
+    private void cancel() {
+        saved = false;
+        dispose();
+    }
+    
+    public boolean isSaved() {
+        return saved;
+    }
+    
+    public String getName() {
+        return nameField.getText().trim();
+    }
+    
+    public BigDecimal getPrice() {
+        return price;
+    }
+}
@@ -0,0 +1,342 @@
+/**
+ * ProductsScreen.java
+ * 
+ * Screen for managing the product catalog.
+ * Provides functionality to view, filter, add, edit and delete products, to
+ * change list prices by a percentage in bulk and to set stock counts.
+ * The whole catalog is held in a columnar table model, so catalogs of hundreds
+ * of thousands of products load once and filter and sort in memory; the table
+ * only renders the visible rows.
+ * Price changes are pushed into the shared PricingCatalog used to price order lines.
+ */
+package aim.legacy.ui;
+
+import aim.legacy.db.BulkDeleteService;
+import aim.legacy.db.DB;
+import aim.legacy.db.Diagnostics;
+import aim.legacy.db.Inventory;
+import aim.legacy.db.PricingCatalog;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.math.BigDecimal;
+import java.sql.*;
+
+public class ProductsScreen extends JPanel {
+
+    private final MainApp mainApp;
+    
+    private JTable productTable;
+    private ColumnarTableModel tableModel;
+    private JTextField filterField;
+    private JLabel countLabel;
+    
+    public ProductsScreen(MainApp mainApp) {
+        this.mainApp = mainApp;
+        setupUI();
+    }
+    
+    private void setupUI() {
+        setLayout(new BorderLayout());
+        
+        JPanel topPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        topPanel.add(new JLabel("Filter:"));
+        filterField = new JTextField(20);
+        filterField.setToolTipText("Part of a product name, or a product ID");
+        // Filtering runs on the loaded rows in the background as the user types
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                tableModel.setFilter(filterField.getText());
+            }
+            
+            public void removeUpdate(DocumentEvent e) {
+                tableModel.setFilter(filterField.getText());
+            }
+            
+            public void changedUpdate(DocumentEvent e) {
+                tableModel.setFilter(filterField.getText());
+            }
+        });
+        topPanel.add(filterField);
+        JButton clearButton = new JButton("Show All");
+        clearButton.addActionListener(e -> filterField.setText(""));
+        topPanel.add(clearButton);
+        countLabel = new JLabel(" ");
+        topPanel.add(countLabel);
+        
+        add(topPanel, BorderLayout.NORTH);
+        
+        // Stock columns are empty for products whose stock is not tracked
+        String[] columns = {"ID", "Name", "List Price", "On Hand", "Available"};
+        ColumnarTableModel.ColumnType[] types = {
+            ColumnarTableModel.ColumnType.ID, ColumnarTableModel.ColumnType.TEXT, ColumnarTableModel.ColumnType.MONEY,
+            ColumnarTableModel.ColumnType.ID, ColumnarTableModel.ColumnType.ID
+        };
+        tableModel = new ColumnarTableModel(columns, types);
+        tableModel.addTableModelListener(e -> countLabel.setText(tableModel.getRowCount() + " product(s)"));
+        productTable = new JTable(tableModel);
+        ColumnarTableModel.install(productTable, tableModel);
+        productTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        add(new JScrollPane(productTable), BorderLayout.CENTER);
+        
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        JButton addButton = new JButton("Add Product");
+        addButton.addActionListener(e -> addProduct());
+        buttonPanel.add(addButton);
+        
+        JButton editButton = new JButton("Edit Product");
+        editButton.addActionListener(e -> editProduct());
+        buttonPanel.add(editButton);
+        
+        JButton deleteButton = new JButton("Delete Selected");
+        deleteButton.addActionListener(e -> deleteProducts());
+        buttonPanel.add(deleteButton);
+        
+        JButton priceButton = new JButton("Change Prices...");
+        priceButton.addActionListener(e -> changePrices());
+        buttonPanel.add(priceButton);
+        
+        JButton stockButton = new JButton("Set Stock...");
+        stockButton.addActionListener(e -> setStock());
+        buttonPanel.add(stockButton);
+        
+        add(buttonPanel, BorderLayout.SOUTH);
+    }
+    
+    // Refresh the product list from database
+    // Called when switching to this screen; the filter and sort stay in effect
+    public void refresh() {
+        Diagnostics.ActionEvent event = new Diagnostics.ActionEvent("Products.refresh");
+        loadProducts();
+        event.rowCount = tableModel.getRowCount();
+        event.commit();
+    }
+    
+    // Load every product into the table model, with stock levels from the inventory counters
+    private void loadProducts() {
+        tableModel.beginLoad();
+        try {
+            Connection conn = DB.getConn();
+            Inventory inventory = Inventory.get();
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT prod_id, prod_name, unit_price FROM product ORDER BY prod_id");
+            
+            while (rs.next()) {
+                int row = tableModel.appendRow();
+                tableModel.setLong(row, 0, rs.getLong(1));
+                tableModel.setText(row, 1, rs.getString(2));
+                tableModel.setMoney(row, 2, rs.getDouble(3));
+                long onHand = inventory.onHand(rs.getLong(1));
+                tableModel.setLong(row, 3, onHand == Inventory.UNTRACKED ? ColumnarTableModel.NULL : onHand);
+                tableModel.setLong(row, 4, onHand == Inventory.UNTRACKED ? ColumnarTableModel.NULL
+                    : inventory.available(rs.getLong(1)));
+            }
+            
+            rs.close();
+            stmt.close();
+            tableModel.endLoad();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            tableModel.endLoad();
+            JOptionPane.showMessageDialog(this, "Error loading products: " + e.getMessage());
+        }
+    }
+    
+    // Open dialog to add a new product
+    // Generates next ID by finding MAX(prod_id) + 1
+    private void addProduct() {
+        ProductDialog dialog = new ProductDialog((Frame) SwingUtilities.getWindowAncestor(this), 0, "", null);
+        dialog.setVisible(true);
+        
+        if (dialog.isSaved()) {
+            try {
+                Connection conn = DB.getConn();
+                Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT MAX(prod_id) FROM product");
+                long nextId = rs.next() ? rs.getLong(1) + 1 : 1;
+                rs.close();
+                stmt.close();
+                
+                PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO product (prod_id, prod_name, unit_price) VALUES (?, ?, ?)");
+                ps.setLong(1, nextId);
+                ps.setString(2, dialog.getName());
+                ps.setBigDecimal(3, dialog.getPrice());
+                ps.executeUpdate();
+                ps.close();
+                
+                PricingCatalog.reloadBasePrices(conn);
+                loadProducts();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                JOptionPane.showMessageDialog(this, "Error adding product: " + e.getMessage());
+            }
+        }
+    }
+    
+    // Edit the selected product's name and list price
+    private void editProduct() {
+        int selectedRow = productTable.getSelectedRow();
+        if (selectedRow < 0) {
+            JOptionPane.showMessageDialog(this, "Please select a product to edit");
+            return;
+        }
+        
+        long id = tableModel.getLong(selectedRow, 0);
+        String name = (String) tableModel.getValueAt(selectedRow, 1);
+        BigDecimal price = BigDecimal.valueOf(tableModel.getLong(selectedRow, 2), 2);
+        
+        ProductDialog dialog = new ProductDialog((Frame) SwingUtilities.getWindowAncestor(this), id, name, price);
+        dialog.setVisible(true);
+        
+        if (dialog.isSaved()) {
+            try {
+                Connection conn = DB.getConn();
+                PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE product SET prod_name = ?, unit_price = ? WHERE prod_id = ?");
+                ps.setString(1, dialog.getName());
+                ps.setBigDecimal(2, dialog.getPrice());
+                ps.setLong(3, id);
+                ps.executeUpdate();
+                ps.close();
+                
+                PricingCatalog.reloadBasePrices(conn);
+                loadProducts();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                JOptionPane.showMessageDialog(this, "Error updating product: " + e.getMessage());
+            }
+        }
+    }
+    
+    // Delete all selected products in one transaction
+    // Existing order lines keep their product name and price
+    private void deleteProducts() {
+        int[] selectedRows = productTable.getSelectedRows();
+        if (selectedRows.length == 0) {
+            JOptionPane.showMessageDialog(this, "Please select a product to delete");
+            return;
+        }
+        
+        String message = selectedRows.length == 1
+            ? "Are you sure you want to delete this product?"
+            : "Are you sure you want to delete these " + selectedRows.length + " products?";
+        message += "\nTheir contract and price list prices are deleted as well; existing orders are not changed.";
+        int confirm = JOptionPane.showConfirmDialog(this, message, "Confirm Delete", JOptionPane.YES_NO_OPTION);
+        if (confirm != JOptionPane.YES_OPTION) {
+            return;
+        }
+        
+        try {
+            BulkDeleteService.deleteProducts(DB.getConn(), selectedIds(selectedRows));
+            loadProducts();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error deleting products: " + e.getMessage());
+        }
+    }
+    
+    // Change list prices by a percentage: the selected products, or all products if none are selected
+    // Applied as one UPDATE in one transaction; rows hidden by the filter are only changed when
+    // nothing is selected
+    private void changePrices() {
+        int[] selectedRows = productTable.getSelectedRows();
+        String scope = selectedRows.length > 0
+            ? selectedRows.length + " selected product(s)"
+            : "ALL products";
+        String input = JOptionPane.showInputDialog(this,
+            "Percentage change in list price for " + scope + "\n(e.g. 5 for a 5% increase, -2.5 for a decrease):",
+            "Change Prices", JOptionPane.QUESTION_MESSAGE);
+        if (input == null || input.trim().isEmpty()) {
+            return;
+        }
+        
+        BigDecimal percent;
+        try {
+            percent = new BigDecimal(input.trim());
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Please enter a number, e.g. 5 or -2.5");
+            return;
+        }
+        if (percent.compareTo(BigDecimal.valueOf(-100)) <= 0) {
+            JOptionPane.showMessageDialog(this, "A price change must be greater than -100%");
+            return;
+        }
+        
+        int confirm = JOptionPane.showConfirmDialog(this,
+            "Change the list price of " + scope + " by " + percent.toPlainString() + "%?",
+            "Confirm Price Change", JOptionPane.YES_NO_OPTION);
+        if (confirm != JOptionPane.YES_OPTION) {
+            return;
+        }
+        
+        Diagnostics.ActionEvent event = new Diagnostics.ActionEvent("Products.changePrices");
+        try {
+            long[] ids = selectedRows.length > 0 ? selectedIds(selectedRows) : null;
+            int changed = PricingCatalog.adjustListPrices(DB.getConn(), ids, percent);
+            event.rowCount = changed;
+            loadProducts();
+            JOptionPane.showMessageDialog(this, changed + " price(s) changed");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error changing prices: " + e.getMessage());
+        } finally {
+            event.commit();
+        }
+    }
+    
+    // Set the on hand count of the selected product after a stock count or delivery
+    // An empty count stops tracking the product's stock
+    private void setStock() {
+        int selectedRow = productTable.getSelectedRow();
+        if (selectedRow < 0 || productTable.getSelectedRowCount() > 1) {
+            JOptionPane.showMessageDialog(this, "Please select one product");
+            return;
+        }
+        long id = tableModel.getLong(selectedRow, 0);
+        Inventory inventory = Inventory.get();
+        long onHand = inventory.onHand(id);
+        
+        String message = "On hand count for " + tableModel.getValueAt(selectedRow, 1) +
+            (onHand == Inventory.UNTRACKED
+                ? "\n(stock is not tracked; quantities on current orders will be reserved)"
+                : "\n(" + inventory.reserved(id) + " reserved on orders; leave empty to stop tracking)");
+        String input = (String) JOptionPane.showInputDialog(this, message, "Set Stock",
+            JOptionPane.QUESTION_MESSAGE, null, null, onHand == Inventory.UNTRACKED ? "" : String.valueOf(onHand));
+        if (input == null) {
+            return;
+        }
+        
+        Long count = null;
+        if (!input.trim().isEmpty()) {
+            try {
+                count = Long.parseLong(input.trim());
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(this, "Please enter a whole number");
+                return;
+            }
+            if (count < 0) {
+                JOptionPane.showMessageDialog(this, "On hand count cannot be negative");
+                return;
+            }
+        }
+        
+        try {
+            inventory.setOnHand(DB.getConn(), id, count);
+            loadProducts();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error setting stock: " + e.getMessage());
+        }
+    }
+    
+    private long[] selectedIds(int[] selectedRows) {
+        long[] ids = new long[selectedRows.length];
+        for (int i = 0; i < selectedRows.length; i++) {
+            ids[i] = tableModel.getLong(selectedRows[i], 0);
+        }
+        return ids;
+    }
+}
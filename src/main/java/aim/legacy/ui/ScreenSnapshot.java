@@ -0,0 +1,242 @@
+/**
+ * ScreenSnapshot.java
+ *
+ * Warm start for the customer and order lists. On exit the first rows of each
+ * list (in display order, with the sort and scroll position) are written to a
+ * small binary file next to the database; on start they are shown at once
+ * instead of waiting for the full query. A background check then compares the
+ * database change token (DB.changeToken) with the one saved with the rows:
+ * if the data changed, all rows are reloaded off the EDT and swapped in,
+ * otherwise the rest is only loaded when it is needed (sorting, filtering or
+ * scrolling past the saved rows). Lists showing a search are not saved.
+ */
+package aim.legacy.ui;
+
+import aim.legacy.db.DB;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ScreenSnapshot {
+
+    private static final int MAGIC = 0x5343524E;
+    private static final int VERSION = 1;
+
+    // Rows saved per list: at least a few pages, enough to cover the scroll position
+    private static final int MIN_ROWS = 500;
+    private static final int MAX_ROWS = 5000;
+
+    private final Map<String, byte[]> sections;
+
+    private ScreenSnapshot(Map<String, byte[]> sections) {
+        this.sections = sections;
+    }
+
+    public static File getFile() {
+        return new File(DB.getDbFile() + ".screens");
+    }
+
+    // Read the snapshot saved at the last exit; null if there is none or it cannot be used
+    public static ScreenSnapshot read() {
+        File file = getFile();
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            Map<String, byte[]> sections = new HashMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                sections.put(name, data);
+            }
+            return new ScreenSnapshot(sections);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Write the lists that can be restored; the old file is replaced only when the new one is complete
+    public static void save(Table... tables) {
+        File file = getFile();
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            Map<String, byte[]> sections = new HashMap<>();
+            for (Table table : tables) {
+                byte[] data = table.write();
+                if (data != null) {
+                    sections.put(table.name, data);
+                }
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sections.size());
+                for (Map.Entry<String, byte[]> section : sections.entrySet()) {
+                    out.writeUTF(section.getKey());
+                    out.writeInt(section.getValue().length);
+                    out.write(section.getValue());
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        }
+    }
+
+    // Query filling a model with all rows of a list; runs on its own connection off the EDT
+    public interface Loader {
+        void load(Connection conn, ColumnarTableModel model) throws SQLException;
+    }
+
+    // Warm start state of one list; the screen reports every load it does itself through loading()
+    public static class Table {
+        private final String name;
+        private final JTable table;
+        private final ColumnarTableModel model;
+        private final Loader loader;
+
+        // Change token of the rows shown, or null when they are not the full list (e.g. a search)
+        private String token;
+        // Bumped on every load so that a slower background load cannot overwrite a newer one
+        private int loads;
+
+        public Table(String name, JTable table, JScrollPane scrollPane, ColumnarTableModel model, Loader loader) {
+            this.name = name;
+            this.table = table;
+            this.model = model;
+            this.loader = loader;
+            ColumnarTableModel.loadRestOnScroll(scrollPane, model);
+        }
+
+        // Called by the screen before it loads rows itself; token is null unless it loads the full list
+        public void loading(String token) {
+            loads++;
+            this.token = token;
+        }
+
+        // True if the full list is shown and nothing changed since it was loaded
+        public boolean isCurrent(Connection conn) throws SQLException {
+            return token != null && token.equals(DB.changeToken(conn));
+        }
+
+        // Show the saved rows and check them in the background, or load everything in the background
+        public void restore(ScreenSnapshot snapshot) {
+            byte[] data = snapshot != null ? snapshot.sections.get(name) : null;
+            if (data != null) {
+                try {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                    String savedToken = in.readUTF();
+                    int scrollRow = in.readInt();
+                    if (model.readRows(in)) {
+                        loading(savedToken);
+                        model.setPartial(this::loadInBackground);
+                        SwingUtilities.invokeLater(() -> scrollTo(scrollRow));
+                        checkInBackground(savedToken);
+                        return;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    model.beginLoad();
+                    model.endLoad();
+                }
+            }
+            loadInBackground();
+        }
+
+        private void scrollTo(int row) {
+            if (row > 0 && row < model.getRowCount() && table.getParent() instanceof JViewport) {
+                ((JViewport) table.getParent()).setViewPosition(new Point(0, table.getCellRect(row, 0, true).y));
+            }
+        }
+
+        // Reload everything if the saved rows are out of date
+        private void checkInBackground(String savedToken) {
+            int load = loads;
+            new SwingWorker<String, Void>() {
+                protected String doInBackground() throws Exception {
+                    try (Connection conn = DB.openConnection()) {
+                        return DB.changeToken(conn);
+                    }
+                }
+
+                protected void done() {
+                    try {
+                        if (load == loads && !savedToken.equals(get())) {
+                            model.setPartial(null);
+                            loadInBackground();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }.execute();
+        }
+
+        // Load all rows on a separate connection and swap them in when done
+        private void loadInBackground() {
+            int load = ++loads;
+            new SwingWorker<ColumnarTableModel, Void>() {
+                private String loadedToken;
+
+                protected ColumnarTableModel doInBackground() throws Exception {
+                    ColumnarTableModel loaded = model.emptyCopy();
+                    try (Connection conn = DB.openConnection()) {
+                        loadedToken = DB.changeToken(conn);
+                        loader.load(conn, loaded);
+                    }
+                    return loaded;
+                }
+
+                protected void done() {
+                    if (load != loads) {
+                        return;
+                    }
+                    try {
+                        model.takeRows(get());
+                        token = loadedToken;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        token = null;
+                        JOptionPane.showMessageDialog(table, "Error loading " + name + ": " + e.getMessage());
+                    }
+                }
+            }.execute();
+        }
+
+        // Saved form of the first rows; null when the list shows a search or filter
+        private byte[] write() throws IOException {
+            if (token == null || model.isFiltered()) {
+                return null;
+            }
+            int firstRow = 0;
+            int visibleRows = 0;
+            if (table.getParent() instanceof JViewport) {
+                JViewport viewport = (JViewport) table.getParent();
+                firstRow = Math.max(table.rowAtPoint(viewport.getViewPosition()), 0);
+                visibleRows = viewport.getHeight() / Math.max(table.getRowHeight(), 1);
+            }
+            int rows = Math.min(Math.max(MIN_ROWS, firstRow + 2 * visibleRows), MAX_ROWS);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(token);
+            out.writeInt(Math.min(firstRow, rows - 1));
+            model.writeRows(out, rows);
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+}